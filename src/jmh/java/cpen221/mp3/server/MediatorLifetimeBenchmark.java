@@ -0,0 +1,91 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.wikimediator.WikiMediator;
+import cpen221.mp3.wikimediator.WikiSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The cost of one getPage request with a WikiMediator built (and its
+ * statistics loaded) for every request, as the server used to, against
+ * one mediator shared by all requests.
+ *
+ * The upstream is a stub that answers every request after 0.5ms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediatorLifetimeBenchmark {
+
+    private static final long UPSTREAM_NANOS = 500_000;
+
+    /* the number of requests in the saved statistics */
+    @Param({"1000", "100000"})
+    public int history;
+
+    private File logFile;
+    private File peakLoadFile;
+    private WikiMediator shared;
+    private int next;
+
+    private static class StubSource implements WikiSource {
+        @Override
+        public String getPageText(String pageTitle) {
+            LockSupport.parkNanos(UPSTREAM_NANOS);
+            return "text of " + pageTitle;
+        }
+
+        @Override
+        public List<String> search(String query, int limit) {
+            LockSupport.parkNanos(UPSTREAM_NANOS);
+            return Collections.singletonList(query);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        File directory = Files.createTempDirectory("mediator-benchmark").toFile();
+        logFile = new File(directory, "logs.txt");
+        peakLoadFile = new File(directory, "logs_peak.txt");
+
+        WikiMediator writer = new WikiMediator.Builder().source(new StubSource()).build();
+        for (int i = 0; i < history; i++) {
+            writer.getPage("Page " + (i % 50));
+        }
+        writer.saveLogs(logFile, peakLoadFile);
+
+        shared = newMediator();
+    }
+
+    private WikiMediator newMediator() {
+        return new WikiMediator.Builder()
+            .source(new StubSource())
+            .logs(logFile, peakLoadFile)
+            .build();
+    }
+
+    private String title() {
+        next = (next + 1) % 50;
+        return "Page " + next;
+    }
+
+    @Benchmark
+    public String mediatorPerRequest() {
+        return newMediator().getPage(title());
+    }
+
+    @Benchmark
+    public String sharedMediator() {
+        return shared.getPage(title());
+    }
+}
@@ -0,0 +1,75 @@
+package cpen221.mp3.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of encoding and decoding a search request and its reply, with
+ * the JSON protocol and with the binary protocol, leaving out the network
+ * and the search itself. Each operation is what the client and the server
+ * do between them for one request: the client encodes the request, the
+ * server decodes it and encodes the reply, and the client decodes that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int results;
+
+    private List<String> titles;
+
+    @Setup
+    public void setUp() {
+        titles = new ArrayList<>(results);
+        for (int i = 0; i < results; i++) {
+            titles.add("Barack Obama in popular culture " + i);
+        }
+    }
+
+    @Benchmark
+    public List<?> json() {
+        JsonObject request = new JsonObject();
+        request.addProperty("id", "search-1");
+        request.addProperty("type", "search");
+        request.addProperty("query", "Barack Obama");
+        request.addProperty("limit", results);
+        String line = request.toString();
+
+        /* the server, as getJsonResult does it */
+        JsonObject jsonObjectIn = new Gson().fromJson(line, JsonObject.class);
+        JsonObject jsonObjectOut = new JsonObject();
+        jsonObjectOut.add("id", jsonObjectIn.get("id"));
+        jsonObjectIn.get("query").getAsString();
+        jsonObjectIn.get("limit").getAsInt();
+        jsonObjectOut.addProperty("status", "success");
+        jsonObjectOut.addProperty("response", new Gson().toJson(titles));
+        String reply = jsonObjectOut.toString();
+
+        JsonObject replyIn = JsonParser.parseString(reply).getAsJsonObject();
+        return Arrays.asList(new Gson().fromJson(replyIn.get("response").getAsString(), String[].class));
+    }
+
+    @Benchmark
+    public List<String> binary() throws IOException {
+        byte[] request = BinaryProtocol.encode(BinaryProtocol.Request.search("search-1", "Barack Obama", results));
+
+        /* the server, as answer does it */
+        BinaryProtocol.Request requestIn = BinaryProtocol.decodeRequest(Arrays.copyOfRange(request, 4, request.length));
+        byte[] reply = BinaryProtocol.encodeList(requestIn.id, true, titles);
+
+        return BinaryProtocol.decodeResult(Arrays.copyOfRange(reply, 4, reply.length)).list();
+    }
+}
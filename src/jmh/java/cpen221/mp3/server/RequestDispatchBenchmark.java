@@ -0,0 +1,121 @@
+package cpen221.mp3.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import cpen221.mp3.wikimediator.WikiMediator;
+import cpen221.mp3.wikimediator.WikiSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost, in time and in allocation (run with -prof gc), of decoding a
+ * JSON request, finding its operation and writing its reply. dom is the
+ * way the server used to do it: a new Gson per request, a JsonObject for
+ * the request and the reply, and a chain of string comparisons. streaming
+ * is the server's prepare, with a JsonRequest that is reused as it is on
+ * a connection. The search results are cached, so the mediator does as
+ * little as it can.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestDispatchBenchmark {
+
+    private static final int PORT = WikiMediatorServer.WIKI_PORT + 20;
+
+    /* an unknown type leaves the mediator out, so only the protocol is measured */
+    @Param({"search", "unknown"})
+    public String type;
+
+    private String line;
+
+    private WikiMediator wikiMediator;
+
+    private WikiMediatorServer server;
+
+    private final JsonRequest request = new JsonRequest();
+
+    private final Writer out = Writer.nullWriter();
+
+    private PrintStream stdout;
+
+    private PrintStream stderr;
+
+    private static class StubSource implements WikiSource {
+        @Override
+        public String getPageText(String pageTitle) {
+            return "text of " + pageTitle;
+        }
+
+        @Override
+        public List<String> search(String query, int limit) {
+            return Collections.nCopies(limit, query);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        /* the old way prints every request and reply; the console would hide the difference */
+        stdout = System.out;
+        stderr = System.err;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        wikiMediator = new WikiMediator.Builder().source(new StubSource()).build();
+        server = new WikiMediatorServer(PORT, 1, wikiMediator);
+        line = "{\"id\": \"request-1\", \"type\": \"" + type + "\", \"query\": \"Barack Obama\", \"limit\": 5}";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        System.setOut(stdout);
+        System.setErr(stderr);
+    }
+
+    @Benchmark
+    public void streaming() throws IOException {
+        server.prepare(line, request, InetAddress.getLoopbackAddress()).writeTo(out);
+    }
+
+    @Benchmark
+    public void dom() throws IOException {
+        JsonObject jsonObjectIn = new Gson().fromJson(line, JsonObject.class);
+        System.out.println("Request as obj:" + jsonObjectIn.toString());
+
+        JsonObject jsonObjectOut = new JsonObject();
+        jsonObjectOut.add("id", jsonObjectIn.get("id"));
+        String type = jsonObjectIn.get("type").getAsString();
+        if (type.compareToIgnoreCase("search") == 0) {
+            List<String> result = wikiMediator.search(jsonObjectIn.get("query").getAsString(),
+                jsonObjectIn.get("limit").getAsInt());
+            jsonObjectOut.addProperty("status", "success");
+            jsonObjectOut.addProperty("response", new Gson().toJson(result));
+        } else if (type.compareToIgnoreCase("zeitgeist") == 0
+            || type.compareToIgnoreCase("getPage") == 0
+            || type.compareToIgnoreCase("trending") == 0) {
+            throw new IllegalStateException(type);
+        } else if (type.compareToIgnoreCase("peakLoad30s") == 0
+            || type.compareToIgnoreCase("batch") == 0
+            || type.compareToIgnoreCase("stop") == 0) {
+            throw new IllegalStateException(type);
+        } else {
+            jsonObjectOut.addProperty("status", "failed");
+            jsonObjectOut.addProperty("response", "Operation type not found");
+        }
+        System.err.println("reply: " + jsonObjectOut.toString());
+        out.write(jsonObjectOut.toString());
+        out.write('\n');
+    }
+}
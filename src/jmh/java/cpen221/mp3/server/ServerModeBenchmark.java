@@ -0,0 +1,117 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.wikimediator.WikiMediator;
+import cpen221.mp3.wikimediator.WikiSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A load test of the server modes: CLIENTS clients at once each connect,
+ * ask for a page that is not cached and disconnect. The upstream is a stub
+ * that takes UPSTREAM_MILLIS to answer, and the server has THREADS threads
+ * (which the virtual thread mode does not need).
+ *
+ * The score is the time per request; with a fixed pool it is bounded below
+ * by UPSTREAM_MILLIS / THREADS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(ServerModeBenchmark.CLIENTS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerModeBenchmark {
+
+    static final int CLIENTS = 200;
+
+    private static final int THREADS = 16;
+
+    private static final long UPSTREAM_MILLIS = 20;
+
+    private static final int PORT = WikiMediatorServer.WIKI_PORT + 10;
+
+    @Param({"THREAD_POOL", "NIO", "VIRTUAL_THREADS"})
+    public WikiMediatorServer.Mode mode;
+
+    private ExecutorService clients;
+
+    private final AtomicInteger nextTitle = new AtomicInteger();
+
+    private static class StubSource implements WikiSource {
+        @Override
+        public String getPageText(String pageTitle) {
+            try {
+                Thread.sleep(UPSTREAM_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "text of " + pageTitle;
+        }
+
+        @Override
+        public List<String> search(String query, int limit) {
+            return Collections.singletonList(query);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        /* the server logs every request; the console would be the bottleneck */
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(new StubSource()).build();
+        WikiMediatorServer server = new WikiMediatorServer(PORT, THREADS, wikiMediator, mode);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+        clients = Executors.newFixedThreadPool(CLIENTS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        clients.shutdownNow();
+    }
+
+    private String request() throws IOException {
+        WikiMediatorClient client = new WikiMediatorClient("localhost", PORT);
+        try {
+            client.sendRequest("{\"id\": \"1\", \"type\": \"getPage\", \"pageTitle\": \"Page "
+                + nextTitle.incrementAndGet() + "\"}");
+            return client.getReply();
+        } finally {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public List<String> getPage() throws Exception {
+        List<Future<String>> replies = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            replies.add(clients.submit(this::request));
+        }
+        List<String> result = new ArrayList<>(CLIENTS);
+        for (Future<String> reply : replies) {
+            result.add(reply.get());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+package cpen221.mp3.wikimediator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost, in time and in allocation (run with -prof gc), of logging
+ * one request. timestampMap is the way registerLog used to do it: a
+ * Timestamp per request as the key of a map of lists, the list copied
+ * whenever a request shares its millisecond with an earlier one. columns
+ * is the RequestLog. Both logs are cleared every iteration, so they stay
+ * the same size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestLogBenchmark {
+
+    private static final int TITLES = 1000;
+
+    private final String[] titles = new String[TITLES];
+
+    private Map<Timestamp, List<String>> timestampMap;
+
+    private RequestLog columns;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < TITLES; i++) {
+            titles[i] = "Page " + i;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        timestampMap = new ConcurrentHashMap<>();
+        columns = new RequestLog();
+    }
+
+    private String title() {
+        next = (next + 1) % TITLES;
+        return titles[next];
+    }
+
+    @Benchmark
+    public void timestampMap() {
+        String string = title();
+        timestampMap.compute(new Timestamp(System.currentTimeMillis()), (timestamp, list) -> {
+            if (list == null) {
+                return Collections.singletonList(string);
+            }
+            List<String> newList = new LinkedList<>(list);
+            newList.add(string);
+            return newList;
+        });
+    }
+
+    @Benchmark
+    public void columns() {
+        columns.record(System.currentTimeMillis(), title());
+    }
+}
@@ -0,0 +1,63 @@
+package cpen221.mp3.wikimediator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of one zeitgeist(5) call after history requests, of which
+ * about a tenth are of distinct strings, skewed so that a few are asked
+ * for often. recount is the way zeitgeist used to do it: count every
+ * logged request into a HashMap and sort all the distinct strings. index
+ * asks the FrequencyIndex that zeitgeist now keeps up to date.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZeitgeistBenchmark {
+
+    private static final int LIMIT = 5;
+
+    @Param({"1000", "100000", "1000000"})
+    public int history;
+
+    private List<List<String>> log;
+
+    private FrequencyIndex index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(221);
+        int distinct = Math.max(1, history / 10);
+        log = new ArrayList<>(history);
+        index = new FrequencyIndex();
+        for (int i = 0; i < history; i++) {
+            double r = random.nextDouble();
+            String string = "Page " + (int) (distinct * r * r * r);
+            log.add(Collections.singletonList(string));
+            index.increment(string);
+        }
+    }
+
+    @Benchmark
+    public List<String> recount() {
+        Map<String, Integer> stringCounts = new HashMap<>();
+        for (List<String> list : log) {
+            for (String string : list) {
+                stringCounts.merge(string, 1, Integer::sum);
+            }
+        }
+        List<String> stringList = new LinkedList<>(stringCounts.keySet());
+        stringList.sort((o1, o2) -> Integer.compare(stringCounts.get(o2), stringCounts.get(o1)));
+        return new ArrayList<>(stringList.subList(0, Math.min(LIMIT, stringList.size())));
+    }
+
+    @Benchmark
+    public List<String> index() {
+        return index.top(LIMIT);
+    }
+}
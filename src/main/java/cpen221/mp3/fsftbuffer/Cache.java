@@ -0,0 +1,49 @@
+package cpen221.mp3.fsftbuffer;
+
+/**
+ * A finite-space finite-time cache of Bufferable objects.
+ *
+ * @param <T> the type of objects held in the cache
+ */
+public interface Cache<T extends Bufferable> {
+
+    /**
+     * Add a value to the cache.
+     * If the cache is full then an object is removed to make room
+     * for the new object.
+     *
+     * @param t the object to add
+     * @return true if t was added and false if an object with the same id
+     * is already in the cache
+     */
+    boolean put(T t);
+
+    /**
+     * @param id the identifier of the object to be retrieved
+     * @return the object that matches the identifier from the cache
+     * @throws IllegalAccessException if no object with that id is in the cache
+     */
+    T get(String id) throws IllegalAccessException;
+
+    /**
+     * Update the last refresh time for the object with the provided id,
+     * so that its timeout is delayed.
+     *
+     * @param id the identifier of the object to "touch"
+     * @return true if successful and false otherwise
+     */
+    boolean touch(String id);
+
+    /**
+     * Replace the object with the same id as t, and "touch" it.
+     *
+     * @param t the object to update
+     * @return true if successful and false otherwise
+     */
+    boolean update(T t);
+
+    /**
+     * Remove every object that has passed the timeout from the cache.
+     */
+    void cleanUp();
+}
@@ -0,0 +1,129 @@
+package cpen221.mp3.fsftbuffer;
+
+/**
+ * A count-min sketch: a fixed-size table that estimates how many times
+ * each string has been seen. Estimates never fall below the true count
+ * and exceed it only by hash collisions, which grow with the number of
+ * increments relative to the width of the table.
+ *
+ * To keep estimates about recent history, every counter is halved once
+ * the sketch has seen a fixed number of increments since the last halving.
+ *
+ * CountMinSketch is not thread safe.
+ */
+public class CountMinSketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb1a8e3f5, 0x5b4e1fc3, 0x7a0c3e91};
+
+    private final int[][] table;
+
+    private final int mask;
+
+    private final int resetPeriod;
+
+    private int additions;
+
+    /*
+        Abstraction Function:
+            the estimate for a string s is the minimum over every row r of table[r][index(s, r)]
+
+            additions is the number of increments since the counters were last halved
+
+        Representation Invariant:
+            table has DEPTH rows, each of length mask + 1, which is a power of two
+
+            every counter is non-negative
+
+            0 <= additions < resetPeriod
+     */
+
+    /**
+     * Create a sketch sized for a number of distinct strings.
+     *
+     * @param expectedDistinct the number of distinct strings that should be
+     *                         told apart well; must be positive
+     * @param resetPeriod      the number of increments after which every
+     *                         counter is halved; must be positive
+     */
+    public CountMinSketch(int expectedDistinct, int resetPeriod) {
+        int width = 16;
+        while (width < expectedDistinct && width < (1 << 30)) {
+            width <<= 1;
+        }
+        table = new int[DEPTH][width];
+        mask = width - 1;
+        this.resetPeriod = resetPeriod;
+    }
+
+    /**
+     * Create a sketch sized for a number of distinct strings, halved every
+     * ten times that many increments.
+     *
+     * @param expectedDistinct the number of distinct strings that should be
+     *                         told apart well; must be positive
+     */
+    public CountMinSketch(int expectedDistinct) {
+        this(expectedDistinct, 10 * Math.max(1, expectedDistinct));
+    }
+
+    /**
+     * Record one occurrence of s
+     *
+     * @param s the string seen
+     */
+    public void increment(String s) {
+        int hash = s.hashCode();
+        for (int r = 0; r < DEPTH; r++) {
+            int i = index(hash, r);
+            if (table[r][i] < Integer.MAX_VALUE) {
+                table[r][i]++;
+            }
+        }
+
+        additions++;
+        if (additions == resetPeriod) {
+            halve();
+        }
+    }
+
+    /**
+     * @param s a string
+     * @return an estimate, never below the true count, of the occurrences of s
+     * since the sketch was created (halved at each reset)
+     */
+    public int estimate(String s) {
+        int hash = s.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int r = 0; r < DEPTH; r++) {
+            min = Math.min(min, table[r][index(hash, r)]);
+        }
+        return min;
+    }
+
+    private void halve() {
+        for (int[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        additions = 0;
+    }
+
+    /*
+     * The seed goes through murmur3's finalizer with the hash, so that
+     * every bit of the hash reaches the low bits differently in each row;
+     * otherwise keys whose hashes differ only in high bits would share a
+     * column in every row, and the rows would not be independent.
+     */
+    private int index(int hash, int row) {
+        int h = hash ^ SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
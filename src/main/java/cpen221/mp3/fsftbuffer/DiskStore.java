@@ -0,0 +1,620 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of byte strings by id, with a timeout, meant as a
+ * second tier under an FSFTBuffer so that cached data survives restarts.
+ *
+ * Records are appended to segment files in a directory and found through
+ * an in-memory index that is rebuilt from the files when the store is
+ * opened. Each record carries a CRC32, so a record torn by a crash is
+ * detected and dropped along with everything after it in its segment.
+ * Full segments are read through memory maps. When most of the bytes in
+ * full segments belong to records that were overwritten, removed or have
+ * timed out, the live records are copied into a fresh segment and the old
+ * ones are deleted. This compaction runs on a background thread, which
+ * also wakes up whenever a full segment has timed out as a whole, so the
+ * files shrink even if the records that timed out are never asked for.
+ *
+ * DiskStore is thread safe.
+ */
+public class DiskStore {
+
+    /* [crc][key length][value length][expiry time] then key and value bytes */
+    private static final int HEADER = Integer.BYTES * 3 + Long.BYTES;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final String SUFFIX = ".seg";
+
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "DiskStore-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Location {
+        final long segment;
+        final long offset;
+        final int size;
+        final long expiresAt;
+
+        Location(long segment, long offset, int size, long expiresAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /* a segment file, and how much of it is still in use */
+    private static final class Segment {
+        final FileChannel channel;
+        MappedByteBuffer map;
+        long length;
+        long liveBytes;
+        long latestExpiry;
+
+        Segment(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /* the bytes of records that are no longer in the index, or have timed out */
+        long deadBytes(long now) {
+            return latestExpiry <= now ? length : length - liveBytes;
+        }
+    }
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    private final long timeout;
+
+    private final Map<String, Location> index;
+
+    private final TreeMap<Long, Segment> segments;
+
+    private final Object compactionLock = new Object();
+
+    private long activeSegment;
+
+    private boolean compacting;
+
+    private boolean compactionQueued;
+
+    private ScheduledFuture<?> check;
+
+    private long checkAt;
+
+    private boolean closed;
+
+    /*
+        Abstraction Function:
+            the store maps each key in index to the value of the record at index.get(key), which
+                is valid until its expiresAt time (in milli-seconds since the epoch)
+
+            segments maps the number of each segment file in directory to an open channel on it,
+                its length, and, once it is full and has been read from, its memory map;
+                activeSegment is the highest numbered one, which new records are appended to
+
+            s.liveBytes is the total size of the records of segment s that are in index, and
+                s.latestExpiry the latest expiresAt among them (0 if there are none); every
+                other byte of s is dead, and so are the live ones once s.latestExpiry has passed
+
+            compacting is true while compact() is copying records into a segment numbered
+                above the ones it compacts and below those started since, which is not in
+                segments until the copies are swapped into index; compactionQueued is true
+                while a compaction is waiting for the background thread; check, if not null,
+                checks again for dead segments at checkAt
+
+            closed is true once close() has been called
+
+        Representation Invariant:
+            every location in index refers to a segment in segments, and lies within its length
+
+            0 <= s.liveBytes <= s.length for every segment s, and s.length is the length of its
+                file
+
+            segmentSize and timeout are positive
+
+        Thread Safety Argument:
+            every field that is not final is guarded by this, as are index and segments; the
+                background tasks only touch them while holding this
+
+            compactionLock lets one compaction run at a time. It holds this only to pick the
+                records to copy and start a new active segment, and then to swap the copies
+                into index; in between, gets, puts and removes go on while the records are
+                copied from the old segments, which are full and so no longer written, into
+                one that nothing else touches yet. FileChannel reads at a position are thread
+                safe. A put or remove in between changes the record's location in index, so
+                its copy is left dead
+     */
+
+    /**
+     * Open (or create) a store in a directory
+     *
+     * @param directory   where the segment files are kept; created if missing
+     * @param timeout     the duration, in seconds, a record is kept after it
+     *                    is written
+     * @param segmentSize the length, in bytes, at which a segment is full
+     * @throws IOException if the directory cannot be created or read
+     */
+    public DiskStore(File directory, int timeout, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.timeout = timeout * 1000L;
+        this.segmentSize = segmentSize;
+        index = new HashMap<>();
+        segments = new TreeMap<>();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String number = file.getName().substring(0, file.getName().length() - SUFFIX.length());
+                try {
+                    segments.put(Long.parseLong(number), new Segment(open(file)));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+
+        for (long segment : segments.keySet()) {
+            load(segment);
+        }
+        if (segments.isEmpty()) {
+            startSegment(0);
+        } else {
+            activeSegment = segments.lastKey();
+        }
+        synchronized (this) {
+            scheduleCompaction(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Open (or create) a store with 64MB segments
+     *
+     * @param directory where the segment files are kept; created if missing
+     * @param timeout   the duration, in seconds, a record is kept after it
+     *                  is written
+     * @throws IOException if the directory cannot be created or read
+     */
+    public DiskStore(File directory, int timeout) throws IOException {
+        this(directory, timeout, 64L * 1024 * 1024);
+    }
+
+    /**
+     * @param key the id of a record
+     * @return the value stored under key, or null if there is none or it
+     * has timed out
+     * @throws IOException if the record cannot be read
+     */
+    public synchronized byte[] get(String key) throws IOException {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        if (location.expiresAt <= System.currentTimeMillis()) {
+            forget(key, location);
+            return null;
+        }
+
+        ByteBuffer record = read(location);
+        int keyLength = record.getInt(Integer.BYTES);
+        int valueLength = record.getInt(Integer.BYTES * 2);
+        byte[] value = new byte[valueLength];
+        record.position(HEADER + keyLength);
+        record.get(value);
+        return value;
+    }
+
+    /**
+     * Store a value under a key, replacing any value already there, and
+     * restart its timeout
+     *
+     * @param key   the id of the record
+     * @param value the bytes to store
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void put(String key, byte[] value) throws IOException {
+        long expiresAt = System.currentTimeMillis() + timeout;
+        Location location = append(key, value, expiresAt);
+        Location old = index.put(key, location);
+        if (old != null) {
+            markDead(old);
+        }
+    }
+
+    /**
+     * Remove the record stored under a key, if there is one
+     *
+     * @param key the id of the record
+     * @throws IOException if the removal cannot be written
+     */
+    public synchronized void remove(String key) throws IOException {
+        Location old = index.remove(key);
+        if (old != null) {
+            markDead(old);
+            Location tombstone = append(key, null, 0);
+            markDead(tombstone);
+        }
+    }
+
+    /**
+     * @return the number of records in the store, including any that have
+     * timed out but have not been noticed yet
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the total length, in bytes, of the segment files
+     */
+    public synchronized long diskBytes() {
+        long length = 0;
+        for (Segment segment : segments.values()) {
+            length += segment.length;
+        }
+        return length;
+    }
+
+    /**
+     * Copy the live records of every segment into a new segment and delete
+     * the old segments. The store does this by itself, in the background,
+     * when most of its full segments are dead.
+     *
+     * The records are copied without holding up gets, puts and removes,
+     * which go to a segment started for them; a record they overwrite or
+     * remove in the meantime is not carried over.
+     *
+     * @throws IOException if a segment cannot be read, written or deleted
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            long now = System.currentTimeMillis();
+            long target;
+            Map<Long, FileChannel> old = new HashMap<>();
+            Map<String, Location> live = new HashMap<>();
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                compacting = true;
+                target = activeSegment + 1;
+                for (Map.Entry<Long, Segment> segment : segments.entrySet()) {
+                    old.put(segment.getKey(), segment.getValue().channel);
+                }
+                Iterator<Map.Entry<String, Location>> entries = index.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Location> entry = entries.next();
+                    if (entry.getValue().expiresAt <= now) {
+                        entries.remove();
+                    } else {
+                        live.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                /* new records go after the copies, so that they win when the store is loaded */
+                startSegment(target + 1);
+            }
+
+            Segment copy = new Segment(open(segmentFile(target)));
+            Map<String, Location> copies = new HashMap<>();
+            try {
+                copyRecords(live, old, copy, target, copies);
+            } catch (IOException e) {
+                copy.channel.close();
+                segmentFile(target).delete();
+                synchronized (this) {
+                    compacting = false;
+                    if (closed) {
+                        return;
+                    }
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                compacting = false;
+                if (closed) {
+                    copy.channel.close();
+                    return;
+                }
+                for (Map.Entry<String, Location> entry : copies.entrySet()) {
+                    if (index.get(entry.getKey()) == live.get(entry.getKey())) {
+                        Location location = entry.getValue();
+                        index.put(entry.getKey(), location);
+                        copy.liveBytes += location.size;
+                        copy.latestExpiry = Math.max(copy.latestExpiry, location.expiresAt);
+                    }
+                }
+                segments.put(target, copy);
+                for (long segment : old.keySet()) {
+                    segments.remove(segment).channel.close();
+                    File file = segmentFile(segment);
+                    if (!file.delete()) {
+                        throw new IOException("cannot delete " + file);
+                    }
+                }
+                scheduleCompaction(now);
+            }
+        }
+    }
+
+    /**
+     * Copy records, as they are, from segments that are no longer written
+     * to into a segment that is not yet in segments. Touches no field that
+     * this guards.
+     *
+     * @param records  the records to copy, by key
+     * @param channels the segments the records are in, by number
+     * @param copy     the segment to copy them into
+     * @param number   the number copy will have
+     * @param copies   where to put the location of each copy, by key
+     * @throws IOException if a segment cannot be read or written
+     */
+    private static void copyRecords(Map<String, Location> records, Map<Long, FileChannel> channels,
+                                    Segment copy, long number, Map<String, Location> copies)
+        throws IOException {
+        for (Map.Entry<String, Location> entry : records.entrySet()) {
+            Location location = entry.getValue();
+            FileChannel channel = channels.get(location.segment);
+            ByteBuffer record = ByteBuffer.allocate(location.size);
+            while (record.hasRemaining()) {
+                if (channel.read(record, location.offset + record.position()) < 0) {
+                    throw new IOException("segment " + location.segment + " is truncated");
+                }
+            }
+            record.flip();
+            while (record.hasRemaining()) {
+                copy.channel.write(record, copy.length + record.position());
+            }
+            copies.put(entry.getKey(), new Location(number, copy.length, location.size, location.expiresAt));
+            copy.length += location.size;
+        }
+        copy.channel.force(false);
+    }
+
+    /**
+     * Write everything to disk and close the segment files.
+     * The store must not be used afterwards.
+     *
+     * @throws IOException if a segment cannot be written or closed
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+        segments.get(activeSegment).channel.force(false);
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+            segment.map = null;
+        }
+    }
+
+    private Location append(String key, byte[] value, long expiresAt) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? TOMBSTONE : value.length;
+        int size = HEADER + keyBytes.length + Math.max(0, valueLength);
+
+        Segment active = segments.get(activeSegment);
+        if (active.length > 0 && active.length + size > segmentSize) {
+            startSegment(activeSegment + 1);
+            active = segments.get(activeSegment);
+            scheduleCompaction(System.currentTimeMillis());
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(0);
+        record.putInt(keyBytes.length);
+        record.putInt(valueLength);
+        record.putLong(expiresAt);
+        record.put(keyBytes);
+        if (value != null) {
+            record.put(value);
+        }
+        record.putInt(0, crc(record, size));
+        record.flip();
+
+        long offset = active.length;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.length += size;
+        active.liveBytes += size;
+        active.latestExpiry = Math.max(active.latestExpiry, expiresAt);
+        return new Location(activeSegment, offset, size, expiresAt);
+    }
+
+    private ByteBuffer read(Location location) throws IOException {
+        Segment segment = segments.get(location.segment);
+        if (location.segment == activeSegment) {
+            ByteBuffer record = ByteBuffer.allocate(location.size);
+            while (record.hasRemaining()) {
+                if (segment.channel.read(record, location.offset + record.position()) < 0) {
+                    throw new IOException("segment " + location.segment + " is truncated");
+                }
+            }
+            record.flip();
+            return record;
+        }
+
+        if (segment.map == null) {
+            segment.map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+        }
+        ByteBuffer record = segment.map.duplicate();
+        record.position((int) location.offset);
+        record.limit((int) location.offset + location.size);
+        return record.slice();
+    }
+
+    /**
+     * Add the records of a segment to the index, and cut the segment off
+     * after its last intact record
+     */
+    private void load(long number) throws IOException {
+        Segment segment = segments.get(number);
+        FileChannel channel = segment.channel;
+        long length = channel.size();
+        long now = System.currentTimeMillis();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long offset = 0;
+
+        while (offset + HEADER <= length) {
+            header.clear();
+            channel.read(header, offset);
+            int keyLength = header.getInt(Integer.BYTES);
+            int valueLength = header.getInt(Integer.BYTES * 2);
+            long expiresAt = header.getLong(Integer.BYTES * 3);
+            if (keyLength < 0 || valueLength < TOMBSTONE) {
+                break;
+            }
+            long size = (long) HEADER + keyLength + Math.max(0, valueLength);
+            if (offset + size > length) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate((int) size);
+            channel.read(record, offset);
+            if (record.getInt(0) != crc(record, (int) size)) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            record.position(HEADER);
+            record.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+            Location old = index.remove(key);
+            if (old != null) {
+                segments.get(old.segment).liveBytes -= old.size;
+            }
+            if (valueLength != TOMBSTONE && expiresAt > now) {
+                index.put(key, new Location(number, offset, (int) size, expiresAt));
+                segment.liveBytes += size;
+                segment.latestExpiry = Math.max(segment.latestExpiry, expiresAt);
+            }
+            offset += size;
+        }
+
+        if (offset < length) {
+            channel.truncate(offset);
+        }
+        segment.length = offset;
+    }
+
+    private void forget(String key, Location location) {
+        index.remove(key);
+        markDead(location);
+    }
+
+    private void markDead(Location location) {
+        segments.get(location.segment).liveBytes -= location.size;
+        if (location.segment != activeSegment) {
+            scheduleCompaction(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Queue a compaction for the background thread if more than half of
+     * the bytes of the full segments are dead; otherwise make sure this is
+     * checked again when the next full segment times out as a whole
+     */
+    private void scheduleCompaction(long now) {
+        if (closed || compacting || compactionQueued) {
+            return;
+        }
+        if (mostlyDead(now)) {
+            compactionQueued = true;
+            COMPACTOR.execute(this::compactInBackground);
+            return;
+        }
+
+        long next = Long.MAX_VALUE;
+        for (Segment segment : segments.headMap(activeSegment).values()) {
+            if (segment.latestExpiry > now) {
+                next = Math.min(next, segment.latestExpiry);
+            }
+        }
+        if (next != Long.MAX_VALUE && (check == null || next < checkAt)) {
+            if (check != null) {
+                check.cancel(false);
+            }
+            checkAt = next;
+            check = COMPACTOR.schedule(this::checkInBackground, next - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean mostlyDead(long now) {
+        long fullBytes = 0;
+        long deadBytes = 0;
+        for (Segment segment : segments.headMap(activeSegment).values()) {
+            fullBytes += segment.length;
+            deadBytes += segment.deadBytes(now);
+        }
+        return deadBytes * 2 > fullBytes;
+    }
+
+    private synchronized void checkInBackground() {
+        check = null;
+        scheduleCompaction(System.currentTimeMillis());
+    }
+
+    private void compactInBackground() {
+        synchronized (this) {
+            compactionQueued = false;
+            if (closed || !mostlyDead(System.currentTimeMillis())) {
+                return;
+            }
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void startSegment(long segment) throws IOException {
+        segments.put(segment, new Segment(open(segmentFile(segment))));
+        activeSegment = segment;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%016d", segment) + SUFFIX);
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static int crc(ByteBuffer record, int size) {
+        CRC32 crc = new CRC32();
+        ByteBuffer body = record.duplicate();
+        body.position(Integer.BYTES);
+        body.limit(size);
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
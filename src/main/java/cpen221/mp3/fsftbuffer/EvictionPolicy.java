@@ -0,0 +1,58 @@
+package cpen221.mp3.fsftbuffer;
+
+/**
+ * Decides which object a full FSFTBuffer removes to make room for a new one.
+ *
+ * The buffer tells its policy about every object that enters, is used in,
+ * or leaves the buffer, and asks the policy for a victim when it is full.
+ * Ids passed to a policy are always ids of objects that are in the buffer,
+ * apart from the id passed to recordInsert, which has just been added.
+ *
+ * A policy belongs to exactly one buffer and is only called while that
+ * buffer's lock is held, so implementations need not be thread safe.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Creates a policy for a buffer of a given capacity.
+     */
+    @FunctionalInterface
+    interface Factory {
+
+        /**
+         * @param capacity the number of objects the buffer can hold, > 0
+         * @return a new policy with no recorded objects
+         */
+        EvictionPolicy create(int capacity);
+    }
+
+    /**
+     * Record that an object was added to the buffer
+     *
+     * @param id the id of the object
+     */
+    void recordInsert(String id);
+
+    /**
+     * Record that an object in the buffer was retrieved, touched or updated
+     *
+     * @param id the id of the object
+     */
+    void recordAccess(String id);
+
+    /**
+     * Record that an object left the buffer for any reason
+     *
+     * @param id the id of the object
+     */
+    void recordRemoval(String id);
+
+    /**
+     * Requires that at least one object is recorded.
+     * Does not forget the victim; the buffer calls recordRemoval when it
+     * removes it.
+     *
+     * @return the id of the object that should be removed next
+     */
+    String victim();
+}
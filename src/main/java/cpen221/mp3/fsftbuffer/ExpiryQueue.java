@@ -0,0 +1,117 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.util.function.Consumer;
+
+/**
+ * An intrusive deadline queue: entries are kept in non-decreasing order of
+ * deadline so that the entries that have expired are always a prefix of
+ * the queue.
+ *
+ * Within one buffer every deadline is "time of last use + timeout", so new
+ * deadlines are never earlier than the ones already queued and add() is an
+ * O(1) append. Removing all expired entries costs O(expired).
+ *
+ * ExpiryQueue is not thread safe; it is guarded by the lock of the buffer
+ * that owns it.
+ */
+final class ExpiryQueue<E extends ExpiryQueue.Entry> {
+
+    /**
+     * The links an object needs to be placed in an ExpiryQueue.
+     * An entry can be in at most one queue at a time.
+     */
+    static class Entry {
+        long deadline;
+        Entry prevExpiry;
+        Entry nextExpiry;
+    }
+
+    private final Entry head;
+
+    /*
+        Abstraction Function:
+            the entries reachable from head.nextExpiry up to (but not including) head represent
+                the queue, earliest deadline first
+
+        Representation Invariant:
+            head is non-null and the list through head is circular
+
+            for every entry e in the list other than the last, e.deadline <= e.nextExpiry.deadline
+     */
+
+    ExpiryQueue() {
+        head = new Entry();
+        head.prevExpiry = head;
+        head.nextExpiry = head;
+    }
+
+    /**
+     * Adds e to the queue
+     *
+     * @param e an entry that is not in any queue
+     * @param deadline the time (in milli-seconds) at which e expires
+     */
+    void add(E e, long deadline) {
+        e.deadline = deadline;
+
+        // deadlines almost always arrive in order, so this walk is normally empty
+        Entry after = head.prevExpiry;
+        while (after != head && after.deadline > deadline) {
+            after = after.prevExpiry;
+        }
+
+        e.prevExpiry = after;
+        e.nextExpiry = after.nextExpiry;
+        after.nextExpiry.prevExpiry = e;
+        after.nextExpiry = e;
+    }
+
+    /**
+     * Removes e from the queue
+     *
+     * @param e an entry that is in this queue
+     */
+    void remove(E e) {
+        e.prevExpiry.nextExpiry = e.nextExpiry;
+        e.nextExpiry.prevExpiry = e.prevExpiry;
+        e.prevExpiry = null;
+        e.nextExpiry = null;
+    }
+
+    /**
+     * Moves e to the position for a new deadline
+     *
+     * @param e an entry that is in this queue
+     * @param deadline the new time (in milli-seconds) at which e expires
+     */
+    void reschedule(E e, long deadline) {
+        remove(e);
+        add(e, deadline);
+    }
+
+    /**
+     * Removes every entry whose deadline is at or before now, earliest first
+     *
+     * @param now the current time in milli-seconds
+     * @param onExpired called with each removed entry
+     * @return the number of entries removed
+     */
+    @SuppressWarnings("unchecked")
+    int expire(long now, Consumer<E> onExpired) {
+        int expired = 0;
+        while (head.nextExpiry != head && head.nextExpiry.deadline <= now) {
+            E e = (E) head.nextExpiry;
+            remove(e);
+            onExpired.accept(e);
+            expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * @return true if there are no entries in the queue
+     */
+    boolean isEmpty() {
+        return head.nextExpiry == head;
+    }
+}
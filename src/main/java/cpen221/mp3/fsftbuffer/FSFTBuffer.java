@@ -1,10 +1,13 @@
 package cpen221.mp3.fsftbuffer;
 
-import java.util.*;
-import java.util.Collections;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-public class FSFTBuffer<T extends Bufferable> {
+public class FSFTBuffer<T extends Bufferable> implements Cache<T> {
 
     /* the default buffer size is 32 objects */
     public static final int DSIZE = 32;
@@ -12,49 +15,102 @@ public class FSFTBuffer<T extends Bufferable> {
     /* the default timeout value is 3600s */
     public static final int DTIMEOUT = 3600;
 
-    private final List<T> bufferList;
+    /* one daemon thread shared by every buffer that has a background sweeper */
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "FSFTBuffer-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private final Map<String, Long> timeMap;
+    /**
+     * A slot of the buffer, queued by deadline in the buffer's ExpiryQueue.
+     */
+    private static final class Node<T> extends ExpiryQueue.Entry {
+        final String id;
+        T value;
+        long weight;
+
+        Node(String id, T value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Node<T>> index;
+
+    private final ExpiryQueue<Node<T>> expiryQueue;
+
+    private final EvictionPolicy policy;
 
     private final int capacity, timeout;
 
+    private final Weigher<? super T> weigher;
+
+    private final RemovalListener<? super T> removalListener;
+
+    private final long maxWeight, maxEntryWeight;
+
+    private long totalWeight;
+
+    private ScheduledFuture<?> sweeper;
+
     /*
         Abstraction Function:
-            bufferList represents the finite-space finite-time buffer such that bufferList[i] is less
-                recently used than bufferList[i+1].
+            the values of the nodes in index represent the finite-space finite-time buffer, and
+                index maps the id of each object in the buffer to the node holding that object
 
-            timeMap contains the mapping between the id of each object in the bufferList and
-                the time (in milli-seconds) when that object was added to the bufferList.
+            node.deadline is the time (in milli-seconds) when the node's object times out, i.e.
+                timeout seconds after it was added to the buffer or last touched
+
+            expiryQueue orders the nodes of the buffer by deadline
+
+            policy chooses which object is removed when the buffer is full
+
+            sweeper is the scheduled background clean up of this buffer, or null if there is none
 
             capacity represents the total number of objects that the buffer can hold
 
             timeout represents the time (in seconds) that any unused object will be retained for
 
+            weigher gives the weight of each object, and node.weight is the weight of node.value
+
+            maxWeight represents the total weight of objects that the buffer can hold, and
+                maxEntryWeight the largest weight a single object may have to be held at all
+
+            totalWeight is the sum of the weights of the objects in the buffer
+
+            removalListener is told about each object the buffer stops holding
+
         Representation Invariant:
-            bufferList should be non-null and each object in bufferList should be non-null
+            index, expiryQueue and policy are non-null, and the value of every node in index is non-null
 
-            for every object O in bufferList, timeMap must contain key of O.id()
+            for every (id, n) pair in index, n.id equals id and n.value.id()
 
-            the size of bufferList must equal the size of timeMap, and both the sizes must be
-                less than or equal to capacity
+            the size of index must be less than or equal to capacity
 
-            for every (id, time of Addition) pair in timeMap, current time < time of Addition + timeout * 1000
+            expiryQueue contains exactly the nodes in index, and policy has recorded exactly their ids
 
-            for every legal value of i, timeMap maps bufferList[i].id() to a time that is less than or
-                before the time that timeMap maps bufferList[i+1].id() to. This is because bufferList[i]
-                is less recently used than bufferList[i+1].
+            for every node n in index, current time < n.deadline
 
             capacity and timeout must both be positive integers
 
+            weigher and removalListener are non-null and 0 <= maxEntryWeight <= maxWeight
+
+            totalWeight equals the sum of n.weight over the nodes n in index, and
+                totalWeight <= maxWeight
+
+            for every node n in index, n.weight <= maxEntryWeight
+
         Thread Safety Argument:
             This class is thread safe as it's immutable:
-                - bufferList, timeMap, capacity, and timeout are final variables
-                - bufferList and timeMap are mutable but are encapsulated in FSFTBuffer object and
-                  are never exposed to client
-
-            bufferList and timeMap point to threadsafe list and map data types
+                - index, expiryQueue, policy, capacity, timeout, weigher, removalListener,
+                  maxWeight and maxEntryWeight are final variables
+                - index, expiryQueue, policy and the nodes are mutable but are encapsulated in
+                  FSFTBuffer object and are never exposed to client
 
             all access to these variables happen within FSFTBuffer methods, which are guarded by FSFTBuffer's lock
+
+            the sweeper thread only calls cleanUp(), which takes the same lock
      */
 
 
@@ -68,36 +124,34 @@ public class FSFTBuffer<T extends Bufferable> {
         if (!debug)
             return;
 
-        assert bufferList != null;
+        assert index != null && expiryQueue != null && policy != null;
 
-        for (T entry : bufferList) {
-            assert entry != null;
-            assert timeMap.containsKey(entry.id());
+        long currentTime = System.currentTimeMillis();
+        long weight = 0;
+        for (Map.Entry<String, Node<T>> entry : index.entrySet()) {
+            Node<T> node = entry.getValue();
+            assert node.value != null;
+            assert node.id.equals(entry.getKey());
+            assert node.id.equals(node.value.id());
+            assert currentTime < node.deadline;
+            assert node.weight <= maxEntryWeight;
+            weight += node.weight;
         }
 
-        assert bufferList.size() == timeMap.size();
+        assert weight == totalWeight && totalWeight <= maxWeight;
 
-        assert bufferList.size() <= capacity;
+        assert weigher != null && 0 <= maxEntryWeight && maxEntryWeight <= maxWeight;
 
-        long currentTime = System.currentTimeMillis();
-        for (Long time : timeMap.values()) {
-            assert  currentTime < time + timeout * 1000;
-        }
+        assert !index.isEmpty() || expiryQueue.isEmpty();
 
-        for (int i = 0; i < bufferList.size() - 1; i++) {
-            T thisEntry = bufferList.get(i);
-            T nextEntry = bufferList.get(i+1);
-            Long thisEntryTime = timeMap.get(thisEntry.id());
-            Long nextEntryTime = timeMap.get(nextEntry.id());
-            assert thisEntryTime <= nextEntryTime;
-        }
+        assert index.size() <= capacity;
 
         assert capacity > 0 && timeout > 0;
 
     }
 
-    /* Variable to control checkRep invoking */
-    static boolean debug = true;
+    /* Variable to control checkRep invoking; checkRep walks the whole buffer, so it only runs with -ea */
+    static boolean debug = FSFTBuffer.class.desiredAssertionStatus();
 
     /**
      * Create a buffer with a fixed capacity and a timeout value.
@@ -109,10 +163,33 @@ public class FSFTBuffer<T extends Bufferable> {
      *                 be in the buffer before it times out
      */
     public FSFTBuffer(int capacity, int timeout) {
-        this.capacity = capacity;
-        this.timeout = timeout;
-        bufferList = Collections.synchronizedList(new ArrayList<>());
-        timeMap = new ConcurrentHashMap<>();  //supposed to be a better implementation than Collections.synchronizedMap
+        this(capacity, timeout, LruPolicy::new);
+    }
+
+    /**
+     * Create a buffer with a fixed capacity, a timeout value and a policy
+     * that chooses which object to remove when the buffer is full.
+     *
+     * @param capacity the number of objects the buffer can hold
+     * @param timeout  the duration, in seconds, an object should
+     *                 be in the buffer before it times out
+     * @param policy   creates the eviction policy of this buffer,
+     *                 e.g. LruPolicy::new or WTinyLfuPolicy::new
+     */
+    public FSFTBuffer(int capacity, int timeout, EvictionPolicy.Factory policy) {
+        this(new Builder<T>().capacity(capacity).timeout(timeout).policy(policy));
+    }
+
+    private FSFTBuffer(Builder<T> builder) {
+        capacity = builder.capacity;
+        timeout = builder.timeout;
+        policy = builder.policy.create(capacity);
+        weigher = builder.weigher;
+        removalListener = builder.removalListener;
+        maxWeight = builder.maxWeight;
+        maxEntryWeight = (long) (builder.maxWeight * builder.maxEntryFraction);
+        index = new HashMap<>();
+        expiryQueue = new ExpiryQueue<>();
 
         checkRep();
     }
@@ -126,27 +203,40 @@ public class FSFTBuffer<T extends Bufferable> {
 
     /**
      * Add a value to the buffer.
-     * If the buffer is full then remove the least recently accessed
-     * object to make room for the new object.
+     * If the buffer is full, or would go over its maximum weight, then
+     * remove objects chosen by the eviction policy (by default the least
+     * recently accessed object) to make room for the new object.
+     *
+     * @return true if t was added, and false if an object with the same id
+     * is already in the buffer or t is heavier than a single object may be
      */
+    @Override
     public synchronized boolean put(T t) {
-        evictEntries();
+        long now = System.currentTimeMillis();
+        evictEntries(now);
         checkRep();
 
-        if(timeMap.containsKey(t.id())) {
+        if (index.containsKey(t.id())) {
+            return false;
+        }
+
+        long weight = weigher.weigh(t);
+        if (weight > maxEntryWeight) {
             return false;
         }
 
-        if (bufferList.size() == capacity) {
-            T removalEntry = bufferList.get(0);
-            bufferList.remove(removalEntry);
-            timeMap.remove(removalEntry.id());
+        if (index.size() == capacity) {
+            removeNode(index.get(policy.victim()));
         }
+        makeRoomFor(weight);
 
-        timeMap.put(t.id(), System.currentTimeMillis());
-        bufferList.add(t);
+        Node<T> node = new Node<>(t.id(), t);
+        node.weight = weight;
+        index.put(node.id, node);
+        totalWeight += weight;
+        policy.recordInsert(node.id);
+        expiryQueue.add(node, now + timeout * 1000L);
 
-        evictEntries();
         checkRep();
         return true;
     }
@@ -156,47 +246,22 @@ public class FSFTBuffer<T extends Bufferable> {
      * @return the object that matches the identifier from the
      * buffer
      */
-    public synchronized T get(String id) throws IllegalAccessException{
-        evictEntries();
+    @Override
+    public synchronized T get(String id) throws IllegalAccessException {
+        long now = System.currentTimeMillis();
+        evictEntries(now);
         checkRep();
 
-        if (!touch(id)) {
+        Node<T> node = index.get(id);
+        if (node == null) {
             throw new IllegalAccessException("The entry you want to access is not in the cache");
         }
+        refresh(node, now);
 
-        evictEntries();
         checkRep();
-        return getEntryFromID(id);
-    }
-
-    /**
-     * Requires that the Bufferable object with identifier id is located in the bufferList
-     *
-     * @param id the indentifier of the Bufferable object
-     * @return the corresponding Bufferable object with id that is placed in bufferList
-     */
-    private T getEntryFromID(String id) {
-        int index = getListIndexFromID(id);
-        return bufferList.get(index);
-    }
-
-    /**
-     * Requires that the Bufferable object with identifier id is located in the bufferList
-     *
-     * @param id the indentifier of the Bufferable object
-     * @return the index at which the Bufferable object is placed in bufferList
-     */
-    private int getListIndexFromID(String id) {
-        int index = 0;
-        for (T entry : bufferList) {
-            if (entry.id().equals(id)) {
-                index = bufferList.indexOf(entry);
-            }
-        }
-        return index;
+        return node.value;
     }
 
-
     /**
      * Update the last refresh time for the object with the provided id.
      * This method is used to mark an object as "not stale" so that its
@@ -205,20 +270,18 @@ public class FSFTBuffer<T extends Bufferable> {
      * @param id the identifier of the object to "touch"
      * @return true if successful and false otherwise
      */
+    @Override
     public synchronized boolean touch(String id) {
-        evictEntries();
+        long now = System.currentTimeMillis();
+        evictEntries(now);
         checkRep();
 
-        if (!timeMap.containsKey(id)) {
+        Node<T> node = index.get(id);
+        if (node == null) {
             return false;
         }
-        timeMap.put(id, System.currentTimeMillis());
+        refresh(node, now);
 
-        T entryToRetrieve = getEntryFromID(id);
-        bufferList.remove(entryToRetrieve);
-        bufferList.add(entryToRetrieve);
-
-        evictEntries();
         checkRep();
         return true;
     }
@@ -226,43 +289,270 @@ public class FSFTBuffer<T extends Bufferable> {
     /**
      * Update an object in the buffer.
      * This method updates an object and acts like a "touch" to
-     * renew the object in the cache.
+     * renew the object in the cache. If the new object is heavier, other
+     * objects (or, if there are none left, the object itself) may be
+     * removed to keep the buffer within its maximum weight; if it is
+     * heavier than a single object may be, the old object is removed and t
+     * is not added.
      *
      * @param t the object to update
      * @return true if successful and false otherwise
      */
+    @Override
     public synchronized boolean update(T t) {
-        evictEntries();
+        long now = System.currentTimeMillis();
+        evictEntries(now);
         checkRep();
 
-        if (!touch(t.id())) {
+        Node<T> node = index.get(t.id());
+        if (node == null) {
+            return false;
+        }
+
+        long weight = weigher.weigh(t);
+        if (weight > maxEntryWeight) {
+            removeNode(node);
+            checkRep();
             return false;
         }
 
-        int index = getListIndexFromID(t.id());
-        bufferList.set(index, t);
+        T old = node.value;
+        node.value = t;
+        totalWeight += weight - node.weight;
+        node.weight = weight;
+        refresh(node, now);
+        removalListener.onRemoval(old);
+
+        // the refreshed node is the one the policy is least likely to pick, but it may be
+        // the only one left
+        makeRoomFor(0);
 
-        evictEntries();
         checkRep();
         return true;
     }
 
     /**
-     * Evicts objects that have passed the timeout from the bufferList
+     * Remove every object that has passed the timeout from the buffer.
+     * Expired objects are otherwise only removed when the buffer is next
+     * accessed, so this lets an idle buffer release them.
      */
-    private synchronized void evictEntries() {
-        Long currentTime = System.currentTimeMillis();
-        List<String> ids = new LinkedList<>();
-        for (String id : timeMap.keySet()) {
-            Long entryTime = timeMap.get(id);
-            if (currentTime - entryTime>= timeout * 1000) {
-                ids.add(id);
-            }
+    @Override
+    public synchronized void cleanUp() {
+        evictEntries(System.currentTimeMillis());
+        checkRep();
+    }
+
+    /**
+     * Start calling cleanUp() in the background every period milli-seconds.
+     * Replaces any sweeper that was already running for this buffer.
+     *
+     * @param period the time, in milli-seconds, between two clean ups;
+     *               must be positive
+     */
+    public synchronized void startSweeper(long period) {
+        stopSweeper();
+        sweeper = SWEEPER.scheduleWithFixedDelay(this::cleanUp, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background sweeper of this buffer, if there is one.
+     */
+    public synchronized void stopSweeper() {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Records a use of node and restarts its timeout
+     *
+     * @param node a node that is currently in the buffer
+     * @param now the current time in milli-seconds
+     */
+    private void refresh(Node<T> node, long now) {
+        policy.recordAccess(node.id);
+        expiryQueue.reschedule(node, now + timeout * 1000L);
+    }
+
+    /**
+     * Removes objects chosen by the eviction policy until an object of a
+     * given weight can be added without going over the maximum weight
+     *
+     * @param weight the weight that has to fit, <= maxEntryWeight
+     */
+    private void makeRoomFor(long weight) {
+        while (totalWeight + weight > maxWeight) {
+            removeNode(index.get(policy.victim()));
+        }
+    }
+
+    /**
+     * Removes node from the buffer
+     *
+     * @param node a node that is currently in the buffer
+     */
+    private void removeNode(Node<T> node) {
+        expiryQueue.remove(node);
+        forget(node);
+    }
+
+    /**
+     * Removes node from the index and the eviction policy; the caller
+     * takes care of the expiry queue
+     *
+     * @param node a node that is currently in the buffer
+     */
+    private void forget(Node<T> node) {
+        index.remove(node.id);
+        totalWeight -= node.weight;
+        policy.recordRemoval(node.id);
+        removalListener.onRemoval(node.value);
+    }
+
+    /**
+     * Evicts objects that have passed the timeout from the buffer.
+     * The expiry queue hands back only the expired objects, so this costs
+     * O(expired) rather than O(size).
+     *
+     * @param now the current time in milli-seconds
+     */
+    private void evictEntries(long now) {
+        expiryQueue.expire(now, this::forget);
+    }
+
+    /**
+     * @return the sum of the weights of the objects in the buffer
+     */
+    public synchronized long weight() {
+        return totalWeight;
+    }
+
+    /**
+     * Builds an FSFTBuffer, for when more than the capacity and timeout
+     * need to be chosen.
+     *
+     * @param <T> the type of objects held in the buffer
+     */
+    public static class Builder<T extends Bufferable> {
+        private int capacity = DSIZE;
+        private int timeout = DTIMEOUT;
+        private EvictionPolicy.Factory policy = LruPolicy::new;
+        private Weigher<? super T> weigher = t -> 0;
+        private long maxWeight = Long.MAX_VALUE;
+        private double maxEntryFraction = 1.0;
+        private RemovalListener<? super T> removalListener = t -> { };
+
+        /**
+         * @param capacity the number of objects the buffer can hold, > 0
+         * @return this builder
+         */
+        public Builder<T> capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param timeout the duration, in seconds, an object should
+         *                be in the buffer before it times out, > 0
+         * @return this builder
+         */
+        public Builder<T> timeout(int timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * @param policy creates the eviction policy of the buffer
+         * @return this builder
+         */
+        public Builder<T> policy(EvictionPolicy.Factory policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        /**
+         * Bound the total weight of the objects in the buffer, in addition
+         * to their number.
+         *
+         * @param maxWeight the total weight the buffer can hold, >= 0
+         * @param weigher   gives the weight of each object
+         * @return this builder
+         */
+        public Builder<T> maximumWeight(long maxWeight, Weigher<? super T> weigher) {
+            this.maxWeight = maxWeight;
+            this.weigher = weigher;
+            return this;
+        }
+
+        /**
+         * Refuse objects that would take up more than a fraction of the
+         * maximum weight on their own. Defaults to 1.0.
+         *
+         * @param fraction the largest share of the maximum weight a single
+         *                 object may have, between 0 and 1
+         * @return this builder
+         */
+        public Builder<T> maxEntryFraction(double fraction) {
+            this.maxEntryFraction = fraction;
+            return this;
+        }
+
+        /**
+         * @param listener told about every object the buffer stops holding
+         * @return this builder
+         */
+        public Builder<T> removalListener(RemovalListener<? super T> listener) {
+            this.removalListener = listener;
+            return this;
+        }
+
+        /**
+         * @return a new empty buffer with this builder's settings
+         */
+        public FSFTBuffer<T> build() {
+            return new FSFTBuffer<>(this);
+        }
+
+        /**
+         * @param segments the number of segments, rounded up to a power of two,
+         *                 but no more than the capacity
+         * @return a new empty segmented cache with this builder's settings,
+         * whose capacity and maximum weight are split between its segments;
+         * the maximum entry fraction is of the whole maximum weight, but no
+         * object may weigh more than one segment's share
+         */
+        public SegmentedFSFTBuffer<T> buildSegmented(int segments) {
+            return new SegmentedFSFTBuffer<>(this, segments);
+        }
+
+        Builder<T> copy() {
+            Builder<T> copy = new Builder<>();
+            copy.capacity = capacity;
+            copy.timeout = timeout;
+            copy.policy = policy;
+            copy.weigher = weigher;
+            copy.maxWeight = maxWeight;
+            copy.maxEntryFraction = maxEntryFraction;
+            copy.removalListener = removalListener;
+            return copy;
+        }
+
+        Builder<T> maximumWeightOnly(long maxWeight) {
+            this.maxWeight = maxWeight;
+            return this;
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        long maxWeight() {
+            return maxWeight;
         }
 
-        for (String id : ids) {
-            timeMap.remove(id);
-            bufferList.removeIf(entry -> entry.id().equals(id));
+        double maxEntryFraction() {
+            return maxEntryFraction;
         }
     }
 }
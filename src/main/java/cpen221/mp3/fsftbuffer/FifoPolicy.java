@@ -0,0 +1,40 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Evicts the object that was added to the buffer first, however
+ * recently it has been used.
+ */
+public class FifoPolicy implements EvictionPolicy {
+
+    /* ids in order of insertion, oldest first */
+    private final Set<String> order;
+
+    /**
+     * @param capacity the number of objects the buffer can hold
+     */
+    public FifoPolicy(int capacity) {
+        order = new LinkedHashSet<>();
+    }
+
+    @Override
+    public void recordInsert(String id) {
+        order.add(id);
+    }
+
+    @Override
+    public void recordAccess(String id) {
+    }
+
+    @Override
+    public void recordRemoval(String id) {
+        order.remove(id);
+    }
+
+    @Override
+    public String victim() {
+        return order.iterator().next();
+    }
+}
@@ -0,0 +1,76 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Evicts the least frequently used object, breaking ties by evicting the
+ * one that reached its frequency first. An object's frequency counts its
+ * insertion and every access since; it is forgotten when the object
+ * leaves the buffer.
+ */
+public class LfuPolicy implements EvictionPolicy {
+
+    private final Map<String, Integer> frequencies;
+
+    private final TreeMap<Integer, Set<String>> buckets;
+
+    /*
+        Abstraction Function:
+            frequencies maps the id of each object in the buffer to its number of uses
+
+            buckets maps each frequency f to the ids with frequency f, in the order in
+                which they reached f
+
+        Representation Invariant:
+            id is in buckets.get(f) if and only if frequencies maps id to f
+
+            no set in buckets is empty
+     */
+
+    /**
+     * @param capacity the number of objects the buffer can hold
+     */
+    public LfuPolicy(int capacity) {
+        frequencies = new HashMap<>();
+        buckets = new TreeMap<>();
+    }
+
+    @Override
+    public void recordInsert(String id) {
+        frequencies.put(id, 1);
+        buckets.computeIfAbsent(1, f -> new LinkedHashSet<>()).add(id);
+    }
+
+    @Override
+    public void recordAccess(String id) {
+        int frequency = frequencies.get(id);
+        removeFromBucket(id, frequency);
+        frequencies.put(id, frequency + 1);
+        buckets.computeIfAbsent(frequency + 1, f -> new LinkedHashSet<>()).add(id);
+    }
+
+    @Override
+    public void recordRemoval(String id) {
+        Integer frequency = frequencies.remove(id);
+        if (frequency != null) {
+            removeFromBucket(id, frequency);
+        }
+    }
+
+    @Override
+    public String victim() {
+        return buckets.firstEntry().getValue().iterator().next();
+    }
+
+    private void removeFromBucket(String id, int frequency) {
+        Set<String> bucket = buckets.get(frequency);
+        bucket.remove(id);
+        if (bucket.isEmpty()) {
+            buckets.remove(frequency);
+        }
+    }
+}
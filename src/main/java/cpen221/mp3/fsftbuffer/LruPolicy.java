@@ -0,0 +1,40 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used object.
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    /* ids in order of last use, least recently used first */
+    private final Map<String, Boolean> order;
+
+    /**
+     * @param capacity the number of objects the buffer can hold
+     */
+    public LruPolicy(int capacity) {
+        order = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public void recordInsert(String id) {
+        order.put(id, Boolean.TRUE);
+    }
+
+    @Override
+    public void recordAccess(String id) {
+        order.get(id);
+    }
+
+    @Override
+    public void recordRemoval(String id) {
+        order.remove(id);
+    }
+
+    @Override
+    public String victim() {
+        return order.keySet().iterator().next();
+    }
+}
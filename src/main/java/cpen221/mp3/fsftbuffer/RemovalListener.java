@@ -0,0 +1,20 @@
+package cpen221.mp3.fsftbuffer;
+
+/**
+ * Is told about every object a buffer stops holding, so that resources
+ * tied to the object can be released.
+ *
+ * @param <T> the type of objects held in the buffer
+ */
+@FunctionalInterface
+public interface RemovalListener<T> {
+
+    /**
+     * Called, while the buffer's lock is held, after t has left the
+     * buffer because it timed out, was evicted, or was replaced by update.
+     * Objects that the buffer refused to hold are never passed here.
+     *
+     * @param t the object that was removed
+     */
+    void onRemoval(T t);
+}
@@ -0,0 +1,188 @@
+package cpen221.mp3.fsftbuffer;
+
+/**
+ * A Cache made of independently locked FSFTBuffer segments.
+ *
+ * Each object lives in the segment chosen by the hash of its id, so
+ * threads working on different ids rarely wait on the same lock. Every
+ * segment has its own least recently used order and an equal share, to
+ * within one, of the capacity (and of the maximum weight, if any), so the
+ * object evicted to make room is chosen from its segment rather than from
+ * the whole cache. The largest object the cache takes is still the share
+ * of its whole maximum weight set by maxEntryFraction, unless that is
+ * more than one segment can hold.
+ *
+ * @param <T> the type of objects held in the cache
+ */
+public class SegmentedFSFTBuffer<T extends Bufferable> implements Cache<T> {
+
+    private final FSFTBuffer<T>[] segments;
+
+    private final int mask;
+
+    /*
+        Abstraction Function:
+            the cache holds the union of the objects held by the buffers in segments
+
+            an object with id i is held by segments[segmentFor(i)]
+
+        Representation Invariant:
+            segments is non-null, its length is a power of two and none of its elements are null
+
+            the capacities of the segments sum to the capacity of the cache, and differ by at
+                most one
+
+            mask == segments.length - 1
+
+        Thread Safety Argument:
+            segments and mask are final and never change after construction
+
+            each segment is a thread safe FSFTBuffer guarded by its own lock, and every
+                operation on an object only touches the one segment that holds it
+     */
+
+    /**
+     * Create a segmented cache.
+     *
+     * @param capacity the number of objects the cache can hold; it is split
+     *                 as evenly as it can be between the segments
+     * @param timeout  the duration, in seconds, an object should
+     *                 be in the cache before it times out
+     * @param segments the number of segments, rounded up to a power of two,
+     *                 but no more than the capacity
+     */
+    public SegmentedFSFTBuffer(int capacity, int timeout, int segments) {
+        this(capacity, timeout, segments, LruPolicy::new);
+    }
+
+    /**
+     * Create a segmented cache whose segments use a given eviction policy.
+     *
+     * @param capacity the number of objects the cache can hold; it is split
+     *                 as evenly as it can be between the segments
+     * @param timeout  the duration, in seconds, an object should
+     *                 be in the cache before it times out
+     * @param segments the number of segments, rounded up to a power of two,
+     *                 but no more than the capacity
+     * @param policy   creates the eviction policy of each segment
+     */
+    public SegmentedFSFTBuffer(int capacity, int timeout, int segments, EvictionPolicy.Factory policy) {
+        this(new FSFTBuffer.Builder<T>().capacity(capacity).timeout(timeout).policy(policy), segments);
+    }
+
+    /**
+     * Create a segmented cache from the settings of a builder; see
+     * FSFTBuffer.Builder.buildSegmented.
+     */
+    @SuppressWarnings("unchecked")
+    SegmentedFSFTBuffer(FSFTBuffer.Builder<T> builder, int segments) {
+        int capacity = builder.capacity();
+        int count = 1;
+        while (count < segments && count * 2 <= capacity) {
+            count <<= 1;
+        }
+
+        long maxWeight = builder.maxWeight();
+        this.segments = new FSFTBuffer[count];
+        for (int i = 0; i < count; i++) {
+            /* the first capacity % count segments hold one more object, so the
+               segments hold exactly capacity between them */
+            FSFTBuffer.Builder<T> segmentBuilder = builder.copy()
+                .capacity(capacity / count + (i < capacity % count ? 1 : 0));
+            if (maxWeight != Long.MAX_VALUE) {
+                long segmentWeight = maxWeight / count + (i < maxWeight % count ? 1 : 0);
+                segmentBuilder.maximumWeightOnly(segmentWeight);
+                /* the largest object is a share of the whole cache's weight, as for an
+                   FSFTBuffer, as far as one segment can hold it */
+                if (segmentWeight > 0) {
+                    segmentBuilder.maxEntryFraction(
+                        Math.min(1.0, builder.maxEntryFraction() * maxWeight / segmentWeight));
+                }
+            }
+            this.segments[i] = segmentBuilder.build();
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Create a segmented cache with one segment per available processor.
+     *
+     * @param capacity the number of objects the cache can hold
+     * @param timeout  the duration, in seconds, an object should
+     *                 be in the cache before it times out
+     */
+    public SegmentedFSFTBuffer(int capacity, int timeout) {
+        this(capacity, timeout, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public boolean put(T t) {
+        return segmentFor(t.id()).put(t);
+    }
+
+    @Override
+    public T get(String id) throws IllegalAccessException {
+        return segmentFor(id).get(id);
+    }
+
+    @Override
+    public boolean touch(String id) {
+        return segmentFor(id).touch(id);
+    }
+
+    @Override
+    public boolean update(T t) {
+        return segmentFor(t.id()).update(t);
+    }
+
+    @Override
+    public void cleanUp() {
+        for (FSFTBuffer<T> segment : segments) {
+            segment.cleanUp();
+        }
+    }
+
+    /**
+     * Start the background sweeper of every segment.
+     *
+     * @param period the time, in milli-seconds, between two clean ups of a segment
+     */
+    public void startSweeper(long period) {
+        for (FSFTBuffer<T> segment : segments) {
+            segment.startSweeper(period);
+        }
+    }
+
+    /**
+     * Stop the background sweeper of every segment.
+     */
+    public void stopSweeper() {
+        for (FSFTBuffer<T> segment : segments) {
+            segment.stopSweeper();
+        }
+    }
+
+    /**
+     * @return the sum of the weights of the objects in the cache
+     */
+    public long weight() {
+        long weight = 0;
+        for (FSFTBuffer<T> segment : segments) {
+            weight += segment.weight();
+        }
+        return weight;
+    }
+
+    /**
+     * @return the number of segments of this cache
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    private FSFTBuffer<T> segmentFor(String id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & mask];
+    }
+}
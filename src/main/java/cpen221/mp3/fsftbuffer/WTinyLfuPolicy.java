@@ -0,0 +1,122 @@
+package cpen221.mp3.fsftbuffer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Window TinyLFU: a small LRU admission window in front of a segmented
+ * LRU main area, with a frequency sketch deciding admission to the main
+ * area.
+ *
+ * New objects enter the window. When the buffer is full, the least
+ * recently used object of the window competes with the least recently
+ * used object of the main area, and the one with the lower estimated
+ * frequency is evicted. A burst of one-off ids therefore cycles through
+ * the window without displacing objects that are used often.
+ */
+public class WTinyLfuPolicy implements EvictionPolicy {
+
+    private final Map<String, Boolean> window;
+
+    private final Map<String, Boolean> probation;
+
+    private final Map<String, Boolean> protectedArea;
+
+    private final CountMinSketch sketch;
+
+    private final int windowCapacity, protectedCapacity;
+
+    /*
+        Abstraction Function:
+            window, probation and protectedArea hold the ids of the objects in the buffer,
+                each in order of last use (least recently used first)
+
+            window holds objects that have not yet been admitted to the main area; probation
+                holds admitted objects that have not been used since admission; protectedArea
+                holds admitted objects that have been used again
+
+            sketch estimates how often each id has been inserted or accessed
+
+        Representation Invariant:
+            every id is in at most one of window, probation and protectedArea
+
+            window.size() <= windowCapacity
+
+            protectedArea.size() <= protectedCapacity
+
+            windowCapacity >= 1
+     */
+
+    /**
+     * @param capacity the number of objects the buffer can hold
+     */
+    public WTinyLfuPolicy(int capacity) {
+        window = new LinkedHashMap<>(16, 0.75f, true);
+        probation = new LinkedHashMap<>(16, 0.75f, true);
+        protectedArea = new LinkedHashMap<>(16, 0.75f, true);
+        sketch = new CountMinSketch(capacity);
+        windowCapacity = Math.max(1, capacity / 100);
+        protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+    }
+
+    @Override
+    public void recordInsert(String id) {
+        sketch.increment(id);
+        window.put(id, Boolean.TRUE);
+
+        // while the buffer still has room, the overflow of the window is admitted for free
+        while (window.size() > windowCapacity) {
+            String admitted = first(window);
+            window.remove(admitted);
+            probation.put(admitted, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void recordAccess(String id) {
+        sketch.increment(id);
+        if (window.get(id) != null || protectedArea.get(id) != null) {
+            return;
+        }
+
+        probation.remove(id);
+        protectedArea.put(id, Boolean.TRUE);
+        if (protectedArea.size() > protectedCapacity) {
+            String demoted = first(protectedArea);
+            protectedArea.remove(demoted);
+            probation.put(demoted, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void recordRemoval(String id) {
+        if (window.remove(id) == null && probation.remove(id) == null) {
+            protectedArea.remove(id);
+        }
+    }
+
+    @Override
+    public String victim() {
+        String mainVictim = !probation.isEmpty() ? first(probation) : first(protectedArea);
+
+        if (window.size() < windowCapacity || window.isEmpty()) {
+            return mainVictim != null ? mainVictim : first(window);
+        }
+
+        String candidate = first(window);
+        if (mainVictim == null) {
+            return candidate;
+        }
+
+        if (sketch.estimate(candidate) > sketch.estimate(mainVictim)) {
+            window.remove(candidate);
+            probation.put(candidate, Boolean.TRUE);
+            return mainVictim;
+        }
+        return candidate;
+    }
+
+    private static String first(Map<String, Boolean> area) {
+        return area.isEmpty() ? null : area.keySet().iterator().next();
+    }
+}
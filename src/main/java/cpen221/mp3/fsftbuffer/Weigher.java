@@ -0,0 +1,20 @@
+package cpen221.mp3.fsftbuffer;
+
+/**
+ * Computes the weight of an object held in a buffer, e.g. its size in
+ * bytes, so that a buffer can bound the total weight of its objects
+ * instead of only their number.
+ *
+ * @param <T> the type of objects weighed
+ */
+@FunctionalInterface
+public interface Weigher<T> {
+
+    /**
+     * Requires that the weight of t does not change while t is in a buffer.
+     *
+     * @param t the object to weigh
+     * @return the weight of t, >= 0
+     */
+    long weigh(T t);
+}
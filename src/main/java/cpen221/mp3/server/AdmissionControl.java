@@ -0,0 +1,173 @@
+package cpen221.mp3.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which connections and requests a WikiMediatorServer takes on,
+ * so that under overload it turns work away at once instead of letting it
+ * queue up behind everyone else's.
+ *
+ * There are three limits: on the number of open connections, on the number
+ * of requests of one client (by address) being answered at once, and on
+ * the number of requests being answered at once in all. The last one, if it
+ * is adaptive, is found by additive increase, multiplicative decrease:
+ * while requests are answered within the target latency and the limit is
+ * being used, it grows by one per limit's worth of requests, and each time
+ * a request takes longer, it is halved, at most once per target latency.
+ *
+ * AdmissionControl is thread safe.
+ */
+final class AdmissionControl {
+
+    private final int maxConnections;
+
+    private final int maxInFlightPerClient;
+
+    private final long targetLatencyNanos;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final Map<InetAddress, AtomicInteger> clients = new ConcurrentHashMap<>();
+
+    private double limit;
+
+    private int inFlight;
+
+    private long lastDecrease;
+
+    /*
+        Abstraction Function:
+            connections is the number of open connections, of at most maxConnections, and
+                clients maps each client with requests being answered to how many
+
+            if targetLatencyNanos > 0, at most floor(limit) requests are answered at once,
+                and lastDecrease is when (by System.nanoTime) limit was last cut; otherwise
+                the number is not limited
+
+            inFlight is the number of requests being answered
+
+        Representation Invariant:
+            every count in clients is positive, and at most maxInFlightPerClient
+
+            limit >= 1, and inFlight >= 0
+
+        Thread Safety Argument:
+            connections and the counts in clients are atomic, and a count is only removed
+                from clients, in compute, when it reaches zero; limit, inFlight and
+                lastDecrease are guarded by this
+     */
+
+    /**
+     * @param maxConnections       the most connections open at once
+     * @param maxInFlightPerClient the most requests of one client answered at once
+     * @param initialLimit         the most requests answered at once, to start
+     *                             with, if targetLatencyNanos > 0
+     * @param targetLatencyNanos   how long a request may take before the limit
+     *                             is cut; 0 to not limit the requests answered
+     *                             at once in all
+     */
+    AdmissionControl(int maxConnections, int maxInFlightPerClient, int initialLimit, long targetLatencyNanos) {
+        this.maxConnections = maxConnections;
+        this.maxInFlightPerClient = maxInFlightPerClient;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.limit = Math.max(1, initialLimit);
+        this.lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * @return true if a new connection may be served, in which case it must
+     * be passed to closed once it is closed
+     */
+    boolean open() {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void closed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * A request that was let in, and must be released once it is answered.
+     */
+    final class Permit {
+        private final InetAddress client;
+        private final long start = System.nanoTime();
+
+        private Permit(InetAddress client) {
+            this.client = client;
+        }
+
+        void release() {
+            clients.computeIfPresent(client, (address, count) -> count.decrementAndGet() == 0 ? null : count);
+            finished(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param client the address of the client that sent a request
+     * @return a permit to answer the request, or null if it should be
+     * rejected as overloaded
+     */
+    Permit admit(InetAddress client) {
+        if (!start()) {
+            return null;
+        }
+        boolean[] admitted = {false};
+        clients.compute(client, (address, count) -> {
+            if (count == null) {
+                count = new AtomicInteger();
+            }
+            if (count.get() < maxInFlightPerClient) {
+                count.incrementAndGet();
+                admitted[0] = true;
+            }
+            return count.get() == 0 ? null : count;
+        });
+        if (!admitted[0]) {
+            synchronized (this) {
+                inFlight--;
+            }
+            return null;
+        }
+        return new Permit(client);
+    }
+
+    private synchronized boolean start() {
+        if (targetLatencyNanos > 0 && inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    private synchronized void finished(long latencyNanos) {
+        inFlight--;
+        if (targetLatencyNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (latencyNanos > targetLatencyNanos) {
+            if (now - lastDecrease >= targetLatencyNanos) {
+                limit = Math.max(1, limit / 2);
+                lastDecrease = now;
+            }
+        } else if (inFlight + 1 >= limit / 2) {
+            limit += 1 / limit;
+        }
+    }
+
+    /**
+     * @return the most requests that are answered at once, or
+     * Integer.MAX_VALUE if that is not limited
+     */
+    synchronized int limit() {
+        return targetLatencyNanos > 0 ? (int) limit : Integer.MAX_VALUE;
+    }
+}
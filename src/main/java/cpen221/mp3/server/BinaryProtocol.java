@@ -0,0 +1,517 @@
+package cpen221.mp3.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact binary alternative to the newline-terminated JSON protocol.
+ *
+ * A client asks for it by sending MAGIC as the first bytes of a connection,
+ * which no JSON request can start with; the server sends MAGIC back, and from
+ * then on both sides send frames: a 4-byte big-endian length followed by that
+ * many bytes. Integers in a frame are zigzag varints, strings are a varint
+ * length followed by UTF-8, and lists of strings are a varint count followed
+ * by the strings.
+ *
+ * A request frame is an op code, the request's id, and the op's arguments:
+ * a query, a limit and a timeout for SEARCH, a title and a timeout for
+ * GET_PAGE, a limit for ZEITGEIST and TRENDING, and nothing for PEAK_LOAD
+ * and STOP. A timeout of NO_TIMEOUT means the request has none.
+ *
+ * A result frame is the request's id, SUCCESS or FAILED, and the value: a
+ * TEXT string, a LIST of strings or a NUMBER. The values are the same as
+ * the "response" of the JSON protocol, except that lists are not nested in
+ * a string. A text longer than TEXT_CHUNK_SIZE characters, such as a long
+ * page, is sent as TEXT_CHUNKS instead, with no value in the result frame:
+ * the text follows in frames that each hold one string of at most
+ * TEXT_CHUNK_SIZE characters, ending with a frame holding the empty string.
+ * So neither side ever holds a long text as one frame.
+ */
+public final class BinaryProtocol {
+
+    /* the first bytes of a connection that uses this protocol; ends with its version */
+    static final byte[] MAGIC = {0, 'W', 'M', 1};
+
+    /* a connection that sends a longer request is closed */
+    static final int MAX_REQUEST_BYTES = 1024 * 1024;
+
+    /* a client that is sent a longer result frame takes the connection for broken */
+    static final int MAX_RESULT_BYTES = 16 * 1024 * 1024;
+
+    /* the most characters of text sent in one frame */
+    static final int TEXT_CHUNK_SIZE = WikiMediatorServer.REPLY_CHUNK_SIZE;
+
+    static final byte SEARCH = 1;
+    static final byte GET_PAGE = 2;
+    static final byte ZEITGEIST = 3;
+    static final byte TRENDING = 4;
+    static final byte PEAK_LOAD = 5;
+    static final byte STOP = 6;
+
+    static final byte SUCCESS = 0;
+    static final byte FAILED = 1;
+
+    static final byte TEXT = 0;
+    static final byte LIST = 1;
+    static final byte NUMBER = 2;
+    static final byte TEXT_CHUNKS = 3;
+
+    public static final int NO_TIMEOUT = -1;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * A request sent with the binary protocol. Requests are immutable.
+     */
+    public static final class Request {
+        final byte op;
+        final String id;
+        final String text;
+        final int limit;
+        final int timeout;
+
+        /*
+            Abstraction Function:
+                a request with id id to do op; text is the query of a SEARCH or the title
+                of a GET_PAGE, limit is the limit of a SEARCH, ZEITGEIST or TRENDING, and
+                timeout is the timeout in seconds of a SEARCH or GET_PAGE, or NO_TIMEOUT
+
+            Representation Invariant:
+                op is one of the op codes, and id != null
+
+                text != null iff op is SEARCH or GET_PAGE
+         */
+
+        private Request(byte op, String id, String text, int limit, int timeout) {
+            this.op = op;
+            this.id = id;
+            this.text = text;
+            this.limit = limit;
+            this.timeout = timeout;
+        }
+
+        public static Request search(String id, String query, int limit) {
+            return new Request(SEARCH, id, query, limit, NO_TIMEOUT);
+        }
+
+        public static Request getPage(String id, String pageTitle) {
+            return new Request(GET_PAGE, id, pageTitle, 0, NO_TIMEOUT);
+        }
+
+        public static Request zeitgeist(String id, int limit) {
+            return new Request(ZEITGEIST, id, null, limit, NO_TIMEOUT);
+        }
+
+        public static Request trending(String id, int limit) {
+            return new Request(TRENDING, id, null, limit, NO_TIMEOUT);
+        }
+
+        public static Request peakLoad30s(String id) {
+            return new Request(PEAK_LOAD, id, null, 0, NO_TIMEOUT);
+        }
+
+        public static Request stop(String id) {
+            return new Request(STOP, id, null, 0, NO_TIMEOUT);
+        }
+
+        /**
+         * @param seconds how long the server may take to answer; only a
+         *                search or getPage request can have a timeout
+         * @return this request, with a timeout
+         */
+        public Request withTimeout(int seconds) {
+            return new Request(op, id, text, limit, seconds);
+        }
+
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "{op: " + op + ", id: " + id
+                + (text == null ? "" : ", text: " + text)
+                + ", limit: " + limit + ", timeout: " + timeout + "}";
+        }
+    }
+
+    /**
+     * The server's answer to a Request. Results are immutable.
+     */
+    public static final class Result {
+        private final String id;
+        private final boolean success;
+        private final Object value;
+
+        /*
+            Abstraction Function:
+                the answer to the request with id id, which succeeded iff success, and
+                whose value is value
+
+            Representation Invariant:
+                id != null, and value is a String, a List<String> or an Integer
+         */
+
+        Result(String id, boolean success, Object value) {
+            this.id = id;
+            this.success = success;
+            this.value = value;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public boolean succeeded() {
+            return success;
+        }
+
+        /**
+         * @return the value, if it is a string
+         * @throws IllegalStateException if it is not
+         */
+        public String text() {
+            if (!(value instanceof String)) {
+                throw new IllegalStateException("not text: " + value);
+            }
+            return (String) value;
+        }
+
+        /**
+         * @return the value, if it is a list of strings
+         * @throws IllegalStateException if it is not
+         */
+        @SuppressWarnings("unchecked")
+        public List<String> list() {
+            if (!(value instanceof List)) {
+                throw new IllegalStateException("not a list: " + value);
+            }
+            return (List<String>) value;
+        }
+
+        /**
+         * @return the value, if it is a number
+         * @throws IllegalStateException if it is not
+         */
+        public int number() {
+            if (!(value instanceof Integer)) {
+                throw new IllegalStateException("not a number: " + value);
+            }
+            return (Integer) value;
+        }
+
+        @Override
+        public String toString() {
+            return "{id: " + id + ", status: " + (success ? "success" : "failed") + ", value: " + value + "}";
+        }
+    }
+
+    /**
+     * Read the start of a connection and tell whether it uses this protocol,
+     * in which case MAGIC is consumed; otherwise nothing is.
+     *
+     * @param in the connection's input
+     * @return true iff the connection starts with MAGIC
+     * @throws IOException if the connection starts like MAGIC but is not
+     */
+    static boolean accept(BufferedInputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        if (in.read() != MAGIC[0]) {
+            in.reset();
+            return false;
+        }
+        byte[] rest = in.readNBytes(MAGIC.length - 1);
+        if (!Arrays.equals(rest, 0, rest.length, MAGIC, 1, MAGIC.length)) {
+            throw new IOException("unknown protocol");
+        }
+        return true;
+    }
+
+    /**
+     * @param in       where frames are read from
+     * @param maxBytes the longest frame that is accepted
+     * @return the contents of the next frame, or null if in ended before it
+     * @throws IOException if in ends inside a frame, or the frame is too long
+     */
+    static byte[] readFrame(DataInputStream in, int maxBytes) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16)
+            | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < 0 || length > maxBytes) {
+            throw new IOException("frame of " + length + " bytes");
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * @return the frame that holds request, with its length
+     */
+    static byte[] encode(Request request) {
+        FrameBuilder frame = new FrameBuilder();
+        frame.write(request.op);
+        frame.writeString(request.id);
+        switch (request.op) {
+            case SEARCH:
+                frame.writeString(request.text);
+                frame.writeInt(request.limit);
+                frame.writeInt(request.timeout);
+                break;
+            case GET_PAGE:
+                frame.writeString(request.text);
+                frame.writeInt(request.timeout);
+                break;
+            case ZEITGEIST:
+            case TRENDING:
+                frame.writeInt(request.limit);
+                break;
+            default:
+                break;
+        }
+        return frame.finish();
+    }
+
+    /**
+     * @param frame the contents of a frame, without its length
+     * @return the request it holds
+     * @throws IOException if it does not hold a request
+     */
+    static Request decodeRequest(byte[] frame) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        try {
+            byte op = in.get();
+            String id = readString(in);
+            switch (op) {
+                case SEARCH:
+                    return new Request(op, id, readString(in), readInt(in), readInt(in));
+                case GET_PAGE:
+                    return new Request(op, id, readString(in), 0, readInt(in));
+                case ZEITGEIST:
+                case TRENDING:
+                    return new Request(op, id, null, readInt(in), NO_TIMEOUT);
+                case PEAK_LOAD:
+                case STOP:
+                    return new Request(op, id, null, 0, NO_TIMEOUT);
+                default:
+                    throw new IOException("unknown op " + op);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("malformed request", e);
+        }
+    }
+
+    /**
+     * @return the frame that holds a result, with its length
+     */
+    static byte[] encodeText(String id, boolean success, String text) {
+        FrameBuilder frame = resultFrame(id, success, TEXT);
+        frame.writeString(text);
+        return frame.finish();
+    }
+
+    /**
+     * Write the frames that hold a result, in chunks if the text is long
+     *
+     * @param out where the frames are written
+     * @throws IOException if out fails
+     */
+    static void writeText(OutputStream out, String id, boolean success, String text) throws IOException {
+        if (text.length() <= TEXT_CHUNK_SIZE) {
+            out.write(encodeText(id, success, text));
+            return;
+        }
+        out.write(resultFrame(id, success, TEXT_CHUNKS).finish());
+        for (int start = 0; start < text.length(); ) {
+            int end = Math.min(start + TEXT_CHUNK_SIZE, text.length());
+            /* a surrogate pair split between chunks would not survive UTF-8 */
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            FrameBuilder chunk = new FrameBuilder();
+            chunk.writeString(text.substring(start, end));
+            out.write(chunk.finish());
+            start = end;
+        }
+        FrameBuilder last = new FrameBuilder();
+        last.writeString("");
+        out.write(last.finish());
+    }
+
+    static byte[] encodeList(String id, boolean success, List<String> list) {
+        FrameBuilder frame = resultFrame(id, success, LIST);
+        frame.writeInt(list.size());
+        for (String item : list) {
+            frame.writeString(item);
+        }
+        return frame.finish();
+    }
+
+    static byte[] encodeNumber(String id, boolean success, int number) {
+        FrameBuilder frame = resultFrame(id, success, NUMBER);
+        frame.writeInt(number);
+        return frame.finish();
+    }
+
+    private static FrameBuilder resultFrame(String id, boolean success, byte kind) {
+        FrameBuilder frame = new FrameBuilder();
+        frame.writeString(id);
+        frame.write(success ? SUCCESS : FAILED);
+        frame.write(kind);
+        return frame;
+    }
+
+    /**
+     * @param in       where frames are read from
+     * @param maxBytes the longest frame that is accepted
+     * @return the next result, read from as many frames as it takes, or
+     * null if in ended before it
+     * @throws IOException if in ends inside the result, or it is malformed
+     */
+    static Result readResult(DataInputStream in, int maxBytes) throws IOException {
+        byte[] frame = readFrame(in, maxBytes);
+        return frame == null ? null : decodeResult(frame, in, maxBytes);
+    }
+
+    /**
+     * @param frame the contents of a frame, without its length
+     * @return the result it holds
+     * @throws IOException if it does not hold a whole result
+     */
+    static Result decodeResult(byte[] frame) throws IOException {
+        return decodeResult(frame, null, 0);
+    }
+
+    /**
+     * @param chunks   where the chunks of a TEXT_CHUNKS result are read
+     *                 from, or null if there are none to read
+     * @param maxBytes the longest chunk frame that is accepted
+     */
+    private static Result decodeResult(byte[] frame, DataInputStream chunks, int maxBytes) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        try {
+            String id = readString(in);
+            boolean success = in.get() == SUCCESS;
+            byte kind = in.get();
+            switch (kind) {
+                case TEXT:
+                    return new Result(id, success, readString(in));
+                case LIST:
+                    int size = readInt(in);
+                    if (size < 0 || size > in.remaining()) {
+                        throw new IOException("list of " + size + " strings");
+                    }
+                    List<String> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(readString(in));
+                    }
+                    return new Result(id, success, Collections.unmodifiableList(list));
+                case NUMBER:
+                    return new Result(id, success, readInt(in));
+                case TEXT_CHUNKS:
+                    if (chunks == null) {
+                        throw new IOException("text chunks without their frames");
+                    }
+                    return new Result(id, success, readChunks(chunks, maxBytes));
+                default:
+                    throw new IOException("unknown kind " + kind);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("malformed result", e);
+        }
+    }
+
+    /**
+     * @return the text held by the chunk frames read from in, up to and
+     * including the empty one
+     */
+    private static String readChunks(DataInputStream in, int maxBytes) throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            byte[] frame = readFrame(in, maxBytes);
+            if (frame == null) {
+                throw new IOException("connection terminated inside a text");
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(frame);
+            String part = readString(chunk);
+            if (part.isEmpty()) {
+                return text.toString();
+            }
+            text.append(part);
+        }
+    }
+
+    private static int readInt(ByteBuffer in) {
+        int raw = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IllegalArgumentException("varint too long");
+            }
+            byte b = in.get();
+            raw |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("string of " + length + " bytes");
+        }
+        String string = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+
+    /**
+     * Builds one frame, leaving room for its length at the front.
+     */
+    private static final class FrameBuilder extends ByteArrayOutputStream {
+
+        FrameBuilder() {
+            super(64);
+            count = 4;
+        }
+
+        void writeInt(int value) {
+            int raw = (value << 1) ^ (value >> 31);
+            while ((raw & ~0x7f) != 0) {
+                write((raw & 0x7f) | 0x80);
+                raw >>>= 7;
+            }
+            write(raw);
+        }
+
+        void writeString(String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] finish() {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return count == buf.length ? buf : Arrays.copyOf(buf, count);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package cpen221.mp3.server;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A request of the JSON protocol, decoded field by field with a JsonReader
+ * instead of being parsed into a JsonObject first. A JsonRequest can be
+ * read into again and again, so a connection needs only one.
+ *
+ * Fields are kept as the text they were sent as, and converted when they
+ * are asked for, so a limit can be sent as 5 or as "5".
+ *
+ * JsonRequest is not thread safe.
+ */
+final class JsonRequest {
+
+    /**
+     * What a request asks for.
+     */
+    enum Op { SEARCH, ZEITGEIST, GET_PAGE, TRENDING, PEAK_LOAD, BATCH, STOP, UNKNOWN }
+
+    /* the op of each type, which is not case sensitive */
+    private static final Map<String, Op> OPS = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        OPS.put("search", Op.SEARCH);
+        OPS.put("zeitgeist", Op.ZEITGEIST);
+        OPS.put("getPage", Op.GET_PAGE);
+        OPS.put("trending", Op.TRENDING);
+        OPS.put("peakLoad30s", Op.PEAK_LOAD);
+        OPS.put("batch", Op.BATCH);
+        OPS.put("stop", Op.STOP);
+    }
+
+    /* the id of a request without one, as JSON */
+    private static final String NULL_ID = "null";
+
+    private boolean object;
+    private Op op;
+    private String id;
+    private boolean idIsJson;
+    private String query;
+    private String pageTitle;
+    private String limit;
+    private String timeout;
+    private String chunked;
+    private List<JsonRequest> requests;
+
+    /*
+        Abstraction Function:
+            the last request read, which was a JSON object iff object; op is what its type
+                asks for, or null if it has no type
+
+            its id is id, which is the id as JSON if idIsJson and a string otherwise
+
+            query, pageTitle, limit, timeout and chunked are the text of those fields, or
+                null if it has none (or they are not strings, numbers or booleans)
+
+            requests are the requests of a batch, or null if it has no array of requests; of
+                a batch of more than MAX_BATCH_SIZE requests, only the first MAX_BATCH_SIZE + 1
+                are kept
+
+        Representation Invariant:
+            id != null
+     */
+
+    JsonRequest() {
+        clear();
+    }
+
+    private void clear() {
+        object = true;
+        op = null;
+        id = NULL_ID;
+        idIsJson = true;
+        query = null;
+        pageTitle = null;
+        limit = null;
+        timeout = null;
+        chunked = null;
+        requests = null;
+    }
+
+    /**
+     * Read a request, forgetting the last one
+     *
+     * @param line the request, as JSON
+     * @throws IOException if line is not JSON
+     */
+    void read(String line) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(line));
+        reader.setLenient(true);
+        read(reader);
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new MalformedJsonException("more than one request in " + line);
+        }
+    }
+
+    private void read(JsonReader reader) throws IOException {
+        clear();
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            object = false;
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    readId(reader);
+                    break;
+                case "type":
+                    String type = readText(reader);
+                    op = type == null ? null : OPS.getOrDefault(type, Op.UNKNOWN);
+                    break;
+                case "query":
+                    query = readText(reader);
+                    break;
+                case "pageTitle":
+                    pageTitle = readText(reader);
+                    break;
+                case "limit":
+                    limit = readText(reader);
+                    break;
+                case "timeout":
+                    timeout = readText(reader);
+                    break;
+                case "chunked":
+                    chunked = readText(reader);
+                    break;
+                case "requests":
+                    readRequests(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readId(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+                id = reader.nextString();
+                idIsJson = false;
+                break;
+            case NUMBER:
+                id = reader.nextString();
+                idIsJson = true;
+                break;
+            case BOOLEAN:
+                id = String.valueOf(reader.nextBoolean());
+                idIsJson = true;
+                break;
+            case NULL:
+                reader.nextNull();
+                id = NULL_ID;
+                idIsJson = true;
+                break;
+            default:
+                id = JsonParser.parseReader(reader).toString();
+                idIsJson = true;
+                break;
+        }
+    }
+
+    private void readRequests(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        requests = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            /* one more than a batch may hold is enough to turn it away; the rest are skipped */
+            if (requests.size() > WikiMediatorServer.MAX_BATCH_SIZE) {
+                reader.skipValue();
+                continue;
+            }
+            JsonRequest request = new JsonRequest();
+            request.read(reader);
+            requests.add(request);
+        }
+        reader.endArray();
+    }
+
+    private static String readText(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    /**
+     * @return true if the request was a JSON object
+     */
+    boolean isObject() {
+        return object;
+    }
+
+    /**
+     * @return what the request asks for, or null if it has no type
+     */
+    Op op() {
+        return op;
+    }
+
+    /**
+     * @return the id of the request, as JSON if idIsJson(); "null" if it has none
+     */
+    String id() {
+        return id;
+    }
+
+    boolean idIsJson() {
+        return idIsJson;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the request has no query
+     */
+    String query() {
+        return require(query, "query");
+    }
+
+    /**
+     * @throws IllegalArgumentException if the request has no pageTitle
+     */
+    String pageTitle() {
+        return require(pageTitle, "pageTitle");
+    }
+
+    /**
+     * @throws NumberFormatException if the request has no limit, or it is not a number
+     */
+    int limit() {
+        return Integer.parseInt(limit);
+    }
+
+    /**
+     * @return the timeout of the request, in seconds, or NO_TIMEOUT if it has none
+     * @throws NumberFormatException if the timeout is not a number
+     */
+    long timeout() {
+        return timeout == null ? BinaryProtocol.NO_TIMEOUT : Long.parseLong(timeout);
+    }
+
+    boolean chunked() {
+        return Boolean.parseBoolean(chunked);
+    }
+
+    /**
+     * @return the requests of a batch, or null if it has no array of requests;
+     * a batch of more than MAX_BATCH_SIZE requests is cut short after one
+     * more than that
+     */
+    List<JsonRequest> requests() {
+        return requests;
+    }
+
+    private static String require(String field, String name) {
+        if (field == null) {
+            throw new IllegalArgumentException("request has no " + name);
+        }
+        return field;
+    }
+}
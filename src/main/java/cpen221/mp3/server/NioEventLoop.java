@@ -0,0 +1,596 @@
+package cpen221.mp3.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+/**
+ * Serves the connections of a WikiMediatorServer from a single thread with
+ * non-blocking I/O, so that the number of open connections is not limited
+ * by the number of threads.
+ *
+ * The loop reads newline-terminated requests, or the frames of the binary
+ * protocol, from every readable connection into one shared buffer, hands
+ * each complete request to the worker pool, and writes the replies as the
+ * workers finish them. Up to maxInFlight requests of one connection are
+ * answered at once; when that is 1 they are answered in order, as in the
+ * thread pool mode. A connection with many unanswered requests is not read
+ * from until it catches up. Replies are encoded into buffers of
+ * REPLY_BUFFER_SIZE, so a long page is never held as one String reply and
+ * one byte array copy of it.
+ *
+ * Connections and requests are let in by the server's AdmissionControl; a
+ * request that is turned away, or that the workers have no room for, is
+ * answered "overloaded" at once from the loop's thread.
+ */
+final class NioEventLoop {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int REPLY_BUFFER_SIZE = 64 * 1024;
+
+    /* a connection that sends a longer request is closed */
+    private static final int MAX_REQUEST_BYTES = 1024 * 1024;
+
+    private static final int MAX_QUEUED_REQUESTS = 64;
+
+    private final WikiMediatorServer server;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final ExecutorService workers;
+
+    private final int maxInFlight;
+
+    private final Selector selector;
+
+    private final ByteBuffer readBuffer;
+
+    private final Queue<Runnable> tasks;
+
+    /* a request read from a connection, which a worker answers */
+    private interface Request {
+        /**
+         * @return the reply, encoded
+         * @throws IOException if the request is malformed
+         */
+        List<ByteBuffer> answer() throws IOException;
+
+        /**
+         * @return the reply that says the server is overloaded, encoded
+         * @throws IOException if the request is malformed
+         */
+        List<ByteBuffer> overloaded() throws IOException;
+    }
+
+    /* a request of the JSON protocol */
+    private final class LineRequest implements Request {
+        private final Connection connection;
+        private final String line;
+
+        LineRequest(Connection connection, String line) {
+            this.connection = connection;
+            this.line = line;
+        }
+
+        @Override
+        public List<ByteBuffer> answer() throws IOException {
+            JsonRequest request = maxInFlight == 1 ? connection.request : new JsonRequest();
+            return encode(server.prepare(line, request, connection.client));
+        }
+
+        @Override
+        public List<ByteBuffer> overloaded() throws IOException {
+            return encode(server.overloaded(line, new JsonRequest()));
+        }
+    }
+
+    /* a request of the binary protocol */
+    private final class FrameRequest implements Request {
+        private final byte[] frame;
+
+        FrameRequest(byte[] frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public List<ByteBuffer> answer() throws IOException {
+            BinaryProtocol.Request request = BinaryProtocol.decodeRequest(frame);
+            WikiMediatorServer.LOG.log(Level.FINE, "request: {0}", request);
+            ReplyBuffers bytes = new ReplyBuffers();
+            server.answer(request, bytes);
+            return bytes.finish();
+        }
+
+        @Override
+        public List<ByteBuffer> overloaded() throws IOException {
+            BinaryProtocol.Request request = BinaryProtocol.decodeRequest(frame);
+            return Collections.singletonList(ByteBuffer.wrap(server.overloaded(request)));
+        }
+    }
+
+    private static List<ByteBuffer> encode(Reply reply) throws IOException {
+        ReplyBuffers bytes = new ReplyBuffers();
+        Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+        reply.writeTo(out);
+        out.flush();
+        return bytes.finish();
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final InetAddress client;
+        final Deque<Request> requests = new ArrayDeque<>();
+        final Deque<ByteBuffer> replies = new ArrayDeque<>();
+        /* decodes the requests of the connection, when they are answered one at a time */
+        final JsonRequest request = new JsonRequest();
+        byte[] partial = new byte[0];
+        int partialLength;
+        int inFlight;
+        boolean inputClosed;
+        boolean started;
+        boolean binary;
+        boolean accepted;
+
+        Connection(SocketChannel channel, SelectionKey key, InetAddress client) {
+            this.channel = channel;
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    /*
+        Abstraction Function:
+            the loop serves the connections accepted from serverChannel; each is registered with
+                selector, with its Connection as the key's attachment
+
+            c.client is the address of c's client, which its requests are admitted for
+
+            c.binary is true if c uses the binary protocol, which is known once c.started is
+                true, and c.accepted is true once c has sent all of BinaryProtocol.MAGIC
+
+            for a connection c, c.partial[0 .. c.partialLength) is the start of a request whose
+                end has not arrived yet (of any number of frames, for a binary connection),
+                c.requests are the complete requests not yet handed to workers, c.inFlight is
+                the number of them workers are answering, and c.replies are the replies not yet
+                (fully) written
+
+            c.inputClosed is true once the client has shut down its side of the connection
+
+            tasks are actions the workers have left for the loop's thread, such as sending a reply
+
+        Representation Invariant:
+            if c does not use the binary protocol, c.partialLength <= MAX_REQUEST_BYTES, and
+                c.partial contains no newline in [0, c.partialLength)
+
+            if c uses the binary protocol and c.accepted, c.partial holds no complete frame
+
+            c's key is interested in writing iff c.replies is not empty
+
+            0 <= c.inFlight <= maxInFlight
+
+        Thread Safety Argument:
+            everything but tasks is confined to the thread that calls run(); workers only touch
+                tasks, a thread safe queue, and wake the selector up after adding to it
+     */
+
+    NioEventLoop(WikiMediatorServer server, ServerSocketChannel serverChannel,
+                 ExecutorService workers, int maxInFlight) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
+        selector = Selector.open();
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Serve connections until the server is stopped
+     *
+     * @throws IOException if the server socket or the selector is broken
+     */
+    void run() throws IOException {
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(connection);
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (!server.admission().open()) {
+            reject(channel);
+            return;
+        }
+        WikiMediatorServer.LOG.fine("client connected");
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        InetAddress client = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        key.attach(new Connection(channel, key, client));
+    }
+
+    /**
+     * Turn a connection away: tell the client, as far as its socket's
+     * buffer allows without waiting, that the server is overloaded, and
+     * close it
+     */
+    private static void reject(SocketChannel channel) {
+        WikiMediatorServer.LOG.log(Level.FINE, "client rejected: {0}", WikiMediatorServer.OVERLOADED);
+        try (SocketChannel rejected = channel) {
+            rejected.configureBlocking(false);
+            rejected.write(ByteBuffer.wrap(WikiMediatorServer.OVERLOADED_REPLY));
+            rejected.shutdownOutput();
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+
+    private void read(Connection connection) {
+        readBuffer.clear();
+        int n;
+        try {
+            n = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+
+        if (n < 0) {
+            connection.inputClosed = true;
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            /* the start of a binary frame is dropped, as it can't be answered */
+            if (connection.partialLength > 0 && !connection.binary) {
+                addRequest(connection, connection.partial, 0, connection.partialLength);
+                connection.partialLength = 0;
+            }
+            dispatch(connection);
+            closeIfDone(connection);
+            return;
+        }
+
+        if (n == 0) {
+            return;
+        }
+        if (!connection.started) {
+            connection.started = true;
+            connection.binary = readBuffer.get(0) == BinaryProtocol.MAGIC[0];
+        }
+        if (connection.binary) {
+            readFrames(connection);
+            return;
+        }
+
+        byte[] bytes = readBuffer.array();
+        int start = 0;
+        for (int i = 0; i < readBuffer.position(); i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            if (connection.partialLength == 0) {
+                addRequest(connection, bytes, start, i - start);
+            } else {
+                if (!appendPartial(connection, bytes, start, i - start, MAX_REQUEST_BYTES)) {
+                    return;
+                }
+                addRequest(connection, connection.partial, 0, connection.partialLength);
+                connection.partialLength = 0;
+            }
+            start = i + 1;
+        }
+        if (!appendPartial(connection, bytes, start, readBuffer.position() - start, MAX_REQUEST_BYTES)) {
+            return;
+        }
+        queued(connection);
+    }
+
+    /**
+     * Take the frames of a connection that uses the binary protocol out of
+     * what has been read, after checking that it starts with MAGIC
+     */
+    private void readFrames(Connection connection) {
+        /* a frame can be MAX_REQUEST_BYTES long, and the next may have started */
+        int limit = 4 + BinaryProtocol.MAX_REQUEST_BYTES + READ_BUFFER_SIZE;
+        if (!appendPartial(connection, readBuffer.array(), 0, readBuffer.position(), limit)) {
+            return;
+        }
+        byte[] bytes = connection.partial;
+        int start = 0;
+        if (!connection.accepted) {
+            int magic = BinaryProtocol.MAGIC.length;
+            if (connection.partialLength < magic) {
+                return;
+            }
+            if (!Arrays.equals(bytes, 0, magic, BinaryProtocol.MAGIC, 0, magic)) {
+                close(connection);
+                return;
+            }
+            connection.accepted = true;
+            connection.replies.add(ByteBuffer.wrap(BinaryProtocol.MAGIC.clone()));
+            flush(connection);
+            start = magic;
+        }
+
+        while (connection.partialLength - start >= 4) {
+            int length = ByteBuffer.wrap(bytes, start, 4).getInt();
+            if (length < 0 || length > BinaryProtocol.MAX_REQUEST_BYTES) {
+                close(connection);
+                return;
+            }
+            if (connection.partialLength - start - 4 < length) {
+                break;
+            }
+            byte[] frame = Arrays.copyOfRange(bytes, start + 4, start + 4 + length);
+            connection.requests.add(new FrameRequest(frame));
+            start += 4 + length;
+        }
+        System.arraycopy(bytes, start, bytes, 0, connection.partialLength - start);
+        connection.partialLength -= start;
+        queued(connection);
+    }
+
+    /**
+     * Stop reading from a connection with too many waiting requests, and
+     * hand them to workers
+     */
+    private void queued(Connection connection) {
+        if (connection.requests.size() >= MAX_QUEUED_REQUESTS) {
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        dispatch(connection);
+    }
+
+    /**
+     * @return false if the request would be too long, in which case the
+     * connection is closed
+     */
+    private boolean appendPartial(Connection connection, byte[] bytes, int offset, int length, int limit) {
+        int needed = connection.partialLength + length;
+        if (needed > limit) {
+            close(connection);
+            return false;
+        }
+        if (needed > connection.partial.length) {
+            connection.partial = Arrays.copyOf(connection.partial,
+                Math.max(needed, connection.partial.length * 2));
+        }
+        System.arraycopy(bytes, offset, connection.partial, connection.partialLength, length);
+        connection.partialLength = needed;
+        return true;
+    }
+
+    private void addRequest(Connection connection, byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        WikiMediatorServer.LOG.log(Level.FINE, "request: {0}", line);
+        connection.requests.add(new LineRequest(connection, line));
+    }
+
+    /**
+     * Hand the waiting requests of a connection to workers, as long as
+     * fewer than maxInFlight are being answered
+     */
+    private void dispatch(Connection connection) {
+        while (connection.inFlight < maxInFlight && !connection.requests.isEmpty()
+            && connection.channel.isOpen()) {
+            submit(connection, connection.requests.poll());
+        }
+        if (connection.channel.isOpen() && !connection.inputClosed
+            && connection.requests.size() < MAX_QUEUED_REQUESTS) {
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void submit(Connection connection, Request request) {
+        connection.inFlight++;
+        AdmissionControl.Permit permit = server.admission().admit(connection.client);
+        if (permit == null) {
+            rejected(connection, request);
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                List<ByteBuffer> reply;
+                try {
+                    reply = request.answer();
+                } catch (RuntimeException | IOException e) {
+                    e.printStackTrace();
+                    runOnLoop(() -> close(connection));
+                    return;
+                } finally {
+                    permit.release();
+                }
+                runOnLoop(() -> replied(connection, reply));
+            });
+        } catch (RejectedExecutionException e) {
+            permit.release();
+            rejected(connection, request);
+        }
+    }
+
+    /**
+     * Answer a request that is turned away, at once, from the loop's thread
+     */
+    private void rejected(Connection connection, Request request) {
+        List<ByteBuffer> reply;
+        try {
+            reply = request.overloaded();
+        } catch (IOException e) {
+            connection.inFlight--;
+            close(connection);
+            return;
+        }
+        replied(connection, reply);
+    }
+
+    private void replied(Connection connection, List<ByteBuffer> reply) {
+        connection.inFlight--;
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        connection.replies.addAll(reply);
+        flush(connection);
+
+        if (server.isShutdown()) {
+            try {
+                server.stop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        dispatch(connection);
+        closeIfDone(connection);
+    }
+
+    private void flush(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        while (!connection.replies.isEmpty()) {
+            ByteBuffer reply = connection.replies.peek();
+            try {
+                connection.channel.write(reply);
+            } catch (IOException e) {
+                close(connection);
+                return;
+            }
+            if (reply.hasRemaining()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.replies.poll();
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+        closeIfDone(connection);
+    }
+
+    private void closeIfDone(Connection connection) {
+        if (connection.inputClosed && connection.inFlight == 0
+            && connection.requests.isEmpty() && connection.replies.isEmpty()) {
+            close(connection);
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection.channel.isOpen()) {
+            server.admission().closed();
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runOnLoop(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Collects an encoded reply in buffers of REPLY_BUFFER_SIZE, so that a
+     * long reply is never copied to grow one array, and is written out and
+     * let go of a buffer at a time
+     */
+    private static final class ReplyBuffers extends OutputStream {
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private ByteBuffer current;
+
+        /**
+         * @return the bytes written, ready to be read out; nothing more may
+         * be written after this
+         */
+        List<ByteBuffer> finish() {
+            if (current != null) {
+                current.flip();
+                current = null;
+            }
+            return buffers;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (current == null || !current.hasRemaining()) {
+                    if (current != null) {
+                        current.flip();
+                    }
+                    current = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+                    buffers.add(current);
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
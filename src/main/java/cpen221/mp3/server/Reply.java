@@ -0,0 +1,20 @@
+package cpen221.mp3.server;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A reply that has been worked out and is ready to be sent to a client.
+ * Writing it may stream a large body from where it is held instead of
+ * building the whole reply as one String first.
+ */
+interface Reply {
+
+    /**
+     * Write the reply, and the newline that ends it
+     *
+     * @param out where the reply is written; not flushed or closed
+     * @throws IOException if out cannot be written to
+     */
+    void writeTo(Writer out) throws IOException;
+}
@@ -1,24 +1,78 @@
 package cpen221.mp3.server;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WikiMediatorClient {
     private Socket socket;
     private BufferedReader in;
     // Rep invariant: socket, in, out != null
     private PrintWriter out;
+    // the async requests awaiting a reply, by id; replies are read by replyReader once it is started
+    private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private Thread replyReader;
+    private volatile boolean repliesEnded;
+    // the connection as frames of the binary protocol; null unless this uses it
+    private DataInputStream binaryIn;
+    private OutputStream binaryOut;
 
 
     public WikiMediatorClient(String hostname, int port) throws IOException {
         socket = new Socket(hostname, port);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Connect to a server, using the binary protocol if binary is true.
+     * A client that uses it sends requests with sendRequest(Request) and
+     * gets replies with getResult, and must not use the JSON methods.
+     *
+     * @throws IOException if network failure, or the server does not speak
+     *                     the binary protocol
+     */
+    public WikiMediatorClient(String hostname, int port, boolean binary) throws IOException {
+        this(hostname, port);
+        if (!binary) {
+            return;
+        }
+        binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        binaryOut = new BufferedOutputStream(socket.getOutputStream());
+        binaryOut.write(BinaryProtocol.MAGIC);
+        binaryOut.flush();
+        byte[] magic = new byte[BinaryProtocol.MAGIC.length];
+        try {
+            binaryIn.readFully(magic);
+        } catch (EOFException e) {
+            magic = null;
+        }
+        if (!Arrays.equals(magic, BinaryProtocol.MAGIC)) {
+            socket.close();
+            throw new IOException("server does not speak the binary protocol");
+        }
     }
 
     /**
@@ -64,7 +118,7 @@ public class WikiMediatorClient {
      * @throws IOException if network or server failure
      */
     public String getReply() throws IOException {
-        String reply = in.readLine();
+        String reply = readReply();
         if (reply == null) {
             throw new IOException("connection terminated unexpectedly");
         }
@@ -77,6 +131,231 @@ public class WikiMediatorClient {
         }
     }
 
+    /**
+     * Read the next reply. A page sent in chunks, in reply to a getPage
+     * request with "chunked": true, is put back together into the reply
+     * that would have been sent without chunks.
+     *
+     * @return the reply, or null if the connection was closed
+     * @throws IOException if network or server failure, or a chunk is misformatted
+     */
+    private String readReply() throws IOException {
+        String reply = in.readLine();
+        if (reply == null || !reply.contains("\"chunked\":true")) {
+            return reply;
+        }
+        JsonObject header;
+        try {
+            header = JsonParser.parseString(reply).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            return reply;
+        }
+        JsonElement chunked = header.remove("chunked");
+        if (chunked == null || !chunked.isJsonPrimitive() || !chunked.getAsBoolean()) {
+            return reply;
+        }
+
+        StringBuilder text = new StringBuilder();
+        char[] chunk = new char[0];
+        while (true) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("connection terminated unexpectedly");
+            }
+            int length;
+            try {
+                length = Integer.parseInt(line);
+            } catch (NumberFormatException e) {
+                throw new IOException("misformatted chunk: " + line);
+            }
+            if (length == 0) {
+                break;
+            }
+            if (length < 0) {
+                throw new IOException("misformatted chunk: " + line);
+            }
+            if (chunk.length < length) {
+                chunk = new char[length];
+            }
+            for (int read = 0; read < length; ) {
+                int n = in.read(chunk, read, length - read);
+                if (n < 0) {
+                    throw new IOException("connection terminated unexpectedly");
+                }
+                read += n;
+            }
+            text.append(chunk, 0, length);
+        }
+        header.addProperty("response", text.toString());
+        return header.toString();
+    }
+
+    /**
+     * Send a request with the binary protocol. Requires this is "open" and
+     * uses the binary protocol.
+     *
+     * @param request the request
+     * @throws IOException if network or server failure
+     */
+    public void sendRequest(BinaryProtocol.Request request) throws IOException {
+        if (binaryOut == null) {
+            throw new IllegalStateException("not using the binary protocol");
+        }
+        binaryOut.write(BinaryProtocol.encode(request));
+        binaryOut.flush();
+    }
+
+    /**
+     * Get the result of the next request that was sent with the binary
+     * protocol. Requires this is "open" and uses the binary protocol.
+     *
+     * @return the result
+     * @throws IOException if network or server failure
+     */
+    public BinaryProtocol.Result getResult() throws IOException {
+        if (binaryIn == null) {
+            throw new IllegalStateException("not using the binary protocol");
+        }
+        BinaryProtocol.Result result = BinaryProtocol.readResult(binaryIn, BinaryProtocol.MAX_RESULT_BYTES);
+        if (result == null) {
+            throw new IOException("connection terminated unexpectedly");
+        }
+        return result;
+    }
+
+    /**
+     * Send a request without waiting for the reply, so that many requests
+     * can be outstanding on one connection at once. The reply is matched to
+     * the request by id, so every outstanding request must have a different
+     * id. Requires this is "open"; once this is used, getReply must not be.
+     *
+     * @param request a request, as JSON, with an "id"
+     * @return the reply, when it arrives; fails if the connection is closed first
+     * @throws IllegalArgumentException if the request has no id, or the id of
+     *                                  a request that is still outstanding
+     */
+    public CompletableFuture<String> sendRequestAsync(String request) {
+        String id = idOf(request);
+        if (id == null) {
+            throw new IllegalArgumentException("request has no id: " + request);
+        }
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        if (pending.putIfAbsent(id, reply) != null) {
+            throw new IllegalArgumentException("request " + id + " is already outstanding");
+        }
+
+        synchronized (this) {
+            if (replyReader == null) {
+                replyReader = new Thread(this::readReplies, "WikiMediatorClient replies");
+                replyReader.setDaemon(true);
+                replyReader.start();
+            }
+            out.print(request + "\n");
+            out.flush();
+        }
+        if (repliesEnded && pending.remove(id, reply)) {
+            reply.completeExceptionally(new IOException("connection terminated unexpectedly"));
+        }
+        return reply;
+    }
+
+    /**
+     * Complete the outstanding requests as their replies arrive, until the
+     * connection is closed. Replies whose id is not outstanding are dropped.
+     */
+    private void readReplies() {
+        try {
+            for (String reply = readReply(); reply != null; reply = readReply()) {
+                String id = idOf(reply);
+                CompletableFuture<String> request = id == null ? null : pending.remove(id);
+                if (request != null) {
+                    request.complete(reply);
+                }
+            }
+        } catch (IOException e) {
+            // the connection is broken; fail what is left below
+        }
+        repliesEnded = true;
+        IOException closed = new IOException("connection terminated unexpectedly");
+        for (String id : pending.keySet()) {
+            CompletableFuture<String> request = pending.remove(id);
+            if (request != null) {
+                request.completeExceptionally(closed);
+            }
+        }
+    }
+
+    /**
+     * Send requests as one batch, which the server answers all at once,
+     * without waiting for the reply. See sendRequestAsync.
+     *
+     * @param id       the id of the batch
+     * @param requests the requests, as JSON
+     * @return the replies to the requests, in the same order, when they arrive
+     * @throws IllegalArgumentException if a request is not JSON, or id is
+     *                                  the id of a request that is still outstanding
+     */
+    public CompletableFuture<List<String>> sendBatchAsync(String id, List<String> requests) {
+        return sendRequestAsync(batch(id, requests)).thenApply(WikiMediatorClient::batchReplies);
+    }
+
+    /**
+     * @param id       the id of the batch
+     * @param requests the requests, as JSON
+     * @return a batch request holding requests, as JSON
+     * @throws IllegalArgumentException if a request is not JSON
+     */
+    public static String batch(String id, List<String> requests) {
+        JsonArray array = new JsonArray(requests.size());
+        for (String request : requests) {
+            try {
+                array.add(JsonParser.parseString(request));
+            } catch (JsonParseException e) {
+                throw new IllegalArgumentException("not a request: " + request, e);
+            }
+        }
+        JsonObject batch = new JsonObject();
+        batch.addProperty("id", id);
+        batch.addProperty("type", "batch");
+        batch.add("requests", array);
+        return batch.toString();
+    }
+
+    /**
+     * @param reply the reply to a batch request
+     * @return the replies to the requests in the batch, as JSON, in order
+     * @throws IllegalArgumentException if the batch failed as a whole; the
+     *                                  message is the server's reason
+     */
+    public static List<String> batchReplies(String reply) {
+        JsonObject object = JsonParser.parseString(reply).getAsJsonObject();
+        JsonElement response = object.get("response");
+        if (response == null || !response.isJsonArray()) {
+            throw new IllegalArgumentException(response == null ? reply : response.getAsString());
+        }
+        List<String> replies = new ArrayList<>();
+        for (JsonElement element : response.getAsJsonArray()) {
+            replies.add(element.toString());
+        }
+        return replies;
+    }
+
+    /**
+     * @return the id of a request or reply, or null if it has none
+     */
+    private static String idOf(String json) {
+        try {
+            JsonElement element = JsonParser.parseString(json);
+            if (!element.isJsonObject()) {
+                return null;
+            }
+            JsonElement id = ((JsonObject) element).get("id");
+            return id == null || id.isJsonNull() ? null : id.getAsString();
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
     /**
      * Closes the client's connection to the server.
      * This client is now "closed". Requires this is "open".
@@ -84,8 +363,9 @@ public class WikiMediatorClient {
      * @throws IOException if close fails
      */
     public void close() throws IOException {
+        // the socket first, so that a reader blocked on in lets go of it
+        socket.close();
         in.close();
         out.close();
-        socket.close();
     }
 }
\ No newline at end of file
@@ -1,55 +1,277 @@
 package cpen221.mp3.server;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import com.sun.nio.sctp.PeerAddressChangeNotification;
+import cpen221.mp3.wikimediator.Deadline;
 import cpen221.mp3.wikimediator.WikiMediator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLOutput;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class WikiMediatorServer {
 
+    /**
+     * How a server handles its connections.
+     */
+    public enum Mode {
+        /* each connection has a thread of the pool for as long as it is open */
+        THREAD_POOL,
+        /* one thread reads and writes every connection through a Selector, and the
+           pool only runs requests, so idle connections cost no thread */
+        NIO,
+        /* each connection, and each part of a batch, gets a virtual thread of its
+           own; n does not limit how many run at once. A request that times out is
+           given up on through its Deadline, as in the other modes, not by interrupting
+           its thread, which cannot abort a fetch that jwiki has started */
+        VIRTUAL_THREADS
+    }
+
     public static final int WIKI_PORT = 4949;
+    private final ServerSocketChannel serverChannel;
     private final ServerSocket serverSocket;
     private final ExecutorService pool;
-    boolean shutdown;
-    private WikiMediator wikiMediator;
-    private final String DEFAULT_FILENAME = "local/logs.txt";
-    private final String DEFAULT_FILENAME_PEAKLOAD = "local/logs_peak.txt";
+    /* runs the parts of a batch away from their connection's thread, so that they run at once;
+       outside VIRTUAL_THREADS mode, on at most BATCH_CALLS_PER_THREAD threads per request thread */
+    private final ExecutorService calls;
+    /* times the deadlines of requests with a timeout; one thread for all of them */
+    private final ScheduledThreadPoolExecutor deadlines;
+    /* runs pipelined requests; null unless pipelining */
+    private final ExecutorService requests;
+    /* saves the statistics periodically; null if they are not saved */
+    private final ScheduledExecutorService checkpointer;
+    /* where the statistics are saved; both null if they are not */
+    private final File logFile, peakLoadFile;
+    /* the request count of the mediator at the last checkpoint, or -1 before the first */
+    private int checkpointed = -1;
+    private final AdmissionControl admission;
+    private final Mode mode;
+    private final boolean pipelining;
+    volatile boolean shutdown;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final WikiMediator wikiMediator;
+    private static final String DEFAULT_FILENAME = "local/logs.txt";
+    private static final String DEFAULT_FILENAME_PEAKLOAD = "local/logs_peak.txt";
+
+    /* connections waiting to be accepted; beyond this, new clients wait a second to retry */
+    private static final int BACKLOG = 1024;
+
+    /* the length, in characters, of the chunks a chunked page is sent in */
+    static final int REPLY_CHUNK_SIZE = 64 * 1024;
+
+    /* logs connections, requests and replies at FINE, which is off unless asked for, so
+       that logging costs nothing on the way of a request */
+    static final Logger LOG = Logger.getLogger(WikiMediatorServer.class.getName());
+
+    /* the reason given to a connection or request that is turned away */
+    static final String OVERLOADED = "overloaded";
+
+    /* sent to a connection that is turned away before it sends anything */
+    static final byte[] OVERLOADED_REPLY =
+        ("{\"id\":null,\"status\":\"failed\",\"response\":\"" + OVERLOADED + "\"}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    /* the most requests one batch may hold */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    /* how many threads run the parts of batches, per thread answering requests */
+    private static final int BATCH_CALLS_PER_THREAD = 8;
+
+    /* the most requests of one pipelining connection that are answered at once */
+    static final int MAX_IN_FLIGHT = 256;
+
+    /* turns lists into JSON; Gson is thread safe, so one is shared */
+    private static final Gson GSON = new Gson();
+
+    /* the timeout of a request that has none */
+    private static final long NO_TIMEOUT = BinaryProtocol.NO_TIMEOUT;
+
+    /* how often, in seconds, the statistics are saved while the server runs */
+    private static final long CHECKPOINT_PERIOD = 60;
 
 
 
     /**
      * Start a server at a given port number, with the ability to process
-     * upto n requests concurrently.
+     * upto n requests concurrently. The server's WikiMediator starts with
+     * the statistics saved by the last server, if there are any.
      *
      * @param port the port number to bind the server to
      * @param n    the number of concurrent requests the server can handle
      */
     public WikiMediatorServer(int port, int n) throws IOException {
-        serverSocket = new ServerSocket(port);
-        pool = Executors.newFixedThreadPool(n);
+        this(new Builder().port(port).threads(n));
+    }
+
+    /**
+     * @return a WikiMediator with the statistics saved in the given files, if any
+     */
+    private static WikiMediator savedMediator(File logFile, File peakLoadFile) {
+        return new WikiMediator.Builder()
+            .logs(logFile, peakLoadFile)
+            .build();
+    }
+
+    /**
+     * Start a server at a given port number that answers every request with
+     * one WikiMediator, so that its caches and statistics are shared by all
+     * requests. The statistics are not saved; see Builder.logs.
+     *
+     * @param port         the port number to bind the server to
+     * @param n            the number of concurrent requests the server can handle
+     * @param wikiMediator answers the requests
+     */
+    public WikiMediatorServer(int port, int n, WikiMediator wikiMediator) throws IOException {
+        this(new Builder().port(port).threads(n).mediator(wikiMediator));
+    }
+
+    /**
+     * Start a server at a given port number that answers every request with
+     * one WikiMediator, handling its connections in a given way.
+     *
+     * @param port         the port number to bind the server to
+     * @param n            the number of concurrent requests the server can handle
+     * @param wikiMediator answers the requests
+     * @param mode         how connections are handled
+     */
+    public WikiMediatorServer(int port, int n, WikiMediator wikiMediator, Mode mode) throws IOException {
+        this(new Builder().port(port).threads(n).mediator(wikiMediator).mode(mode));
+    }
+
+    private WikiMediatorServer(Builder builder) throws IOException {
+        mode = builder.mode;
+        pipelining = builder.pipelining;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(builder.port), BACKLOG);
+        serverSocket = serverChannel.socket();
+        if (mode == Mode.VIRTUAL_THREADS) {
+            pool = Executors.newVirtualThreadPerTaskExecutor();
+            calls = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            pool = boundedPool(builder.threads, builder.queueSize);
+            /* every batch shares these threads, so however many batches arrive at once, they
+               never start more than this many upstream calls between them */
+            ThreadPoolExecutor callPool = new ThreadPoolExecutor(
+                builder.threads * BATCH_CALLS_PER_THREAD, builder.threads * BATCH_CALLS_PER_THREAD,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "WikiMediatorServer call");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            callPool.allowCoreThreadTimeOut(true);
+            calls = callPool;
+        }
+        deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "WikiMediatorServer deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /* most requests finish in time, and their deadlines should not linger */
+        deadlines.setRemoveOnCancelPolicy(true);
+        if (!pipelining) {
+            requests = null;
+        } else if (mode == Mode.THREAD_POOL) {
+            requests = boundedPool(builder.threads, builder.queueSize);
+        } else {
+            requests = pool;
+        }
+        admission = new AdmissionControl(builder.maxConnections, builder.maxInFlightPerClient,
+            builder.initialLimit, builder.targetLatency.toNanos());
         shutdown = false;
+        if (builder.logFile != null) {
+            logFile = builder.logFile;
+            peakLoadFile = builder.peakLoadFile;
+        } else if (builder.mediator == null) {
+            logFile = new File(DEFAULT_FILENAME);
+            peakLoadFile = new File(DEFAULT_FILENAME_PEAKLOAD);
+        } else {
+            /* a mediator given by the caller is not ours to save over the last server's */
+            logFile = null;
+            peakLoadFile = null;
+        }
+        wikiMediator = builder.mediator != null ? builder.mediator : savedMediator(logFile, peakLoadFile);
+        if (logFile == null) {
+            checkpointer = null;
+        } else {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "WikiMediatorServer checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(this::checkpoint,
+                CHECKPOINT_PERIOD, CHECKPOINT_PERIOD, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return a pool of n threads, which rejects tasks once queueSize are
+     * waiting for a thread
+     */
+    private static ExecutorService boundedPool(int n, int queueSize) {
+        return new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueSize));
+    }
+
+    /**
+     * Save the statistics, if they are saved and there have been requests
+     * since they last were. They are written to temporary files first and
+     * moved into place, so a crash while saving leaves the last checkpoint
+     * intact.
+     */
+    private synchronized void checkpoint() {
+        if (logFile == null) {
+            return;
+        }
+        int requestCount = wikiMediator.requestCount();
+        if (requestCount == checkpointed) {
+            return;
+        }
+        checkpointed = requestCount;
+        File logTemp = new File(logFile.getPath() + ".tmp");
+        File peakLoadTemp = new File(peakLoadFile.getPath() + ".tmp");
+        wikiMediator.saveLogs(logTemp, peakLoadTemp);
+        try {
+            Files.move(logTemp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(peakLoadTemp.toPath(), peakLoadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -58,31 +280,64 @@ public class WikiMediatorServer {
      * @throws IOException if the main server socket is broken
      */
     public void serve() throws IOException {
+        if (mode == Mode.NIO) {
+            new NioEventLoop(this, serverChannel, pool, pipelining ? MAX_IN_FLIGHT : 1).run();
+            return;
+        }
+
         while (true) {
             // block until a client connects
             final Socket socket = serverSocket.accept();
+            if (!admission.open()) {
+                reject(socket);
+                continue;
+            }
 
             //Creates a new executor service to handle n requests:
-            pool.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
                         try {
-                            handle(socket);
-                        } finally {
-                            socket.close();
+                            try {
+                                handle(socket);
+                            } finally {
+                                socket.close();
+                                admission.closed();
+                            }
+                        } catch (IOException ioe) {
+                            // this exception wouldn't terminate serve(),
+                            // since we're now on a different thread, but
+                            // we still need to handle it
+                            ioe.printStackTrace();
                         }
-                    } catch (IOException ioe) {
-                        // this exception wouldn't terminate serve(),
-                        // since we're now on a different thread, but
-                        // we still need to handle it
-                        ioe.printStackTrace();
                     }
-                }
-            });
+                });
+            } catch (RejectedExecutionException e) {
+                admission.closed();
+                reject(socket);
+            }
         }
     }
 
+    /**
+     * Turn a connection away: tell the client that the server is overloaded,
+     * and close it
+     */
+    private static void reject(Socket socket) {
+        LOG.log(Level.FINE, "client rejected: {0}", OVERLOADED);
+        try (Socket rejected = socket) {
+            rejected.getOutputStream().write(OVERLOADED_REPLY);
+            rejected.shutdownOutput();
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+
+    AdmissionControl admission() {
+        return admission;
+    }
+
     /**
      * Handle one client connection. Returns when client disconnects.
      *
@@ -90,52 +345,54 @@ public class WikiMediatorServer {
      * @throws IOException if connection encounters an error
      */
     private void handle(Socket socket) throws IOException {
-        System.err.println("client connected");
+        LOG.fine("client connected");
+
+        BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+        if (BinaryProtocol.accept(input)) {
+            handleBinary(socket, input);
+            return;
+        }
 
         BufferedReader in =
-            new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        JsonRequest request = new JsonRequest();
 
         PrintWriter out = new PrintWriter(new OutputStreamWriter(
-            socket.getOutputStream()), true);
+            socket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+        if (pipelining) {
+            try {
+                handlePipelined(socket, in, out);
+            } finally {
+                out.close();
+                in.close();
+            }
+            return;
+        }
 
         try {
             // each request is a single line containing a number
             for (String line = in.readLine(); line != null; line = in
                 .readLine()) {
-                System.err.println("request: " + line);
+                LOG.log(Level.FINE, "request: {0}", line);
+                // compute answer and send back to client
+                AdmissionControl.Permit permit = admission.admit(socket.getInetAddress());
+                if (permit == null) {
+                    overloaded(line, request).writeTo(out);
+                    out.flush();
+                    continue;
+                }
                 try {
-                    JsonObject jsonObjectIn = new Gson().fromJson(line, JsonObject.class);
-                    System.out.println("Request as obj:"+jsonObjectIn.toString());
-
-                    File log_file = new File(DEFAULT_FILENAME);
-                    File peakload_file = new File(DEFAULT_FILENAME_PEAKLOAD);
-
-                    if(new File(DEFAULT_FILENAME).isFile() && new File(DEFAULT_FILENAME_PEAKLOAD).isFile()){
-                        wikiMediator = new WikiMediator(log_file, peakload_file);
-                    }else{
-                        wikiMediator = new WikiMediator();
-                    }
-
-                    // compute answer and send back to client
-                    JsonObject jsonObjectOut = getJsonResult(jsonObjectIn);
-                    System.err.println("reply: " + jsonObjectOut.toString());
-                    out.println(jsonObjectOut.toString());
-                    if(shutdown){
-                        System.out.println("Turning the server off...");
-//                        File log_file = new File(DEFAULT_FILENAME);
-//                        File peakload_file = new File(DEFAULT_FILENAME_PEAKLOAD);
-                        System.out.println("Saving logs...");
-                        wikiMediator.saveLogs(log_file, peakload_file);
-                        out.close();
-                        in.close();
-                        socket.close();
-                        pool.shutdown();
-                        serverSocket.close();
-                    }
-                } catch (NumberFormatException e) {
-                    // complain about ill-formatted request
-                    System.err.println("reply: err");
-                    out.print("err\n");
+                    prepare(line, request, socket.getInetAddress()).writeTo(out);
+                    out.flush();
+                } finally {
+                    permit.release();
+                }
+                if(shutdown){
+                    out.close();
+                    in.close();
+                    socket.close();
+                    stop();
                 }
                 // important! our PrintWriter is auto-flushing, but if it were
                 // not:
@@ -147,146 +404,685 @@ public class WikiMediatorServer {
         }
     }
 
+    /**
+     * Handle one client connection that uses the binary protocol, once it
+     * has sent BinaryProtocol.MAGIC. Requests are answered in order.
+     * Returns when client disconnects.
+     */
+    private void handleBinary(Socket socket, BufferedInputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        try {
+            out.write(BinaryProtocol.MAGIC);
+            out.flush();
+            for (byte[] frame = BinaryProtocol.readFrame(in, BinaryProtocol.MAX_REQUEST_BYTES); frame != null;
+                 frame = BinaryProtocol.readFrame(in, BinaryProtocol.MAX_REQUEST_BYTES)) {
+                BinaryProtocol.Request request = BinaryProtocol.decodeRequest(frame);
+                LOG.log(Level.FINE, "request: {0}", request);
+                AdmissionControl.Permit permit = admission.admit(socket.getInetAddress());
+                if (permit == null) {
+                    out.write(overloaded(request));
+                    out.flush();
+                    continue;
+                }
+                try {
+                    answer(request, out);
+                    out.flush();
+                } finally {
+                    permit.release();
+                }
+                if (shutdown) {
+                    socket.close();
+                    stop();
+                    return;
+                }
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
 
+    /**
+     * Handle one client connection whose requests are answered concurrently,
+     * each reply being written as soon as it is ready. Returns when the
+     * client disconnects and every request has been answered.
+     */
+    private void handlePipelined(Socket socket, BufferedReader in, PrintWriter out) throws IOException {
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                LOG.log(Level.FINE, "request: {0}", line);
+                String request = line;
+                /* wait for this connection's own backpressure before taking a permit, so that
+                   the wait neither holds a slot nor counts against the latency target */
+                inFlight.acquireUninterruptibly();
+                AdmissionControl.Permit permit = admission.admit(socket.getInetAddress());
+                if (permit == null) {
+                    inFlight.release();
+                    Reply reply = overloaded(request, new JsonRequest());
+                    synchronized (out) {
+                        reply.writeTo(out);
+                        out.flush();
+                    }
+                    continue;
+                }
+                try {
+                    requests.execute(() -> {
+                        try {
+                            Reply reply = prepare(request, new JsonRequest(), socket.getInetAddress());
+                            synchronized (out) {
+                                reply.writeTo(out);
+                                out.flush();
+                            }
+                            if (shutdown) {
+                                socket.close();
+                                stop();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            e.printStackTrace();
+                        } finally {
+                            permit.release();
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permit.release();
+                    inFlight.release();
+                    Reply reply = overloaded(request, new JsonRequest());
+                    synchronized (out) {
+                        reply.writeTo(out);
+                        out.flush();
+                    }
+                }
+            }
+        } finally {
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+        }
+    }
 
-    private JsonObject getJsonResult(JsonObject jsonObjectIn) throws FileNotFoundException {
+    /**
+     * Answer one request line
+     *
+     * @param line    a request, as JSON
+     * @param request where the request is decoded; its last contents are lost
+     * @param client  the address of the client that sent it, whose requests
+     *                in a batch are each let in or turned away like requests
+     *                sent on their own
+     * @return the reply, as JSON, or "err" if the request is ill-formatted
+     */
+    Reply prepare(String line, JsonRequest request, InetAddress client) {
+        try {
+            request.read(line);
+            if (request.op() == JsonRequest.Op.GET_PAGE) {
+                return preparePage(request);
+            }
+            return lineReply(getJsonResult(request, client));
+        } catch (IOException | IllegalArgumentException e) {
+            // complain about ill-formatted request
+            LOG.fine("reply: err");
+            return out -> out.write("err\n");
+        }
+    }
 
-        JsonObject jsonObjectOut = new JsonObject();
-        jsonObjectOut.add("id", jsonObjectIn.get("id"));
+    /**
+     * @param line    a request, as JSON, that is turned away
+     * @param request where the request is decoded
+     * @return the reply that says the server is overloaded, or "err" if the
+     * request is ill-formatted
+     */
+    Reply overloaded(String line, JsonRequest request) {
+        try {
+            request.read(line);
+            return lineReply(new JsonResult(request).failed(OVERLOADED));
+        } catch (IOException e) {
+            LOG.fine("reply: err");
+            return out -> out.write("err\n");
+        }
+    }
 
-        String type = jsonObjectIn.get("type").getAsString();
+    /**
+     * @return the frame that says the server is overloaded, in reply to request
+     */
+    byte[] overloaded(BinaryProtocol.Request request) {
+        LOG.fine(() -> "reply: " + OVERLOADED + " to " + request.id);
+        return BinaryProtocol.encodeText(request.id, false, OVERLOADED);
+    }
 
-        // This is for the Search operation
-        if (type.compareToIgnoreCase("search") == 0) {
+    private static Reply lineReply(JsonResult result) {
+        LOG.fine(() -> "reply: " + result.status + " to " + result.id);
+        return out -> {
+            JsonWriter json = new JsonWriter(out);
+            result.write(json);
+            json.flush();
+            out.write('\n');
+        };
+    }
 
-            String query = jsonObjectIn.get("query").getAsString();
-            int limit = jsonObjectIn.get("limit").getAsInt();
-            List<String> result = new ArrayList<>();
+    /**
+     * Fetch the page asked for by a getPage request, and make a reply that
+     * streams it out, escaping it on the way, instead of building the reply
+     * as a String. If the request has "chunked": true, the page is sent
+     * as it is after a header line, in chunks that each start with a line
+     * holding their length in characters, ending with a chunk of length 0.
+     */
+    private Reply preparePage(JsonRequest request) {
+        String pageTitle = request.pageTitle();
+        long timeout = request.timeout();
+        JsonResult result = new JsonResult(request);
+        boolean chunked = request.chunked();
 
-            //this is executed to manage timeouts
-            if (jsonObjectIn.has("timeout")) {
-                //gets timeout from the json obj
-                long timeoutDuration = jsonObjectIn.get("timeout").getAsLong();
-                final Duration timeout = Duration.ofSeconds(timeoutDuration);
+        String text = call(deadline -> wikiMediator.getPage(pageTitle, deadline), timeout);
+        if (text == null) {
+            return lineReply(result.failed("Operation timed out"));
+        }
 
-                ExecutorService executor = Executors.newSingleThreadExecutor();
-                Future<List<String>> future =
-                    executor.submit(() -> wikiMediator.search(query, limit));
-                try {
-                    result = future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
-                } catch (TimeoutException | InterruptedException | ExecutionException e) {
+        LOG.fine(() -> "reply: page " + pageTitle + ", " + text.length() + " characters");
+        return out -> {
+            JsonWriter json = new JsonWriter(out);
+            json.beginObject();
+            result.writeId(json);
+            json.name("status").value("success");
+            if (chunked) {
+                json.name("chunked").value(true);
+            } else {
+                json.name("response").value(text);
+            }
+            json.endObject();
+            json.flush();
+            out.write('\n');
 
-                    jsonObjectOut.addProperty("status", "failed");
-                    jsonObjectOut.addProperty("response", "Operation timed out");
-                    future.cancel(true);
-                    return jsonObjectOut;
+            if (chunked) {
+                for (int start = 0; start < text.length(); start += REPLY_CHUNK_SIZE) {
+                    int length = Math.min(REPLY_CHUNK_SIZE, text.length() - start);
+                    out.write(Integer.toString(length));
+                    out.write('\n');
+                    out.write(text, start, length);
                 }
-            } else {
-                result = wikiMediator.search(query, limit);
+                out.write("0\n");
             }
+        };
+    }
 
-            if (!result.isEmpty()) {
-                jsonObjectOut.addProperty("status", "success");
-                String resultJson = new Gson().toJson(result);
-                jsonObjectOut.addProperty("response", resultJson);
-            } else {
-                jsonObjectOut.addProperty("status", "failed");
-                jsonObjectOut.addProperty("response", query + " returned no results");
+    /* a request to the mediator that gives up at a deadline */
+    private interface Timed<T> {
+        T call(Deadline deadline) throws TimeoutException;
+    }
+
+    /**
+     * Run a request on this thread, giving up on it after a timeout. What
+     * it was waiting for, such as a page being fetched, is still cached
+     * when it arrives.
+     *
+     * @param request the request
+     * @param timeout how long to wait for it, in seconds, or NO_TIMEOUT to
+     *                wait as long as it takes
+     * @return the result of the request, or null if it timed out
+     */
+    private <T> T call(Timed<T> request, long timeout) {
+        if (timeout == NO_TIMEOUT) {
+            try {
+                return request.call(Deadline.none());
+            } catch (TimeoutException e) {
+                return null;
+            }
+        }
+        Deadline deadline = Deadline.after(Duration.ofSeconds(timeout), deadlines);
+        try {
+            return request.call(deadline);
+        } catch (TimeoutException e) {
+            return null;
+        } finally {
+            deadline.cancel();
+        }
+    }
+
+    /**
+     * Answer one request of the binary protocol, in the same way as the
+     * JSON request it stands for. A long page is written out a chunk at a
+     * time, instead of as one frame.
+     *
+     * @param request the request
+     * @param out     where the frames holding the result are written
+     * @throws IOException if out fails
+     */
+    void answer(BinaryProtocol.Request request, OutputStream out) throws IOException {
+        String id = request.id;
+        switch (request.op) {
+            case BinaryProtocol.SEARCH: {
+                List<String> result = call(
+                    deadline -> wikiMediator.search(request.text, request.limit, deadline), request.timeout);
+                if (result == null) {
+                    out.write(BinaryProtocol.encodeText(id, false, "Operation timed out"));
+                } else if (result.isEmpty()) {
+                    out.write(BinaryProtocol.encodeText(id, false, request.text + " returned no results"));
+                } else {
+                    out.write(BinaryProtocol.encodeList(id, true, result));
+                }
+                break;
+            }
+            case BinaryProtocol.GET_PAGE: {
+                String result = call(
+                    deadline -> wikiMediator.getPage(request.text, deadline), request.timeout);
+                if (result == null) {
+                    out.write(BinaryProtocol.encodeText(id, false, "Operation timed out"));
+                } else {
+                    BinaryProtocol.writeText(out, id, true, result);
+                }
+                break;
+            }
+            case BinaryProtocol.ZEITGEIST:
+            case BinaryProtocol.TRENDING: {
+                List<String> result = request.op == BinaryProtocol.ZEITGEIST
+                    ? wikiMediator.zeitgeist(request.limit)
+                    : wikiMediator.trending(request.limit);
+                if (result.isEmpty()) {
+                    out.write(BinaryProtocol.encodeText(id, false, "returned no results"));
+                } else {
+                    out.write(BinaryProtocol.encodeList(id, true, result));
+                }
+                break;
             }
-        //This is for the zeitgeist operation
-        } else if (type.compareToIgnoreCase("zeitgeist") == 0) {
+            case BinaryProtocol.PEAK_LOAD:
+                out.write(BinaryProtocol.encodeNumber(id, true, wikiMediator.peakLoad30s()));
+                break;
+            case BinaryProtocol.STOP:
+                shutdown = true;
+                out.write(BinaryProtocol.encodeText(id, true, "bye"));
+                break;
+            default:
+                out.write(BinaryProtocol.encodeText(id, false, "Operation type not found"));
+                break;
+        }
+    }
 
-            int limit = jsonObjectIn.get("limit").getAsInt();
-            List result = wikiMediator.zeitgeist(limit);
+    /**
+     * @return true once a stop request has been answered
+     */
+    boolean isShutdown() {
+        return shutdown;
+    }
 
-            if (!result.isEmpty()) {
-                jsonObjectOut.addProperty("status", "success");
-                String resultJson = new Gson().toJson(result);
-                jsonObjectOut.addProperty("response", resultJson);
-            } else {
-                jsonObjectOut.addProperty("status", "failed");
-                jsonObjectOut.addProperty("response", "returned no results");
+    /**
+     * Save the statistics and close the server, after a stop request
+     */
+    void stop() throws IOException {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        System.out.println("Turning the server off...");
+        System.out.println("Saving logs...");
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+        }
+        deadlines.shutdown();
+        checkpoint();
+        pool.shutdown();
+        calls.shutdown();
+        if (requests != null) {
+            requests.shutdown();
+        }
+        serverSocket.close();
+    }
+
+
+
+    private JsonResult getJsonResult(JsonRequest request, InetAddress client) {
+        JsonResult result = new JsonResult(request);
+        JsonRequest.Op op = request.op();
+        if (op == null) {
+            return result.failed("Operation type not found");
+        }
+
+        switch (op) {
+            case SEARCH: {
+                String query = request.query();
+                int limit = request.limit();
+                List<String> pages = call(
+                    deadline -> wikiMediator.search(query, limit, deadline), request.timeout());
+                if (pages == null) {
+                    return result.failed("Operation timed out");
+                }
+                if (pages.isEmpty()) {
+                    return result.failed(query + " returned no results");
+                }
+                return result.succeeded(GSON.toJson(pages));
             }
-        //This is for the getPage Operation
-        } else if (type.compareToIgnoreCase("getPage") == 0) {
-            String pageTitle = jsonObjectIn.get("pageTitle").getAsString();
-            String result;
-            //this is executed to manage timeouts
-            if (jsonObjectIn.has("timeout")) {
-                //gets timeout from the json obj
-                long timeoutDuration = jsonObjectIn.get("timeout").getAsLong();
-                final Duration timeout = Duration.ofSeconds(timeoutDuration);
-
-                ExecutorService executor = Executors.newSingleThreadExecutor();
-                Future<String> future =
-                    executor.submit(() -> wikiMediator.getPage(pageTitle));
-                try {
-                    result = future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
-                } catch (TimeoutException | InterruptedException | ExecutionException e) {
-                    future.cancel(true);
-                    jsonObjectOut.addProperty("status", "failed");
-                    jsonObjectOut.addProperty("response", "Operation timed out");
-                    return jsonObjectOut;
+            case ZEITGEIST:
+            case TRENDING: {
+                int limit = request.limit();
+                List<String> pages = op == JsonRequest.Op.ZEITGEIST
+                    ? wikiMediator.zeitgeist(limit)
+                    : wikiMediator.trending(limit);
+                if (pages.isEmpty()) {
+                    return result.failed("returned no results");
                 }
-            } else {
-                result = wikiMediator.getPage(pageTitle);
+                return result.succeeded(GSON.toJson(pages));
             }
-            jsonObjectOut.addProperty("status", "success");
-            jsonObjectOut.addProperty("response", result);
+            case GET_PAGE: {
+                String pageTitle = request.pageTitle();
+                String text = call(deadline -> wikiMediator.getPage(pageTitle, deadline), request.timeout());
+                if (text == null) {
+                    return result.failed("Operation timed out");
+                }
+                return result.succeeded(text);
+            }
+            case PEAK_LOAD:
+                return result.succeeded(wikiMediator.peakLoad30s());
+            case BATCH:
+                return getBatchResult(request, result, client);
+            case STOP:
+                shutdown = true;
+                result.response = "bye";
+                return result;
+            default:
+                return result.failed("Operation type not found");
         }
-        //This is for the trending operation
-        else if (type.compareToIgnoreCase("trending") == 0) {
+    }
 
-            int limit = jsonObjectIn.get("limit").getAsInt();
-            List result = wikiMediator.trending(limit);
+    /**
+     * Answer the requests in a batch request, all at once, and put their
+     * replies in the response, in the order of the requests. The batch
+     * succeeds if it is well-formed, whether or not its requests do; each
+     * reply has its own status. Batches and stop requests cannot be part
+     * of a batch.
+     *
+     * Each request in the batch must be let in by the admission control,
+     * as if it had been sent on its own, on top of the batch itself; a
+     * request that is turned away is answered as overloaded, and the rest
+     * of the batch still runs.
+     *
+     * @param request a request of type batch, whose "requests" is an array
+     *                of requests
+     * @param result  the reply, with its id already set
+     * @param client  the address of the client that sent the batch
+     */
+    private JsonResult getBatchResult(JsonRequest request, JsonResult result, InetAddress client) {
+        List<JsonRequest> requestsIn = request.requests();
+        if (requestsIn == null) {
+            return result.failed("batch has no requests");
+        }
+        if (requestsIn.size() > MAX_BATCH_SIZE) {
+            return result.failed("batch has more than " + MAX_BATCH_SIZE + " requests");
+        }
 
-            if (!result.isEmpty()) {
-                jsonObjectOut.addProperty("status", "success");
-                String resultJson = new Gson().toJson(result);
-                jsonObjectOut.addProperty("response", resultJson);
-            } else {
-                jsonObjectOut.addProperty("status", "failed");
-                jsonObjectOut.addProperty("response", "returned no results");
+        List<CompletableFuture<JsonResult>> replies = new ArrayList<>(requestsIn.size());
+        for (JsonRequest item : requestsIn) {
+            replies.add(startBatchItem(item, client));
+        }
+        List<JsonResult> repliesOut = new ArrayList<>(replies.size());
+        for (CompletableFuture<JsonResult> reply : replies) {
+            repliesOut.add(reply.join());
+        }
+        result.status = "success";
+        result.response = repliesOut;
+        return result;
+    }
 
+    /**
+     * @return the reply to a request in a batch, which runs on calls once it
+     * is let in
+     */
+    private CompletableFuture<JsonResult> startBatchItem(JsonRequest item, InetAddress client) {
+        if (!item.isObject() || item.op() == null) {
+            return CompletableFuture.completedFuture(new JsonResult(null, false).failed("not a request"));
+        }
+        JsonResult result = new JsonResult(item);
+        if (item.op() == JsonRequest.Op.BATCH || item.op() == JsonRequest.Op.STOP) {
+            return CompletableFuture.completedFuture(result.failed("Operation type not allowed in a batch"));
+        }
+        AdmissionControl.Permit permit = admission.admit(client);
+        if (permit == null) {
+            return CompletableFuture.completedFuture(result.failed(OVERLOADED));
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return getJsonResult(item, client);
+            } catch (RuntimeException e) {
+                return result.failed("ill-formatted request");
+            } finally {
+                permit.release();
             }
+        }, calls);
+    }
+
+    /**
+     * The reply to a JSON request, which is written out field by field.
+     */
+    private static final class JsonResult {
+        final String id;
+        final boolean idIsJson;
+        String status;
+        Object response;
 
-        } else if (type.compareToIgnoreCase("peakLoad30s") == 0) {
+        /*
+            Abstraction Function:
+                a reply {"id": id, "status": status, "response": response}; the id is
+                    written as JSON if idIsJson and as a string otherwise, and left out if
+                    it is null, and the status is left out if it is null
 
-            int result = wikiMediator.peakLoad30s();
+            Representation Invariant:
+                response is a String, an Integer or a List<JsonResult>
+         */
 
-            jsonObjectOut.addProperty("status", "success");
-            jsonObjectOut.addProperty("response", result);
+        JsonResult(String id, boolean idIsJson) {
+            this.id = id;
+            this.idIsJson = idIsJson;
+        }
+
+        /* a reply to request, with no status or response yet */
+        JsonResult(JsonRequest request) {
+            this(request.id(), request.idIsJson());
+        }
 
-        } else if(type.compareToIgnoreCase("stop") == 0){
-            jsonObjectOut.addProperty("response", "bye");
-            shutdown = true;
+        JsonResult failed(String reason) {
+            status = "failed";
+            response = reason;
+            return this;
         }
-        else {
 
-            jsonObjectOut.addProperty("status", "failed");
-            jsonObjectOut.addProperty("response", "Operation type not found");
+        JsonResult succeeded(Object value) {
+            status = "success";
+            response = value;
+            return this;
+        }
 
+        void writeId(JsonWriter out) throws IOException {
+            if (id == null) {
+                return;
+            }
+            out.name("id");
+            if (idIsJson) {
+                out.jsonValue(id);
+            } else {
+                out.value(id);
+            }
+        }
+
+        void write(JsonWriter out) throws IOException {
+            out.beginObject();
+            writeId(out);
+            if (status != null) {
+                out.name("status").value(status);
+            }
+            out.name("response");
+            if (response instanceof List) {
+                out.beginArray();
+                for (Object item : (List<?>) response) {
+                    ((JsonResult) item).write(out);
+                }
+                out.endArray();
+            } else if (response instanceof Number) {
+                out.value((Number) response);
+            } else {
+                out.value((String) response);
+            }
+            out.endObject();
         }
-        return jsonObjectOut;
     }
 
 
     /**
-     * Start a WikiMediatorServer running on the default port.
+     * Start a WikiMediatorServer running on the default port. The first
+     * argument, if any, names the Mode (THREAD_POOL by default).
      */
     public static void main(String[] args) {
         try {
-            WikiMediatorServer server = new WikiMediatorServer(
-                WIKI_PORT, 10);
+            Mode mode = args.length > 0 ? Mode.valueOf(args[0].toUpperCase()) : Mode.THREAD_POOL;
+            WikiMediatorServer server = new Builder().mode(mode).build();
             server.serve();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Builds a WikiMediatorServer with non-default settings.
+     */
+    public static class Builder {
+        private int port = WIKI_PORT;
+        private int threads = 10;
+        private WikiMediator mediator;
+        private Mode mode = Mode.THREAD_POOL;
+        private boolean pipelining;
+        private int queueSize = 1024;
+        private int maxConnections = 10_000;
+        private int maxInFlightPerClient = Integer.MAX_VALUE;
+        private int initialLimit;
+        private Duration targetLatency = Duration.ZERO;
+        private File logFile;
+        private File peakLoadFile;
+
+        /**
+         * @param port the port number to bind the server to; WIKI_PORT by default
+         * @return this builder
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
 
-}
+        /**
+         * @param n the number of concurrent requests the server can handle;
+         *          10 by default
+         * @return this builder
+         */
+        public Builder threads(int n) {
+            this.threads = n;
+            return this;
+        }
+
+        /**
+         * @param wikiMediator answers the requests; by default, a WikiMediator
+         *                     with the statistics saved by the last server.
+         *                     The statistics of a mediator given here are
+         *                     only saved if logs is set too
+         * @return this builder
+         */
+        public Builder mediator(WikiMediator wikiMediator) {
+            this.mediator = wikiMediator;
+            return this;
+        }
 
+        /**
+         * @param mode how connections are handled; THREAD_POOL by default
+         * @return this builder
+         */
+        public Builder mode(Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Answer up to MAX_IN_FLIGHT requests of one connection at once, and
+         * write each reply as soon as it is ready, so replies may come back in
+         * a different order than their requests; clients match them up by id.
+         * By default a connection's requests are answered one at a time, in
+         * order.
+         *
+         * @param pipelining whether requests are pipelined
+         * @return this builder
+         */
+        public Builder pipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        /**
+         * @param queueSize how many connections (in the THREAD_POOL mode) or
+         *                  requests (in the NIO mode, and when pipelining) may
+         *                  wait for a thread; more are turned away as
+         *                  overloaded. 1024 by default
+         * @return this builder
+         */
+        public Builder queueSize(int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * @param maxConnections how many connections may be open at once;
+         *                       more are turned away as overloaded. 10000 by
+         *                       default
+         * @return this builder
+         */
+        public Builder maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
 
+        /**
+         * @param maxInFlightPerClient how many requests of one client, by
+         *                             address, may be answered at once; more
+         *                             are answered as overloaded. Not limited
+         *                             by default
+         * @return this builder
+         */
+        public Builder maxInFlightPerClient(int maxInFlightPerClient) {
+            this.maxInFlightPerClient = maxInFlightPerClient;
+            return this;
+        }
+
+        /**
+         * Limit how many requests are answered at once, answering more as
+         * overloaded, and adapt the limit to keep requests within a target
+         * latency: it grows slowly while they are, and is halved when they
+         * are not. Not limited by default.
+         *
+         * @param initialLimit  the limit to start with
+         * @param targetLatency how long a request should take at most
+         * @return this builder
+         */
+        public Builder adaptiveConcurrency(int initialLimit, Duration targetLatency) {
+            this.initialLimit = initialLimit;
+            this.targetLatency = targetLatency;
+            return this;
+        }
 
+        /**
+         * Save the statistics to these files every minute that there were
+         * requests, and when the server is stopped; a server that makes its
+         * own mediator starts from the statistics saved in them. By default,
+         * a server that makes its own mediator uses local/logs.txt and
+         * local/logs_peak.txt, and one given a mediator saves nothing.
+         *
+         * @param logFile      the file to save the request log to
+         * @param peakLoadFile the file to save the peak load to
+         * @return this builder
+         */
+        public Builder logs(File logFile, File peakLoadFile) {
+            this.logFile = logFile;
+            this.peakLoadFile = peakLoadFile;
+            return this;
+        }
 
+        /**
+         * @return a new server with this builder's settings
+         * @throws IOException if the port cannot be bound
+         */
+        public WikiMediatorServer build() throws IOException {
+            return new WikiMediatorServer(this);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts approximately how often each string has been seen in the last
+ * few seconds, to the second, in memory that depends only on the error
+ * allowed and how far back counts are kept.
+ *
+ * Sightings are counted in a ring of per-second Space-Saving summaries,
+ * which reaches history seconds back. A window's counts are the sums of
+ * the counts of its seconds' summaries, each of which is off by at most
+ * epsilon of that second's sightings; so a window's counts are off by at
+ * most epsilon of its sightings, too high or too low.
+ *
+ * ApproximateWindowCounts is thread safe.
+ */
+final class ApproximateWindowCounts implements WindowCounts {
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final int window;
+
+    private final int history;
+
+    private final int counters;
+
+    private final SpaceSaving[] buckets;
+
+    private final long[] seconds;
+
+    private long now = NONE;
+
+    /*
+        Abstraction Function:
+            now is the latest second (since the epoch) counted in, or NONE before anything is
+                counted
+
+            for each second s in (now - history, now], the strings seen in s are summarized
+                by buckets[slot(s)] if seconds[slot(s)] == s and that bucket is not null; none
+                were seen otherwise
+
+        Representation Invariant:
+            0 < window <= history, and buckets.length == seconds.length == history
+
+            every bucket tracks at most counters strings
+
+        Thread Safety Argument:
+            every field is guarded by this
+     */
+
+    /**
+     * @param window  the window, in seconds, of top(limit, millis), > 0
+     * @param history how many seconds back counts are kept for, >= window
+     * @param epsilon the error allowed in a count, as a fraction of the
+     *                sightings in the window, 0 < epsilon < 1
+     */
+    ApproximateWindowCounts(int window, int history, double epsilon) {
+        if (window <= 0 || history < window) {
+            throw new IllegalArgumentException("window " + window + " of history " + history);
+        }
+        if (!(epsilon > 0 && epsilon < 1)) {
+            throw new IllegalArgumentException("error " + epsilon);
+        }
+        this.window = window;
+        this.history = history;
+        this.counters = SpaceSaving.counters(epsilon);
+        this.buckets = new SpaceSaving[history];
+        this.seconds = new long[history];
+        Arrays.fill(seconds, NONE);
+    }
+
+    /**
+     * Count a sighting of a string. A sighting older than one already
+     * counted is counted in the latest second instead.
+     *
+     * @param millis when the string was seen, in milli-seconds since the epoch
+     */
+    @Override
+    public synchronized void record(String string, long millis) {
+        now = Math.max(now, Math.floorDiv(millis, 1000));
+        int slot = slot(now);
+        if (buckets[slot] == null || seconds[slot] != now) {
+            buckets[slot] = new SpaceSaving(counters, 0);
+            seconds[slot] = now;
+        }
+        buckets[slot].increment(string);
+    }
+
+    @Override
+    public List<String> top(int limit, long millis) {
+        return top(limit, window, millis);
+    }
+
+    /**
+     * @param limit         the most strings to list
+     * @param windowSeconds how many seconds back to count, 0 < windowSeconds <= history
+     * @param millis        the time now, in milli-seconds since the epoch
+     * @return the limit most frequent strings of the last windowSeconds
+     * seconds, in non-increasing order of estimated count
+     * @throws IllegalArgumentException if windowSeconds is out of range
+     */
+    @Override
+    public synchronized List<String> top(int limit, int windowSeconds, long millis) {
+        if (windowSeconds <= 0 || windowSeconds > history) {
+            throw new IllegalArgumentException("window of " + windowSeconds
+                + "s is not within (0, " + history + "]");
+        }
+        long end = Math.max(now, Math.floorDiv(millis, 1000));
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (long second = end - windowSeconds + 1; second <= end; second++) {
+            int slot = slot(second);
+            if (seconds[slot] == second && buckets[slot] != null) {
+                SpaceSaving bucket = buckets[slot];
+                for (String string : bucket.tracked()) {
+                    counts.merge(string, bucket.count(string), Long::sum);
+                }
+            }
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        List<String> top = new ArrayList<>(Math.max(0, Math.min(limit, entries.size())));
+        for (int i = 0; i < limit && i < entries.size(); i++) {
+            top.add(entries.get(i).getKey());
+        }
+        return top;
+    }
+
+    private int slot(long second) {
+        return (int) Math.floorMod(second, (long) history);
+    }
+}
@@ -0,0 +1,65 @@
+package cpen221.mp3.wikimediator;
+
+/**
+ * A snapshot of how much page-cache compression has saved and cost.
+ * CompressionStats is immutable.
+ */
+public final class CompressionStats {
+
+    private final long rawBytes, storedBytes, compressNanos, decompressNanos;
+
+    CompressionStats(long rawBytes, long storedBytes, long compressNanos, long decompressNanos) {
+        this.rawBytes = rawBytes;
+        this.storedBytes = storedBytes;
+        this.compressNanos = compressNanos;
+        this.decompressNanos = decompressNanos;
+    }
+
+    /**
+     * @return the total UTF-8 size of the page bodies that were cached
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * @return the total size the cached page bodies were stored in
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * @return raw bytes per stored byte, or 1.0 if nothing was cached yet
+     */
+    public double getCompressionRatio() {
+        return storedBytes == 0 ? 1.0 : (double) rawBytes / storedBytes;
+    }
+
+    /**
+     * @return the total CPU time spent compressing, in nano-seconds (wall time
+     * where the thread's CPU time cannot be measured, as on a virtual thread)
+     */
+    public long getCompressNanos() {
+        return compressNanos;
+    }
+
+    /**
+     * @return the total CPU time spent decompressing, in nano-seconds (wall time
+     * where the thread's CPU time cannot be measured, as on a virtual thread)
+     */
+    public long getDecompressNanos() {
+        return decompressNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionStats{" +
+            "rawBytes: " + rawBytes +
+            ", storedBytes: " + storedBytes +
+            ", ratio: " + String.format("%.2f", getCompressionRatio()) +
+            ", compressNanos: " + compressNanos +
+            ", decompressNanos: " + decompressNanos +
+            '}';
+    }
+}
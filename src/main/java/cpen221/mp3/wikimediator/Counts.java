@@ -0,0 +1,25 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.List;
+
+/**
+ * Counts how often each string is requested, to answer zeitgeist: exactly,
+ * as a FrequencyIndex does, or approximately in fixed memory, as a
+ * SpaceSaving summary does.
+ *
+ * Implementations are thread safe.
+ */
+interface Counts {
+
+    /**
+     * Count one more request of a string
+     */
+    void increment(String string);
+
+    /**
+     * @param limit the most strings to list
+     * @return the limit most requested strings, in non-increasing order of
+     * (estimated) count
+     */
+    List<String> top(int limit);
+}
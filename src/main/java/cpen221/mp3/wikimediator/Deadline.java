@@ -0,0 +1,137 @@
+package cpen221.mp3.wikimediator;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The time by which a request must be answered. A request that waits for
+ * a page or search results past its deadline gives up, but the fetch it
+ * was waiting for carries on and its result is still cached.
+ *
+ * Deadlines are timed by a scheduler that all of them can share, such as
+ * a server's, which expires each one when its time comes; no thread waits
+ * per deadline. A deadline should be cancelled once its request is
+ * answered, so that the scheduler can forget it.
+ *
+ * Deadlines are thread safe.
+ */
+public final class Deadline {
+
+    private static final Deadline NONE = new Deadline(null, null);
+
+    private final CompletableFuture<Void> expiry;
+
+    private final ScheduledFuture<?> timer;
+
+    /*
+        Abstraction Function:
+            no deadline if expiry is null; otherwise a deadline that has passed iff expiry
+                is done, which timer completes when the time comes
+
+        Representation Invariant:
+            expiry == null iff timer == null
+
+        Thread Safety Argument:
+            the fields are final, and expiry and timer are thread safe
+     */
+
+    private Deadline(CompletableFuture<Void> expiry, ScheduledFuture<?> timer) {
+        this.expiry = expiry;
+        this.timer = timer;
+    }
+
+    /**
+     * @return a deadline that never passes
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * @param timeout   how long from now until the deadline
+     * @param scheduler times the deadline
+     * @return a deadline timeout from now
+     */
+    public static Deadline after(Duration timeout, ScheduledExecutorService scheduler) {
+        CompletableFuture<Void> expiry = new CompletableFuture<>();
+        ScheduledFuture<?> timer = scheduler.schedule(() -> expiry.complete(null),
+            timeout.toNanos(), TimeUnit.NANOSECONDS);
+        return new Deadline(expiry, timer);
+    }
+
+    /**
+     * @return true iff the deadline has passed
+     */
+    public boolean isExpired() {
+        return expiry != null && expiry.isDone();
+    }
+
+    /**
+     * @return how long until the deadline, in nanoseconds: 0 if it has
+     * passed, and Long.MAX_VALUE if this is none()
+     */
+    long remainingNanos() {
+        if (expiry == null) {
+            return Long.MAX_VALUE;
+        }
+        return expiry.isDone() ? 0 : Math.max(0, timer.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Run action when the deadline passes, or now if it has; never if this
+     * is none() or is cancelled first. action runs on the scheduler's
+     * thread, so it must be quick.
+     */
+    public void onExpiry(Runnable action) {
+        if (expiry != null) {
+            expiry.thenRun(action);
+        }
+    }
+
+    /**
+     * Stop timing the deadline, once its request is answered. It never
+     * passes after this.
+     */
+    public void cancel() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Wait for a result until the deadline
+     *
+     * @param result what to wait for
+     * @return the result, if it arrives in time
+     * @throws TimeoutException if the deadline passes first
+     */
+    <T> T await(CompletableFuture<T> result) throws TimeoutException {
+        if (expiry != null && !result.isDone()) {
+            try {
+                CompletableFuture.anyOf(result, expiry).join();
+            } catch (CompletionException e) {
+                // result failed; rethrown below
+            }
+            if (!result.isDone()) {
+                throw new TimeoutException("deadline passed");
+            }
+        }
+
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package cpen221.mp3.wikimediator;
+
+/**
+ * Thrown instead of asking the source for a page or search results when
+ * the deadline of the request that would have asked has already passed.
+ * No request was made, so nothing is cached; a request with time left
+ * that was waiting for the same fetch makes its own.
+ */
+class DeadlinePassedException extends RuntimeException {
+
+    DeadlinePassedException() {
+        super("deadline passed before the request to the source was made");
+    }
+}
@@ -0,0 +1,206 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts how often each string has been seen, kept up to date as they are
+ * seen, so that the most frequent ones can be listed without counting
+ * again.
+ *
+ * The strings are kept in buckets, one per count, which are linked in
+ * order of count. Seeing a string moves it to the bucket above, in
+ * constant time, and the k most frequent strings are the first k found
+ * walking down from the top bucket, since no bucket is ever empty.
+ * Sightings can also be taken back, as when they age out of a window.
+ *
+ * FrequencyIndex is thread safe.
+ */
+final class FrequencyIndex implements Counts {
+
+    /* the strings seen count times */
+    private static final class Bucket {
+        final long count;
+        final LinkedHashSet<String> strings = new LinkedHashSet<>();
+        Bucket higher;
+        Bucket lower;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+    }
+
+    private final Map<String, Bucket> buckets = new HashMap<>();
+
+    private Bucket highest;
+
+    private Bucket lowest;
+
+    /*
+        Abstraction Function:
+            each string s in buckets has been seen buckets.get(s).count times; other strings
+                have not been seen
+
+            a bucket's strings are in the order in which they reached its count
+
+        Representation Invariant:
+            the buckets form a list from lowest to highest, linked both ways by higher and
+                lower, in which counts strictly increase and are all positive
+
+            no bucket in the list is empty, and s is in buckets.get(s).strings for every s in
+                buckets, which is the only bucket that holds s
+
+        Thread Safety Argument:
+            every field is guarded by this
+     */
+
+    /**
+     * Count one more sighting of a string
+     */
+    @Override
+    public void increment(String string) {
+        increment(string, 1);
+    }
+
+    /**
+     * Count more sightings of a string. This takes time in proportion to
+     * the number of distinct counts between the string's count and its new
+     * one, at most times.
+     *
+     * @param times how many sightings to count, > 0
+     */
+    synchronized void increment(String string, long times) {
+        Bucket from = buckets.get(string);
+        long count = (from == null ? 0 : from.count) + times;
+        Bucket below = from;
+        Bucket to = from == null ? lowest : from.higher;
+        while (to != null && to.count < count) {
+            below = to;
+            to = to.higher;
+        }
+        if (to == null || to.count != count) {
+            to = insertAbove(below, count);
+        }
+        to.strings.add(string);
+        buckets.put(string, to);
+
+        if (from != null) {
+            from.strings.remove(string);
+            if (from.strings.isEmpty()) {
+                unlink(from);
+            }
+        }
+    }
+
+    /**
+     * Take back sightings of a string, forgetting it once none are left.
+     * This takes time in proportion to the number of distinct counts
+     * between the string's count and its new one, at most times.
+     *
+     * @param times how many sightings to take back, > 0
+     */
+    synchronized void decrement(String string, long times) {
+        Bucket from = buckets.get(string);
+        if (from == null) {
+            return;
+        }
+        from.strings.remove(string);
+        long count = from.count - times;
+        if (count <= 0) {
+            buckets.remove(string);
+        } else {
+            Bucket to = from.lower;
+            while (to != null && to.count > count) {
+                to = to.lower;
+            }
+            if (to == null || to.count != count) {
+                to = insertAbove(to, count);
+            }
+            to.strings.add(string);
+            buckets.put(string, to);
+        }
+        if (from.strings.isEmpty()) {
+            unlink(from);
+        }
+    }
+
+    /**
+     * @param limit the most strings to list
+     * @return the limit most frequent strings, in non-increasing order of
+     * count; strings seen equally often are in the order they reached
+     * that count
+     */
+    @Override
+    public synchronized List<String> top(int limit) {
+        List<String> top = new ArrayList<>(Math.max(0, Math.min(limit, buckets.size())));
+        for (Bucket bucket = highest; bucket != null && top.size() < limit; bucket = bucket.lower) {
+            for (String string : bucket.strings) {
+                if (top.size() == limit) {
+                    break;
+                }
+                top.add(string);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * @return how many times a string has been seen; 0 if never
+     */
+    synchronized long count(String string) {
+        Bucket bucket = buckets.get(string);
+        return bucket == null ? 0 : bucket.count;
+    }
+
+    /**
+     * @return the number of distinct strings seen
+     */
+    synchronized int size() {
+        return buckets.size();
+    }
+
+    /**
+     * @return a string seen least often, the first to reach that count; null
+     * if none has been seen
+     */
+    synchronized String lowest() {
+        return lowest == null ? null : lowest.strings.iterator().next();
+    }
+
+    /**
+     * @return a new, empty bucket for count, linked in just above below, or
+     * at the bottom if below is null
+     */
+    private Bucket insertAbove(Bucket below, long count) {
+        Bucket bucket = new Bucket(count);
+        bucket.lower = below;
+        bucket.higher = below == null ? lowest : below.higher;
+        if (bucket.lower != null) {
+            bucket.lower.higher = bucket;
+        } else {
+            lowest = bucket;
+        }
+        if (bucket.higher != null) {
+            bucket.higher.lower = bucket;
+        } else {
+            highest = bucket;
+        }
+        return bucket;
+    }
+
+    private void unlink(Bucket bucket) {
+        if (bucket.lower != null) {
+            bucket.lower.higher = bucket.higher;
+        } else {
+            lowest = bucket.higher;
+        }
+        if (bucket.higher != null) {
+            bucket.higher.lower = bucket.lower;
+        } else {
+            highest = bucket.lower;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package cpen221.mp3.wikimediator;
+
+import org.fastily.jwiki.core.Wiki;
+
+import java.util.List;
+
+/**
+ * A WikiSource that asks English Wikipedia, through jwiki.
+ */
+final class JWikiSource implements WikiSource {
+
+    private final Wiki wiki;
+
+    /*
+        Thread Safety Argument:
+            wiki is final, and jwiki's Wiki sends each request on its own through a thread
+                safe HTTP client
+     */
+
+    JWikiSource() {
+        wiki = new Wiki.Builder().build();
+    }
+
+    @Override
+    public String getPageText(String pageTitle) {
+        return wiki.getPageText(pageTitle);
+    }
+
+    @Override
+    public List<String> search(String query, int limit) {
+        return wiki.search(query, limit);
+    }
+
+    /* jwiki cannot be given a timeout, so the most a deadline can do is spare Wikipedia a
+       request that no one will wait for */
+    @Override
+    public String getPageText(String pageTitle, Deadline deadline) {
+        if (deadline.isExpired()) {
+            throw new DeadlinePassedException();
+        }
+        return getPageText(pageTitle);
+    }
+
+    @Override
+    public List<String> search(String query, int limit, Deadline deadline) {
+        if (deadline.isExpired()) {
+            throw new DeadlinePassedException();
+        }
+        return search(query, limit);
+    }
+}
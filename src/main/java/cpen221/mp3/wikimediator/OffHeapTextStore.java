@@ -0,0 +1,364 @@
+package cpen221.mp3.wikimediator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Stores byte strings (such as UTF-8 encoded page texts) outside the Java
+ * heap, in direct ByteBuffer slabs, so that the garbage collector never
+ * has to look at them.
+ *
+ * Memory is handed out memcached-style: a slab in use for small records
+ * is cut into chunks of one power-of-two size class, and freed chunks are
+ * reused by later allocations of the same class. A slab whose chunks are
+ * all free again goes back to a pool of free slabs, from which any class
+ * can take it, and a record too big for one slab is spread over as many
+ * free slabs as it needs. Slabs are allocated as they are first needed
+ * and are never handed back: the memory of a direct buffer is only
+ * released once the garbage collector gets round to it, so dropping slabs
+ * and allocating new ones could take the store over its budget meanwhile.
+ *
+ * Every chunk starts with a stamp that is unique to the allocation, so a
+ * read through a handle whose chunk was freed (and possibly reused) is
+ * detected instead of returning another record.
+ *
+ * OffHeapTextStore is thread safe.
+ */
+final class OffHeapTextStore {
+
+    /* a handle that refers to no record */
+    static final long NO_HANDLE = -1;
+
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private static final int MIN_CHUNK_SHIFT = 8;
+
+    private static final int HEADER = Long.BYTES;
+
+    /* the size class of a free slab */
+    private static final int FREE = -1;
+
+    /* the size class of the first slab of a record spread over several */
+    private static final int LARGE = -2;
+
+    /* the size class of the other slabs of a record spread over several */
+    private static final int SPANNED = -3;
+
+    private static final class Slab {
+        final int index;
+        final ByteBuffer buffer;
+        int sizeClass = FREE;
+        int[] freeOffsets;
+        int freeCount;
+        int live;
+        Slab[] span;
+
+        Slab(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        int chunkSize() {
+            return 1 << (sizeClass + MIN_CHUNK_SHIFT);
+        }
+
+        /* cut this free slab into free chunks of a size class */
+        void cut(int sizeClass) {
+            this.sizeClass = sizeClass;
+            int chunkSize = chunkSize();
+            freeCount = SLAB_SIZE / chunkSize;
+            freeOffsets = new int[freeCount];
+            for (int i = 0; i < freeCount; i++) {
+                freeOffsets[i] = SLAB_SIZE - (i + 1) * chunkSize;
+            }
+            live = 0;
+        }
+    }
+
+    private final long maxBytes;
+
+    private final List<Slab> slabs;
+
+    private final Deque<Slab> freeSlabs;
+
+    private final List<Deque<Slab>> partialSlabs;
+
+    private long reservedBytes;
+
+    private long nextStamp;
+
+    /*
+        Abstraction Function:
+            a handle h refers to the record stored at offset (int) h of slabs.get((int) (h >>> 32));
+                the record is its stamp (HEADER bytes) followed by its data, which, for a LARGE
+                slab, carries on at the start of each slab of its span in turn
+
+            a slab s of size class c >= 0 is cut into chunks of 2^(c + MIN_CHUNK_SHIFT) bytes,
+                of which those at the first s.freeCount of s.freeOffsets are free and the rest
+                hold one live record each
+
+            partialSlabs.get(c) holds the slabs of size class c that have both free and live
+                chunks; freeSlabs holds the slabs that hold no record
+
+            reservedBytes is the total capacity of the direct buffers in slabs
+
+        Representation Invariant:
+            reservedBytes == slabs.size() * SLAB_SIZE <= maxBytes, and slabs.get(i).index == i
+
+            every slab is in exactly one of: freeSlabs (class FREE), partialSlabs.get(c) (class
+                c, 0 < live < number of chunks), the span of a live record (class LARGE for the
+                first slab, SPANNED for the rest), or none of them (class c >= 0, no free chunk)
+
+            a LARGE slab's span starts with that slab, and only LARGE slabs have a span
+
+        Thread Safety Argument:
+            every field is guarded by this
+     */
+
+    /**
+     * @param maxBytes the most off-heap memory the store may reserve
+     */
+    OffHeapTextStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+        slabs = new ArrayList<>();
+        freeSlabs = new ArrayDeque<>();
+        partialSlabs = new ArrayList<>();
+        for (int size = 1 << MIN_CHUNK_SHIFT; size <= SLAB_SIZE; size <<= 1) {
+            partialSlabs.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Copy data into the store
+     *
+     * @param data the bytes to store
+     * @return a handle for the stored record, or NO_HANDLE if the store has
+     * no room for it
+     */
+    synchronized long put(byte[] data) {
+        int recordSize = HEADER + data.length;
+        if (recordSize > SLAB_SIZE) {
+            return putLarge(data, recordSize);
+        }
+
+        int sizeClass = sizeClass(recordSize);
+        Deque<Slab> partial = partialSlabs.get(sizeClass);
+        Slab slab = partial.peek();
+        if (slab == null) {
+            slab = takeSlab();
+            if (slab == null) {
+                return NO_HANDLE;
+            }
+            slab.cut(sizeClass);
+            partial.push(slab);
+        }
+        int offset = slab.freeOffsets[--slab.freeCount];
+        slab.live++;
+        if (slab.freeCount == 0) {
+            partial.pop();
+        }
+
+        slab.buffer.putLong(offset, ++nextStamp);
+        ByteBuffer target = slab.buffer.duplicate();
+        target.position(offset + HEADER);
+        target.put(data);
+        return handle(slab, offset);
+    }
+
+    /**
+     * @param handle a handle returned by put
+     * @return the stamp of the record, needed to read it back
+     */
+    synchronized long stamp(long handle) {
+        return slabs.get(slabIndex(handle)).buffer.getLong(offset(handle));
+    }
+
+    /**
+     * Copy a record back onto the heap
+     *
+     * @param handle a handle returned by put
+     * @param stamp  the stamp of the record
+     * @param length the length of the record's data
+     * @return the record's data, or null if the record has been freed
+     */
+    synchronized byte[] get(long handle, long stamp, int length) {
+        int slabIndex = slabIndex(handle);
+        if (slabIndex >= slabs.size()) {
+            return null;
+        }
+        Slab slab = slabs.get(slabIndex);
+        int offset = offset(handle);
+        /* only the start of a chunk holds a stamp; anywhere else could be data */
+        boolean chunkStart = slab.sizeClass == LARGE ? offset == 0
+            : slab.sizeClass >= 0 && offset % slab.chunkSize() == 0;
+        if (!chunkStart || slab.buffer.getLong(offset) != stamp) {
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        if (slab.sizeClass == LARGE) {
+            copy(slab.span, data, false);
+        } else {
+            ByteBuffer source = slab.buffer.duplicate();
+            source.position(offset + HEADER);
+            source.get(data);
+        }
+        return data;
+    }
+
+    /**
+     * Release the memory of a record. Later reads of the record return null.
+     *
+     * @param handle a handle returned by put and not yet freed
+     * @param length the length of the record's data
+     */
+    synchronized void free(long handle, int length) {
+        Slab slab = slabs.get(slabIndex(handle));
+        int offset = offset(handle);
+        slab.buffer.putLong(offset, 0);
+
+        if (slab.sizeClass == LARGE) {
+            Slab[] span = slab.span;
+            slab.span = null;
+            for (Slab spanned : span) {
+                giveBack(spanned);
+            }
+            return;
+        }
+
+        boolean wasFull = slab.freeCount == 0;
+        slab.freeOffsets[slab.freeCount++] = offset;
+        slab.live--;
+        Deque<Slab> partial = partialSlabs.get(slab.sizeClass);
+        if (slab.live == 0) {
+            if (!wasFull) {
+                partial.remove(slab);
+            }
+            giveBack(slab);
+        } else if (wasFull) {
+            partial.push(slab);
+        }
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory the store has reserved
+     */
+    synchronized long reservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory the store has reserved
+     * but that no record is using, not counting free chunks of slabs that
+     * are partly in use
+     */
+    synchronized long freeBytes() {
+        return (long) freeSlabs.size() * SLAB_SIZE;
+    }
+
+    /**
+     * @param length the length of a record's data
+     * @return how much of the store's memory a record of that length takes
+     * up: its whole chunk, or its whole span of slabs
+     */
+    static long allocation(int length) {
+        int recordSize = HEADER + length;
+        if (recordSize > SLAB_SIZE) {
+            return (long) ((recordSize + SLAB_SIZE - 1) / SLAB_SIZE) * SLAB_SIZE;
+        }
+        return 1 << (sizeClass(recordSize) + MIN_CHUNK_SHIFT);
+    }
+
+    /**
+     * Spread a record too big for one slab over as many free slabs as it
+     * needs
+     *
+     * @return a handle for the stored record, or NO_HANDLE if there are not
+     * enough free slabs, or room for new ones
+     */
+    private long putLarge(byte[] data, int recordSize) {
+        int needed = (recordSize + SLAB_SIZE - 1) / SLAB_SIZE;
+        if (freeSlabs.size() + (maxBytes - reservedBytes) / SLAB_SIZE < needed) {
+            return NO_HANDLE;
+        }
+
+        Slab[] span = new Slab[needed];
+        for (int i = 0; i < needed; i++) {
+            span[i] = takeSlab();
+            span[i].sizeClass = i == 0 ? LARGE : SPANNED;
+        }
+        Slab first = span[0];
+        first.span = span;
+        first.buffer.putLong(0, ++nextStamp);
+        copy(span, data, true);
+        return handle(first, 0);
+    }
+
+    /**
+     * Copy the data of a record spread over a span of slabs
+     *
+     * @param toSlabs whether to copy data into the slabs, rather than out
+     */
+    private static void copy(Slab[] span, byte[] data, boolean toSlabs) {
+        int copied = 0;
+        for (int i = 0; i < span.length && copied < data.length; i++) {
+            ByteBuffer slab = span[i].buffer.duplicate();
+            slab.position(i == 0 ? HEADER : 0);
+            int length = Math.min(slab.remaining(), data.length - copied);
+            if (toSlabs) {
+                slab.put(data, copied, length);
+            } else {
+                slab.get(data, copied, length);
+            }
+            copied += length;
+        }
+    }
+
+    /**
+     * @return a free slab, allocating a new one if there is none, or null if
+     * there is no room for a new one
+     */
+    private Slab takeSlab() {
+        if (!freeSlabs.isEmpty()) {
+            return freeSlabs.pop();
+        }
+        if (reservedBytes + SLAB_SIZE > maxBytes) {
+            return null;
+        }
+        Slab slab = new Slab(slabs.size(), ByteBuffer.allocateDirect(SLAB_SIZE));
+        slabs.add(slab);
+        reservedBytes += SLAB_SIZE;
+        return slab;
+    }
+
+    private void giveBack(Slab slab) {
+        slab.sizeClass = FREE;
+        slab.freeOffsets = null;
+        slab.freeCount = 0;
+        slab.live = 0;
+        freeSlabs.push(slab);
+    }
+
+    private static int sizeClass(int recordSize) {
+        int sizeClass = 0;
+        while ((1 << (sizeClass + MIN_CHUNK_SHIFT)) < recordSize) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static long handle(Slab slab, int offset) {
+        return (long) slab.index << 32 | offset;
+    }
+
+    private static int slabIndex(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+}
@@ -0,0 +1,161 @@
+package cpen221.mp3.wikimediator;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses page bodies with Deflate, primed with a preset dictionary of
+ * markup that is common in wikitext so that even short pages compress
+ * well, and keeps count of what compression saves and costs.
+ *
+ * PageCompressor is thread safe.
+ */
+final class PageCompressor {
+
+    /*
+        The preset dictionary. Deflate looks back at most 32KB, and matches
+        against the end of the dictionary are the cheapest, so the most
+        common strings are last.
+     */
+    private static final byte[] DICTIONARY = String.join("",
+        "{{Use dmy dates|date=", "{{Use mdy dates|date=", "{{Short description|",
+        "{{Authority control}}", "{{DEFAULTSORT:", "{{Commons category|", "== External links ==\n",
+        "== See also ==\n", "== Further reading ==\n", "==References==\n", "== References ==\n",
+        "{{Reflist}}\n", "{{reflist}}\n", "| birth_date = {{birth date and age|", "| birth_place = ",
+        "| death_date = ", "| occupation = ", "| image = ", "| caption = ", "| name = ",
+        "{{Infobox person\n", "{{Infobox ", "[[File:", "|thumb|", "|upright|", "[[Category:",
+        "{{cite book |last=", "|first=", "|year=", "|publisher=", "|isbn=", "|page=", "|pages=",
+        "{{cite news |url=", "{{cite journal |", "|journal=", "|volume=", "|issue=", "|doi=",
+        "|work=", "|date=", "|archive-url=", "|archive-date=", "|url-status=live",
+        "|url-status=dead", "{{cite web |url=https://www.", "{{cite web|url=https://",
+        "|title=", "|access-date=", "|accessdate=", "}}</ref>", "<ref name=\"", "\" />",
+        "<ref>", "</ref>", "[[", "]]", "{{", "}}", "'''", "''", " the ", " of the ", " and ",
+        " in the ", " was ", " is ", " to ", " a ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int threshold;
+
+    private final LongAdder rawBytes = new LongAdder();
+
+    private final LongAdder storedBytes = new LongAdder();
+
+    private final LongAdder compressNanos = new LongAdder();
+
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /*
+        Abstraction Function:
+            threshold is the smallest body, in bytes, that is worth compressing
+
+            rawBytes and storedBytes are the total sizes of all bodies given to compress(),
+                before and after compression
+
+            compressNanos and decompressNanos are the total CPU time spent compressing and
+                decompressing, as cpuNanos measures it
+
+        Thread Safety Argument:
+            threshold is final and immutable; the counters are thread safe LongAdders; every
+                Deflater and Inflater is confined to the call that creates it
+     */
+
+    /**
+     * @param threshold bodies shorter than this many bytes are stored as they are
+     */
+    PageCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param body the UTF-8 encoded page body
+     * @return the compressed body, or null if the body is below the threshold
+     * or does not get smaller
+     */
+    byte[] compress(byte[] body) {
+        rawBytes.add(body.length);
+        if (body.length < threshold) {
+            storedBytes.add(body.length);
+            return null;
+        }
+
+        long start = cpuNanos();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(body);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 3 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            byte[] compressed = out.toByteArray();
+
+            if (compressed.length >= body.length) {
+                storedBytes.add(body.length);
+                return null;
+            }
+            storedBytes.add(compressed.length);
+            return compressed;
+        } finally {
+            deflater.end();
+            compressNanos.add(cpuNanos() - start);
+        }
+    }
+
+    /**
+     * @param compressed a body returned by compress
+     * @param length the length of the body before it was compressed
+     * @return the UTF-8 encoded page body
+     */
+    byte[] decompress(byte[] compressed, int length) {
+        long start = cpuNanos();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] body = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int read = inflater.inflate(body, n, length - n);
+                if (read == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("compressed page body is truncated");
+                }
+                n += read;
+            }
+            return body;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("compressed page body is corrupt", e);
+        } finally {
+            inflater.end();
+            decompressNanos.add(cpuNanos() - start);
+        }
+    }
+
+    /**
+     * @return the CPU time of the calling thread, in nano-seconds; where the
+     * JVM cannot measure that, as on a virtual thread, the wall time, which
+     * also counts time the thread was not running
+     */
+    private static long cpuNanos() {
+        long nanos = THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        return nanos >= 0 ? nanos : System.nanoTime();
+    }
+
+    /**
+     * @return the compression statistics so far
+     */
+    CompressionStats stats() {
+        return new CompressionStats(rawBytes.sum(), storedBytes.sum(),
+            compressNanos.sum(), decompressNanos.sum());
+    }
+}
@@ -0,0 +1,118 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Finds the most requests made in any 30 second window, to within a
+ * tick of 10ms, in memory that does not grow with uptime.
+ *
+ * Requests are counted in a ring of per-tick counters that reaches one
+ * window back. As the clock moves on, the count of each finished tick is
+ * added to the sum of the window, the count of the tick leaving the
+ * window is taken out, and the largest sum is kept; so counting a
+ * request is one atomic increment, except once per tick, and the peak is
+ * known at any time without a scan.
+ *
+ * PeakLoadCounter is thread safe.
+ */
+final class PeakLoadCounter {
+
+    static final int TICK_MILLIS = 10;
+
+    static final int WINDOW_MILLIS = 30 * 1000;
+
+    private static final int TICKS = WINDOW_MILLIS / TICK_MILLIS;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(TICKS);
+
+    private final int[] summed = new int[TICKS];
+
+    private volatile long current = Long.MIN_VALUE;
+
+    private long completedSum;
+
+    private long peak;
+
+    /*
+        Abstraction Function:
+            current is the tick (of TICK_MILLIS since the epoch) being counted, or
+                Long.MIN_VALUE before any request is
+
+            the requests of tick t, for t in (current - TICKS, current], were counted in
+                counts[slot(t)]; summed[slot(t)] is how many of them, for t < current, are in
+                completedSum, which is the sum of the window up to but not including current
+
+            peak is the most requests counted in any window that ended before current
+
+        Representation Invariant:
+            completedSum is the sum of summed[slot(t)] for t in (current - TICKS, current),
+                summed[slot(current)] == 0, and 0 <= completedSum <= peak
+
+        Thread Safety Argument:
+            counts is atomic and current is volatile, and only change together under this
+                lock, as do summed, completedSum and peak. A request that counts itself in
+                a tick just as the clock moves past it may be left out of the window sums,
+                but never taken out of them without having been put in
+     */
+
+    /**
+     * Count a request
+     *
+     * @param millis when it was made, in milli-seconds since the epoch; a
+     *               request older than one already counted is counted as
+     *               made at that time
+     */
+    void record(long millis) {
+        long tick = Math.floorDiv(millis, TICK_MILLIS);
+        long now = current;
+        if (tick > now) {
+            advance(tick);
+            now = current;
+        }
+        counts.incrementAndGet(slot(now));
+    }
+
+    /**
+     * @return the most requests made in any window of WINDOW_MILLIS
+     */
+    synchronized int peak() {
+        long inWindow = completedSum + (current == Long.MIN_VALUE ? 0 : counts.get(slot(current)));
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(peak, inWindow));
+    }
+
+    /**
+     * Start from a peak found before, such as one saved by a previous run
+     */
+    synchronized void restore(int savedPeak) {
+        peak = Math.max(peak, savedPeak);
+    }
+
+    /**
+     * Move the clock on to tick, closing the ticks before it
+     */
+    private synchronized void advance(long tick) {
+        if (current == Long.MIN_VALUE) {
+            current = tick;
+            return;
+        }
+        if (tick <= current) {
+            return;
+        }
+        for (long closing = current; closing < tick && closing < current + TICKS; closing++) {
+            int count = counts.get(slot(closing));
+            summed[slot(closing)] = count;
+            completedSum += count;
+            peak = Math.max(peak, completedSum);
+
+            int leaving = slot(closing + 1);
+            completedSum -= summed[leaving];
+            summed[leaving] = 0;
+            counts.set(leaving, 0);
+        }
+        current = tick;
+    }
+
+    private static int slot(long tick) {
+        return (int) Math.floorMod(tick, (long) TICKS);
+    }
+}
@@ -0,0 +1,180 @@
+package cpen221.mp3.wikimediator;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The strings requested of a WikiMediator, and when, kept in columns of
+ * primitives instead of as an object per request.
+ *
+ * Each string is given an id the first time it is requested, and a
+ * request is logged as its time, in a long[], and its string's id, in an
+ * int[]. The columns grow a chunk of CHUNK_SIZE at a time, so their
+ * contents are never copied, and logging a request allocates nothing except when a
+ * chunk fills up or a string is new. Requests are kept in order of time:
+ * one logged with a time earlier than the last is logged at that time.
+ *
+ * RequestLog is thread safe.
+ */
+final class RequestLog {
+
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Sees the requests of a log, in order
+     */
+    interface Visitor {
+        void visit(long millis, String string);
+    }
+
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private volatile String[] strings = new String[64];
+
+    private long[][] times = new long[1][];
+
+    private int[][] stringIds = new int[1][];
+
+    private int size;
+
+    private long lastTime = Long.MIN_VALUE;
+
+    /*
+        Abstraction Function:
+            the log of size requests, of which request i was made at
+                times[i / CHUNK_SIZE][i % CHUNK_SIZE] for the string
+                strings[stringIds[i / CHUNK_SIZE][i % CHUNK_SIZE]]
+
+            ids maps each string that has been requested to its id
+
+        Representation Invariant:
+            the times of the requests are non-decreasing, and lastTime is the last of them
+
+            ids.get(strings[i]) == i for every i < ids.size(), and every string id in the log
+                is less than ids.size()
+
+            the chunks of times and stringIds are allocated up to the one that holds request
+                size - 1, and both arrays of chunks have the same length
+
+        Thread Safety Argument:
+            every field is guarded by this, but strings is also read without the lock.
+                Requests below size are never changed once logged, so a Snapshot reads them
+                outside the lock once it has seen size and the chunks under it. strings is
+                volatile and only replaced by a larger copy, so the string of any request in a
+                snapshot is in the copy it reads after it has taken the lock
+     */
+
+    /**
+     * Log a request
+     *
+     * @param millis when the request was made, in milli-seconds since the epoch
+     * @param string what was requested
+     */
+    synchronized void record(long millis, String string) {
+        int id = intern(string);
+        int chunk = size / CHUNK_SIZE;
+        if (chunk == times.length) {
+            times = Arrays.copyOf(times, chunk * 2);
+            stringIds = Arrays.copyOf(stringIds, chunk * 2);
+        }
+        if (times[chunk] == null) {
+            times[chunk] = new long[CHUNK_SIZE];
+            stringIds[chunk] = new int[CHUNK_SIZE];
+        }
+        lastTime = Math.max(lastTime, millis);
+        times[chunk][size % CHUNK_SIZE] = lastTime;
+        stringIds[chunk][size % CHUNK_SIZE] = id;
+        size++;
+    }
+
+    private int intern(String string) {
+        Integer id = ids.get(string);
+        if (id != null) {
+            return id;
+        }
+        int newId = ids.size();
+        if (newId == strings.length) {
+            strings = Arrays.copyOf(strings, newId * 2);
+        }
+        strings[newId] = string;
+        ids.put(string, newId);
+        return newId;
+    }
+
+    /**
+     * @return the number of requests logged
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /* the requests logged up to some moment, which can be read without the lock */
+    private static final class Snapshot {
+        final long[][] times;
+        final int[][] stringIds;
+        final int size;
+        final String[] strings;
+
+        Snapshot(long[][] times, int[][] stringIds, int size, String[] strings) {
+            this.times = times;
+            this.stringIds = stringIds;
+            this.size = size;
+            this.strings = strings;
+        }
+
+        long time(int i) {
+            return times[i / CHUNK_SIZE][i % CHUNK_SIZE];
+        }
+
+        String string(int i) {
+            return strings[stringIds[i / CHUNK_SIZE][i % CHUNK_SIZE]];
+        }
+    }
+
+    private Snapshot snapshot() {
+        long[][] times;
+        int[][] stringIds;
+        int size;
+        synchronized (this) {
+            times = this.times;
+            stringIds = this.stringIds;
+            size = this.size;
+        }
+        return new Snapshot(times, stringIds, size, strings);
+    }
+
+    /**
+     * Show visitor every request logged so far, in order of time. Requests
+     * logged meanwhile may not be shown.
+     */
+    void visit(Visitor visitor) {
+        Snapshot log = snapshot();
+        for (int i = 0; i < log.size; i++) {
+            visitor.visit(log.time(i), log.string(i));
+        }
+    }
+
+    /**
+     * Write the requests logged so far as a JSON object that maps each time,
+     * in milli-seconds since the epoch, to the list of strings requested at
+     * that time
+     */
+    void write(JsonWriter out) throws IOException {
+        Snapshot log = snapshot();
+        out.beginObject();
+        for (int i = 0; i < log.size; ) {
+            long millis = log.time(i);
+            out.name(Long.toString(millis));
+            out.beginArray();
+            for (; i < log.size && log.time(i) == millis; i++) {
+                out.value(log.string(i));
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+}
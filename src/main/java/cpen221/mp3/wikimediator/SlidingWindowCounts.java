@@ -0,0 +1,181 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts how often each string has been seen in the last few seconds, to
+ * the second.
+ *
+ * Sightings are counted in a ring of per-second buckets, which reaches
+ * history seconds back. The counts of the last window seconds are also
+ * kept in a FrequencyIndex, from which a bucket's counts are taken back
+ * as it ages out of the window, so the most frequent strings of that
+ * window are listed in time proportional to how many are asked for.
+ * Other windows, of up to history seconds, are counted from the buckets
+ * when they are asked for.
+ *
+ * SlidingWindowCounts is thread safe.
+ */
+final class SlidingWindowCounts implements WindowCounts {
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final int window;
+
+    private final int history;
+
+    private final Map<String, Integer>[] buckets;
+
+    private final long[] seconds;
+
+    private FrequencyIndex inWindow = new FrequencyIndex();
+
+    private long now = NONE;
+
+    /*
+        Abstraction Function:
+            now is the latest second (since the epoch) counted up to, or NONE before
+                anything is counted
+
+            for each second s in (now - history, now], the strings seen in s are counted in
+                buckets[slot(s)] if seconds[slot(s)] == s and that bucket is not null; none were
+                seen otherwise
+
+            inWindow counts the strings seen in the seconds (now - window, now]
+
+        Representation Invariant:
+            0 < window <= history, and buckets.length == seconds.length == history
+
+            every count in buckets is positive, and inWindow holds, for each string, the sum
+                of its counts in the buckets of the seconds (now - window, now]
+
+        Thread Safety Argument:
+            every field is guarded by this
+     */
+
+    /**
+     * @param window  the window, in seconds, whose counts are kept up to
+     *                date, > 0
+     * @param history how many seconds back counts are kept for, >= window
+     */
+    @SuppressWarnings("unchecked")
+    SlidingWindowCounts(int window, int history) {
+        if (window <= 0 || history < window) {
+            throw new IllegalArgumentException("window " + window + " of history " + history);
+        }
+        this.window = window;
+        this.history = history;
+        this.buckets = (Map<String, Integer>[]) new Map[history];
+        this.seconds = new long[history];
+        Arrays.fill(seconds, NONE);
+    }
+
+    /**
+     * Count a sighting of a string. A sighting older than one already
+     * counted is counted in the latest second instead.
+     *
+     * @param millis when the string was seen, in milli-seconds since the epoch
+     */
+    @Override
+    public synchronized void record(String string, long millis) {
+        advance(Math.floorDiv(millis, 1000));
+        int slot = slot(now);
+        Map<String, Integer> bucket = buckets[slot];
+        if (bucket == null || seconds[slot] != now) {
+            bucket = new HashMap<>();
+            buckets[slot] = bucket;
+            seconds[slot] = now;
+        }
+        bucket.merge(string, 1, Integer::sum);
+        inWindow.increment(string);
+    }
+
+    /**
+     * @param limit  the most strings to list
+     * @param millis the time now, in milli-seconds since the epoch
+     * @return the limit most frequent strings of the last window seconds,
+     * in non-increasing order of count
+     */
+    @Override
+    public synchronized List<String> top(int limit, long millis) {
+        advance(Math.floorDiv(millis, 1000));
+        return inWindow.top(limit);
+    }
+
+    /**
+     * @param limit         the most strings to list
+     * @param windowSeconds how many seconds back to count, 0 < windowSeconds <= history
+     * @param millis        the time now, in milli-seconds since the epoch
+     * @return the limit most frequent strings of the last windowSeconds
+     * seconds, in non-increasing order of count; strings seen equally
+     * often are in the order they were first seen in the window
+     * @throws IllegalArgumentException if windowSeconds is out of range
+     */
+    @Override
+    public synchronized List<String> top(int limit, int windowSeconds, long millis) {
+        if (windowSeconds <= 0 || windowSeconds > history) {
+            throw new IllegalArgumentException("window of " + windowSeconds
+                + "s is not within (0, " + history + "]");
+        }
+        if (windowSeconds == window) {
+            return top(limit, millis);
+        }
+        advance(Math.floorDiv(millis, 1000));
+        if (now == NONE) {
+            return new ArrayList<>();
+        }
+
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (long second = now - windowSeconds + 1; second <= now; second++) {
+            int slot = slot(second);
+            if (seconds[slot] == second && buckets[slot] != null) {
+                buckets[slot].forEach((string, count) -> counts.merge(string, count, Integer::sum));
+            }
+        }
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+        List<String> top = new ArrayList<>(Math.max(0, Math.min(limit, entries.size())));
+        for (int i = 0; i < limit && i < entries.size(); i++) {
+            top.add(entries.get(i).getKey());
+        }
+        return top;
+    }
+
+    /**
+     * Move the clock on to second, taking the buckets that leave the
+     * window out of inWindow and freeing those that leave the history
+     */
+    private void advance(long second) {
+        if (now != NONE && second <= now) {
+            return;
+        }
+        if (now == NONE || second - now >= history) {
+            Arrays.fill(buckets, null);
+            Arrays.fill(seconds, NONE);
+            inWindow = new FrequencyIndex();
+            now = second;
+            return;
+        }
+        for (long entering = now + 1; entering <= second; entering++) {
+            long leaving = entering - window;
+            int slot = slot(leaving);
+            if (seconds[slot] == leaving && buckets[slot] != null) {
+                buckets[slot].forEach(inWindow::decrement);
+            }
+            int reused = slot(entering);
+            buckets[reused] = null;
+            seconds[reused] = entering;
+        }
+        now = second;
+    }
+
+    private int slot(long second) {
+        return (int) Math.floorMod(second, (long) history);
+    }
+}
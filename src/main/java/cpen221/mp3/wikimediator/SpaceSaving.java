@@ -0,0 +1,135 @@
+package cpen221.mp3.wikimediator;
+
+import cpen221.mp3.fsftbuffer.CountMinSketch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Space-Saving summary: approximate counts of the most requested
+ * strings, in memory that depends only on the error allowed, not on how
+ * many distinct strings there are.
+ *
+ * At most counters strings are tracked. A request of a string that is
+ * not tracked, once that many are, takes the place of a string with the
+ * lowest count, m, and is counted as m + 1. So of n requests, every count
+ * is too high by at most n / counters, and every string requested more
+ * often than that is tracked.
+ *
+ * A summary may also keep a CountMinSketch of every request, whose
+ * estimates, like the counts, are never too low; top then ranks the
+ * strings by the lower of the two, which is the closer to the truth.
+ *
+ * SpaceSaving is thread safe.
+ */
+final class SpaceSaving implements Counts {
+
+    private final int counters;
+
+    private final FrequencyIndex summary = new FrequencyIndex();
+
+    private final CountMinSketch sketch;
+
+    /*
+        Abstraction Function:
+            summary holds the count of each tracked string, which is at least the number of
+                requests of that string, and at most that plus the requests made / counters
+
+            sketch, if not null, estimates the requests of any string, never too low
+
+        Representation Invariant:
+            counters > 0, and summary.size() <= counters
+
+        Thread Safety Argument:
+            summary and sketch are only used under the lock of this; summary is thread safe on
+                its own, but a replacement must not be seen half done
+     */
+
+    /**
+     * @param counters    how many strings to track, > 0
+     * @param sketchWidth the width of a CountMinSketch to estimate with, or 0
+     *                    to rank by the counts alone
+     */
+    SpaceSaving(int counters, int sketchWidth) {
+        if (counters <= 0) {
+            throw new IllegalArgumentException("counters " + counters);
+        }
+        this.counters = counters;
+        /* a sketch that halved its counters would estimate too low, so it does not until
+           its counters would overflow anyway */
+        this.sketch = sketchWidth > 0 ? new CountMinSketch(sketchWidth, Integer.MAX_VALUE) : null;
+    }
+
+    /**
+     * @param epsilon the error allowed in a count, as a fraction of the
+     *                requests made, 0 < epsilon < 1
+     * @return a summary, with a sketch, whose counts are off by at most
+     * epsilon of the requests made
+     */
+    static SpaceSaving withError(double epsilon) {
+        if (!(epsilon > 0 && epsilon < 1)) {
+            throw new IllegalArgumentException("error " + epsilon);
+        }
+        return new SpaceSaving(counters(epsilon), (int) Math.ceil(Math.E / epsilon));
+    }
+
+    /**
+     * @return how many strings a summary must track for its counts to be
+     * off by at most epsilon of the requests made
+     */
+    static int counters(double epsilon) {
+        return (int) Math.ceil(1 / epsilon);
+    }
+
+    @Override
+    public synchronized void increment(String string) {
+        if (sketch != null) {
+            sketch.increment(string);
+        }
+        if (summary.count(string) > 0 || summary.size() < counters) {
+            summary.increment(string);
+            return;
+        }
+        String replaced = summary.lowest();
+        long lowest = summary.count(replaced);
+        summary.decrement(replaced, lowest);
+        summary.increment(string, lowest + 1);
+    }
+
+    /**
+     * @return the count of a string, which is 0 if it is not tracked
+     */
+    synchronized long count(String string) {
+        return summary.count(string);
+    }
+
+    /**
+     * @return every tracked string, in non-increasing order of count
+     */
+    synchronized List<String> tracked() {
+        return summary.top(counters);
+    }
+
+    @Override
+    public synchronized List<String> top(int limit) {
+        if (sketch == null) {
+            return summary.top(limit);
+        }
+
+        List<String> tracked = summary.top(counters);
+        long[] estimates = new long[tracked.size()];
+        List<Integer> order = new ArrayList<>(tracked.size());
+        for (int i = 0; i < tracked.size(); i++) {
+            String string = tracked.get(i);
+            estimates[i] = Math.min(summary.count(string), sketch.estimate(string));
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(estimates[b], estimates[a]));
+
+        List<String> top = new ArrayList<>(Math.max(0, Math.min(limit, order.size())));
+        for (int i = 0; i < limit && i < order.size(); i++) {
+            top.add(tracked.get(order.get(i)));
+        }
+        return top;
+    }
+}
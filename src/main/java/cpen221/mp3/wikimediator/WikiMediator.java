@@ -1,17 +1,35 @@
 package cpen221.mp3.wikimediator;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import cpen221.mp3.fsftbuffer.Bufferable;
+import cpen221.mp3.fsftbuffer.Cache;
+import cpen221.mp3.fsftbuffer.DiskStore;
 import cpen221.mp3.fsftbuffer.FSFTBuffer;
+import cpen221.mp3.fsftbuffer.SegmentedFSFTBuffer;
 import cpen221.mp3.query.QueryFactory;
-import org.fastily.jwiki.core.Wiki;
 import org.fastily.jwiki.dwrap.ProtectedTitleEntry;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 
 public class WikiMediator {
@@ -24,35 +42,146 @@ public class WikiMediator {
 
             pageCache caches the items of a Wikipedia page
 
+            offHeapStore holds the UTF-8 encoded text of the cached pages when pages are
+                kept off-heap, and is null when they are kept on the heap
+
+            compressor compresses the cached page bodies that are large enough, and is null
+                when cached pages are not compressed
+
+            pageFetches and searchFetches map each page title, and each (limit, query) pair, that
+                is being fetched from upstream right now to the result of that fetch
+
+            pageDisk and searchDisk are the on-disk second tiers under pageCache and
+                searchCache, holding UTF-8 page texts and encoded search results; both are null
+                when there is no disk tier
+
             searchCache finds the cache items from the Wikipedia page
 
-            log represents the queries called in a certain time period
+            source is where pages and search results that are not cached come from
+
+            log represents the queries called, and when; null with approximate statistics,
+                which keep no record of each request, only requests, how many were made
 
-            peakLoadLog represents the peak number of requests in a time period
+            counts holds how many times each string in log has been requested, and recent how
+                many times in each of the last TRENDING_HISTORY_SECONDS seconds; exactly if
+                statisticsError is 0, and otherwise to within statisticsError of the requests
+                counted, in memory that does not grow with the number of distinct strings
+
+            peakLoad counts the requests made, and finds the most made in any 30 seconds,
+                including those of the run it was saved by, if any
 
             Representation Invariant:
-                pageText and pageTitle are non-null
+                source, pageCache, searchCache, counts, recent, peakLoad and upstreamPermits
+                    are non-null, and each PageCacheItem's pageTitle is non-null
+
+                an item in pageCache holds its text in exactly one of pageText, body and
+                    offHeapStore (under handle, which is then not NO_HANDLE), and in
+                    offHeapStore iff offHeapStore is non-null
+
+                pageDisk is null iff searchDisk is
+
+                statisticsError is 0, or 0 < statisticsError < 1; log is null iff
+                    statisticsError > 0, and otherwise holds as many requests as requests
+                    counts, in non-decreasing order of time
 
-                pageCache and searchCache are non-null with capacity of requests < 100.
-                The timeout for requets is defined to be 0 < timeout < 1000.
-                Capacity and timeout are positive integers.
+                if statisticsError is 0, counts holds, for each string in log, how many
+                    times it appears there, and recent how many times in each second of the
+                    last TRENDING_HISTORY_SECONDS
 
-                log and peakLoadLog are positive long values
+                every future in pageFetches and searchFetches is incomplete, but for the
+                    moment between its fetch completing it and removing it
+
+            Thread Safety Argument:
+                WikiMediator has no lock of its own, so independent requests run in parallel.
+                pageCache and searchCache are segmented, thread safe caches, and offHeapStore,
+                compressor, pageDisk and searchDisk are thread safe
+
+                requests to source are made holding no lock; concurrent misses for one key share
+                a single request through pageFetches and searchFetches, which are concurrent maps.
+                A fetch for a request with a deadline runs on FETCHES, and completes its future
+                and caches its value even when no one is waiting for it any more. At most as
+                many requests to source run at once as upstreamPermits, a semaphore, has
+                permits; a fetch waits for a permit only until its deadline, so the
+                fetches left running for no one are bounded too
+
+                log, counts, recent and peakLoad are thread safe
          */
 
     private class PageCacheItem implements Bufferable {
         String pageText;
         String pageTitle;
+        byte[] body;
+        long handle = OffHeapTextStore.NO_HANDLE;
+        long stamp;
+        int length;
+        boolean compressed;
+        int textLength;
 
         public PageCacheItem (String pageText, String pageTitle) {
             this.pageText = pageText;
             this.pageTitle = pageTitle;
         }
 
+        /* a page whose compressed text is held on the heap, in body */
+        public PageCacheItem (String pageTitle, byte[] body, int textLength) {
+            this.pageTitle = pageTitle;
+            this.body = body;
+            this.compressed = true;
+            this.textLength = textLength;
+        }
+
+        /* a page whose text is in offHeapStore, under handle, as length UTF-8 (or compressed) bytes */
+        public PageCacheItem (String pageTitle, long handle, long stamp, int length,
+                              boolean compressed, int textLength) {
+            this.pageTitle = pageTitle;
+            this.handle = handle;
+            this.stamp = stamp;
+            this.length = length;
+            this.compressed = compressed;
+            this.textLength = textLength;
+        }
+
         @Override
         public String id() {
             return pageTitle;
         }
+
+        /**
+         * @return the text of the page, or null if it was held off-heap and
+         * has been released
+         */
+        public String getText() {
+            if (pageText != null) {
+                return pageText;
+            }
+
+            byte[] data = body;
+            if (data == null) {
+                data = offHeapStore.get(handle, stamp, length);
+                if (data == null) {
+                    return null;
+                }
+            }
+            if (compressed) {
+                data = compressor.decompress(data, textLength);
+            }
+            return new String(data, StandardCharsets.UTF_8);
+        }
+
+        /* an off-heap page weighs what it takes up in offHeapStore, chunk and all, so the
+           cache's weight limit is reached before the store runs out */
+        public long getWeight() {
+            if (pageText != null) {
+                return pageText.length();
+            }
+            return body != null ? body.length : OffHeapTextStore.allocation(length);
+        }
+
+        public void release() {
+            if (handle != OffHeapTextStore.NO_HANDLE) {
+                offHeapStore.free(handle, length);
+            }
+        }
     }
 
     private class SearchCacheItem implements Bufferable {
@@ -76,56 +205,450 @@ public class WikiMediator {
         }
     }
 
-    private Wiki wiki;
-    private FSFTBuffer<PageCacheItem> pageCache;
-    private FSFTBuffer<SearchCacheItem> searchCache;
-    private Map<Timestamp, List<String>> log;
-    private List<Timestamp> peakLoadLog;
+    private WikiSource source;
+    private Cache<PageCacheItem> pageCache;
+    private OffHeapTextStore offHeapStore;
+    private PageCompressor compressor;
+    private Cache<SearchCacheItem> searchCache;
+    private final Map<String, CompletableFuture<String>> pageFetches = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<List<String>>> searchFetches = new ConcurrentHashMap<>();
+    private Semaphore upstreamPermits;
+    private DiskStore pageDisk;
+    private DiskStore searchDisk;
+    private RequestLog log;
+    private final AtomicInteger requests = new AtomicInteger();
+    private double statisticsError;
+    private Counts counts;
+    private WindowCounts recent;
+    private PeakLoadCounter peakLoad;
     private final String DEFAULT_FILENAME_LOG = "local/logs.txt";
     private final String DEFAULT_FILENAME_PEAKLOAD = "local/logs_peak.txt";
 
+    /* page texts are weighed by length; 32M chars is about 64MB of heap */
+    private static final long PAGE_CACHE_MAX_WEIGHT = 32L * 1024 * 1024;
+    private static final double PAGE_CACHE_MAX_ENTRY_FRACTION = 0.125;
+
+    /*
+        The logs are saved with times as milli-seconds since the epoch. Gson's own format
+        for a Timestamp used as a map key cannot be read back, but it is still accepted.
+     */
+    private static final Gson LOG_GSON = new GsonBuilder()
+        .enableComplexMapKeySerialization()
+        .registerTypeAdapter(Timestamp.class, new TypeAdapter<Timestamp>() {
+            @Override
+            public void write(JsonWriter out, Timestamp timestamp) throws IOException {
+                out.value(timestamp.getTime());
+            }
+
+            @Override
+            public Timestamp read(JsonReader in) throws IOException {
+                String time = in.nextString();
+                try {
+                    return new Timestamp(Long.parseLong(time));
+                } catch (NumberFormatException e) {
+                    return Timestamp.valueOf(time);
+                }
+            }
+        }.nullSafe())
+        .create();
+
+    /* the window of trending(limit), and the longest window trending can be asked for */
+    private static final int TRENDING_WINDOW_SECONDS = 30;
+    private static final int TRENDING_HISTORY_SECONDS = 60 * 60;
+
+    /* few page cache segments, since each gets only its share of the weight: a page may
+       still take up PAGE_CACHE_MAX_ENTRY_FRACTION of the whole budget, but each segment's
+       least recently used order only sees a quarter of it */
+    private static final int PAGE_CACHE_SEGMENTS = 4;
+
+    /* as few for the search cache, whose 100 entries split one per core would leave each
+       segment too few for its hot queries to stay put */
+    private static final int SEARCH_CACHE_SEGMENTS = 4;
+
+    /* how many requests a mediator makes to its source at once, unless built otherwise */
+    private static final int DEFAULT_MAX_SOURCE_REQUESTS = 64;
+
+    /* runs the fetches of requests with a deadline, on virtual threads, so a request that
+       gives up leaves only a cheap thread behind, which ends with its fetch; how many of
+       them ask the source at once is bounded per mediator, by upstreamPermits */
+
+    private static final ExecutorService FETCHES = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("WikiMediator fetch").factory());
+
 
     public WikiMediator() {
-        wiki = new Wiki.Builder().build();
-        pageCache = new FSFTBuffer<>(100, 1000);
-        searchCache = new FSFTBuffer<>(100, 1000);
-        log = new ConcurrentHashMap<>();
-        peakLoadLog = Collections.synchronizedList(new LinkedList<>());
+        this(new Builder());
+    }
+
+    private WikiMediator(Builder builder) {
+        source = builder.source != null ? builder.source : new JWikiSource();
+        upstreamPermits = new Semaphore(builder.maxSourceRequests);
+        if (builder.offHeapPageBytes > 0) {
+            offHeapStore = new OffHeapTextStore(builder.offHeapPageBytes);
+        }
+        if (builder.compressionThreshold >= 0) {
+            compressor = new PageCompressor(builder.compressionThreshold);
+        }
+        pageCache = newPageCache(builder);
+        searchCache = new SegmentedFSFTBuffer<>(100, 1000, SEARCH_CACHE_SEGMENTS);
+        if (builder.diskCacheDirectory != null) {
+            try {
+                pageDisk = new DiskStore(new File(builder.diskCacheDirectory, "pages"), 1000);
+                searchDisk = new DiskStore(new File(builder.diskCacheDirectory, "search"), 1000);
+            } catch (IOException e) {
+                e.printStackTrace();
+                pageDisk = null;
+                searchDisk = null;
+            }
+        }
+        statisticsError = builder.statisticsError;
+        log = statisticsError > 0 ? null : new RequestLog();
+        counts = newCounts();
+        recent = newRecent();
+        peakLoad = new PeakLoadCounter();
+        if (builder.logFile != null && builder.logFile.isFile() && builder.peakLoadFile.isFile()) {
+            try {
+                loadLogs(builder.logFile, builder.peakLoadFile);
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public WikiMediator(File log_file, File peakload_file) throws FileNotFoundException {
-        wiki = new Wiki.Builder().build();
-        pageCache = new FSFTBuffer<>(100, 1000);
-        searchCache = new FSFTBuffer<>(100, 1000);
-        Gson gson = new Gson();
-        log = Collections.synchronizedMap(gson.fromJson(new FileReader(log_file), new TypeToken<HashMap<Timestamp, List<String>>>(){}.getType()));
-        peakLoadLog = Collections.synchronizedList(gson.fromJson(new FileReader(peakload_file), new TypeToken<List<Timestamp>>(){}.getType()));
+        this();
+        loadLogs(log_file, peakload_file);
+    }
+
+    private void loadLogs(File log_file, File peakload_file) throws FileNotFoundException {
+        Gson gson = LOG_GSON;
+        Map<Timestamp, List<String>> saved = gson.fromJson(new FileReader(log_file),
+            new TypeToken<HashMap<Timestamp, List<String>>>(){}.getType());
+        loadPeakLoad(gson, peakload_file);
+
+        /* in order of time, so that strings requested equally often rank as they did */
+        RequestLog log = new RequestLog();
+        for (Map.Entry<Timestamp, List<String>> entry : new TreeMap<>(saved).entrySet()) {
+            for (String string : entry.getValue()) {
+                log.record(entry.getKey().getTime(), string);
+            }
+        }
+        Counts counts = newCounts();
+        WindowCounts recent = newRecent();
+        long historyStart = System.currentTimeMillis() - TRENDING_HISTORY_SECONDS * 1000L;
+        log.visit((millis, string) -> {
+            counts.increment(string);
+            if (millis > historyStart) {
+                recent.record(string, millis);
+            }
+        });
+        this.counts = counts;
+        this.recent = recent;
+        this.log = statisticsError > 0 ? null : log;
+        requests.set(log.size());
+    }
+
+    private Counts newCounts() {
+        return statisticsError > 0 ? SpaceSaving.withError(statisticsError) : new FrequencyIndex();
+    }
+
+    private WindowCounts newRecent() {
+        if (statisticsError > 0) {
+            return new ApproximateWindowCounts(TRENDING_WINDOW_SECONDS, TRENDING_HISTORY_SECONDS, statisticsError);
+        }
+        return new SlidingWindowCounts(TRENDING_WINDOW_SECONDS, TRENDING_HISTORY_SECONDS);
+    }
+
+    private Cache<PageCacheItem> newPageCache(Builder builder) {
+        long maxWeight = offHeapStore != null ? builder.offHeapPageBytes : PAGE_CACHE_MAX_WEIGHT;
+        return new FSFTBuffer.Builder<PageCacheItem>()
+            .capacity(100)
+            .timeout(1000)
+            .maximumWeight(maxWeight, PageCacheItem::getWeight)
+            .maxEntryFraction(PAGE_CACHE_MAX_ENTRY_FRACTION)
+            .removalListener(PageCacheItem::release)
+            .buildSegmented(PAGE_CACHE_SEGMENTS);
+    }
+
+    /**
+     * Adds a page to pageCache, compressed if compressor is in use and the
+     * page is large enough, and off-heap if offHeapStore is in use. If the
+     * store has no room for it, the page is not cached, rather than kept on
+     * the heap that the store is there to keep it off.
+     */
+    private void cachePage(String pageTitle, String pageText) {
+        byte[] data = null;
+        int textLength = 0;
+        boolean compressed = false;
+        if (offHeapStore != null || compressor != null) {
+            data = pageText.getBytes(StandardCharsets.UTF_8);
+            textLength = data.length;
+        }
+        if (compressor != null) {
+            byte[] compressedData = compressor.compress(data);
+            if (compressedData != null) {
+                data = compressedData;
+                compressed = true;
+            }
+        }
+
+        PageCacheItem item;
+        if (offHeapStore != null) {
+            long handle = offHeapStore.put(data);
+            if (handle == OffHeapTextStore.NO_HANDLE) {
+                return;
+            }
+            item = new PageCacheItem(pageTitle, handle, offHeapStore.stamp(handle), data.length,
+                compressed, textLength);
+        } else {
+            item = compressed ? new PageCacheItem(pageTitle, data, textLength) : new PageCacheItem(pageText, pageTitle);
+        }
+
+        if (!pageCache.put(item) && !pageCache.update(item)) {
+            item.release();
+        }
+    }
+
+    /**
+     * @return how much compressing cached pages has saved and cost so far;
+     * all zero if cached pages are not compressed
+     */
+    public CompressionStats compressionStats() {
+        if (compressor == null) {
+            return new CompressionStats(0, 0, 0, 0);
+        }
+        return compressor.stats();
+    }
+
+    /**
+     * Close the on-disk cache, if there is one. The WikiMediator must not
+     * be used afterwards.
+     */
+    public void close() {
+        try {
+            if (pageDisk != null) {
+                pageDisk.close();
+                searchDisk.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the text of a page from the disk tier, or null if it is not there
+     */
+    private String loadPage(String pageTitle) {
+        if (pageDisk == null) {
+            return null;
+        }
+        try {
+            byte[] data = pageDisk.get(pageTitle);
+            return data == null ? null : new String(data, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void storePage(String pageTitle, String pageText) {
+        if (pageDisk == null) {
+            return;
+        }
+        try {
+            pageDisk.put(pageTitle, pageText.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the results of a search from the disk tier, or null if they are not there
+     */
+    private SearchCacheItem loadSearch(String query) {
+        if (searchDisk == null) {
+            return null;
+        }
+        try {
+            byte[] data = searchDisk.get(query);
+            if (data == null) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int limit = in.readInt();
+            int size = in.readInt();
+            List<String> pageList = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                pageList.add(in.readUTF());
+            }
+            return new SearchCacheItem(pageList, query, limit);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void storeSearch(SearchCacheItem item) {
+        if (searchDisk == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(item.limit);
+            out.writeInt(item.pageList.size());
+            for (String title : item.pageList) {
+                out.writeUTF(title);
+            }
+            out.flush();
+            searchDisk.put(item.query, bytes.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run fetch, unless a fetch for the same key is already running, in
+     * which case wait for that one and share its result. Concurrent misses
+     * for one key thus cost a single upstream request.
+     *
+     * Without a deadline, fetch runs on this thread. With one, it runs on
+     * a thread of FETCHES, and this thread waits for it only until the
+     * deadline; the fetch finishes, and caches its value, regardless. A
+     * fetch that never asked the source, as its deadline passed first, is
+     * not shared: a request with time left that was waiting for it starts
+     * another.
+     *
+     * @param inFlight the fetches that are running, by key
+     * @param key identifies what is being fetched
+     * @param deadline when to stop waiting for the value
+     * @param fetch gets the value (and caches it)
+     * @return the fetched value
+     * @throws TimeoutException if the deadline passes first
+     */
+    private static <V> V fetchOnce(Map<String, CompletableFuture<V>> inFlight, String key,
+                                   Deadline deadline, Supplier<V> fetch) throws TimeoutException {
+        while (true) {
+            CompletableFuture<V> mine = new CompletableFuture<>();
+            CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+            if (running == null) {
+                running = mine;
+                Runnable task = () -> {
+                    try {
+                        mine.complete(fetch.get());
+                    } catch (DeadlinePassedException e) {
+                        /* out of inFlight first, so that whoever retries does not find it */
+                        inFlight.remove(key, mine);
+                        mine.completeExceptionally(e);
+                    } catch (RuntimeException | Error e) {
+                        mine.completeExceptionally(e);
+                    } finally {
+                        inFlight.remove(key, mine);
+                    }
+                };
+                if (deadline == Deadline.none()) {
+                    task.run();
+                } else {
+                    FETCHES.execute(task);
+                }
+            }
+
+            try {
+                return deadline.await(running);
+            } catch (DeadlinePassedException e) {
+                if (deadline.isExpired()) {
+                    throw new TimeoutException("deadline passed");
+                }
+                // the deadline of whoever started the fetch passed; try again
+            }
+        }
+    }
+
+    /**
+     * Ask the source, once one of upstreamPermits is free.
+     *
+     * @param deadline when to stop waiting for a permit
+     * @param request  asks the source
+     * @return what the source answered
+     * @throws DeadlinePassedException if the deadline passes before a permit is free
+     */
+    private <V> V askSource(Deadline deadline, Supplier<V> request) {
+        if (deadline == Deadline.none()) {
+            upstreamPermits.acquireUninterruptibly();
+        } else {
+            try {
+                if (!upstreamPermits.tryAcquire(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+                    throw new DeadlinePassedException();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DeadlinePassedException();
+            }
+        }
+        try {
+            return request.get();
+        } finally {
+            upstreamPermits.release();
+        }
     }
 
+    /**
+     * @return the number of requests made, including those of the
+     * statistics the mediator started with
+     */
+    public int requestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Load the peak saved by saveLogs, or, from a file saved before only the
+     * peak was, the time of every request, which are counted again
+     */
+    private void loadPeakLoad(Gson gson, File peakload_file) throws FileNotFoundException {
+        peakLoad = new PeakLoadCounter();
+        JsonElement saved = JsonParser.parseReader(new FileReader(peakload_file));
+        if (saved.isJsonArray()) {
+            List<Timestamp> times = gson.fromJson(saved, new TypeToken<List<Timestamp>>(){}.getType());
+            Collections.sort(times);
+            for (Timestamp time : times) {
+                peakLoad.record(time.getTime());
+            }
+        } else if (saved.isJsonObject() && saved.getAsJsonObject().has("peak")) {
+            peakLoad.restore(saved.getAsJsonObject().get("peak").getAsInt());
+        }
+    }
+
+    /**
+     * Save the log of requests and their peak load. With approximate
+     * statistics there is no log, so an empty one is saved.
+     */
     public void saveLogs(File log_file, File peakload_file) {
-        Gson gson = new Gson();
-        try (FileWriter writer = new FileWriter(log_file)) {
-            gson.toJson(log, writer);
+        Gson gson = LOG_GSON;
+        try (JsonWriter writer = new JsonWriter(new FileWriter(log_file))) {
+            if (log != null) {
+                log.write(writer);
+            } else {
+                writer.beginObject().endObject();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
         try (FileWriter writer = new FileWriter(peakload_file)) {
-            gson.toJson(peakLoadLog, writer);
+            JsonObject saved = new JsonObject();
+            saved.addProperty("peak", peakLoad.peak());
+            gson.toJson(saved, writer);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void registerLog(Timestamp currentTimestamp, String string) {
-        if (log.containsKey(currentTimestamp)) {
-            List<String> list = log.get(currentTimestamp);
-            List<String> newList = new LinkedList<>(list);
-            newList.add(string);
-            log.put(currentTimestamp, newList);
-        }
-        else {
-            log.put(new Timestamp(System.currentTimeMillis()), Collections.singletonList(string));
+    private void registerLog(long millis, String string) {
+        if (log != null) {
+            log.record(millis, string);
         }
+        requests.incrementAndGet();
+        counts.increment(string);
+        recent.record(string, millis);
     }
 
     /**
@@ -134,33 +657,54 @@ public class WikiMediator {
      * @param limit
      * @return a list of page titles that matches the query
      */
-    public synchronized List<String> search(String query, int limit){
-        Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-        registerLog(currentTimestamp, query);
+    public List<String> search(String query, int limit){
+        try {
+            return search(query, limit, Deadline.none());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("no deadline, yet it passed", e);
+        }
+    }
 
-        peakLoadLog.add(new Timestamp(System.currentTimeMillis()));
+    /**
+     * Like search(query, limit), giving up at a deadline. If the results
+     * have to be fetched, they are cached when they arrive even if that is
+     * after the deadline.
+     *
+     * @param deadline when to give up
+     * @return a list of page titles that matches the query
+     * @throws TimeoutException if the deadline passes before the results arrive
+     */
+    public List<String> search(String query, int limit, Deadline deadline) throws TimeoutException {
+        long now = System.currentTimeMillis();
+        registerLog(now, query);
+        peakLoad.record(now);
 
+        SearchCacheItem searchCacheItem;
         try {
-            SearchCacheItem searchCacheItem = searchCache.get(query);
-
-            if (searchCacheItem.getLimit() >= limit) {
-                List<String> queryResults = new ArrayList<>();
-                for (int i = 0; i < limit; i++) {
-                    queryResults.add(searchCacheItem.pageList.get(i));
-                }
-                return queryResults;
-            }
-            else {
-                ArrayList<String> pageTitles = new ArrayList<>(wiki.search(query,limit));
-                searchCache.update(new SearchCacheItem(pageTitles, query, limit));
-                return pageTitles;
-            }
+            searchCacheItem = searchCache.get(query);
         }
         catch (IllegalAccessException e) {
-            ArrayList<String> pageTitles = new ArrayList<>(wiki.search(query,limit));
-            searchCache.put(new SearchCacheItem(pageTitles, query, limit));
-            return pageTitles;
+            searchCacheItem = loadSearch(query);
+            if (searchCacheItem != null) {
+                searchCache.put(searchCacheItem);
+            }
+        }
+
+        if (searchCacheItem != null && searchCacheItem.getLimit() >= limit) {
+            int size = Math.min(limit, searchCacheItem.pageList.size());
+            return new ArrayList<>(searchCacheItem.pageList.subList(0, size));
         }
+
+        return new ArrayList<>(fetchOnce(searchFetches, limit + ":" + query, deadline, () -> {
+            ArrayList<String> pageTitles = new ArrayList<>(askSource(deadline,
+                () -> source.search(query, limit, deadline)));
+            SearchCacheItem newItem = new SearchCacheItem(pageTitles, query, limit);
+            if (!searchCache.update(newItem)) {
+                searchCache.put(newItem);
+            }
+            storeSearch(newItem);
+            return pageTitles;
+        }));
     }
 
     /**
@@ -168,152 +712,110 @@ public class WikiMediator {
      * @param pageTitle
      * @return text that matches pageTitle
      */
-    public synchronized String getPage(String pageTitle){
-        Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-        registerLog(currentTimestamp, pageTitle);
-
-        peakLoadLog.add(new Timestamp(System.currentTimeMillis()));
-
+    public String getPage(String pageTitle){
         try {
-            PageCacheItem pageCacheItem = pageCache.get(pageTitle);
-            return pageCacheItem.pageText;
-        } catch (IllegalAccessException e) {
-            String pageText = wiki.getPageText(pageTitle);
-            pageCache.put(new PageCacheItem(pageText, pageTitle));
-            return pageText;
+            return getPage(pageTitle, Deadline.none());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("no deadline, yet it passed", e);
         }
     }
 
     /**
-     * Calculates the most common string in non-increasing order
-     * @param limit limit to the length of returned list
-     * @return the most common string
+     * Like getPage(pageTitle), giving up at a deadline. If the page has to
+     * be fetched, it is cached when it arrives even if that is after the
+     * deadline.
+     *
+     * @param deadline when to give up
+     * @return text that matches pageTitle
+     * @throws TimeoutException if the deadline passes before the page arrives
      */
-    public synchronized List<String> zeitgeist(int limit){
-        peakLoadLog.add(new Timestamp(System.currentTimeMillis()));
+    public String getPage(String pageTitle, Deadline deadline) throws TimeoutException {
+        long now = System.currentTimeMillis();
+        registerLog(now, pageTitle);
+        peakLoad.record(now);
 
-        List<List<String>> loggedStringsList = new LinkedList<>(log.values());
-        Map<String, Integer> stringCounts = new HashMap<>();
-
-        for (List<String> list : loggedStringsList) {
-            for (String string : list) {
-                if (!stringCounts.containsKey(string)) {
-                    stringCounts.put(string, 0);
-                }
-                int prevCount = stringCounts.get(string);
-                stringCounts.put(string, prevCount + 1);
+        try {
+            PageCacheItem pageCacheItem = pageCache.get(pageTitle);
+            String pageText = pageCacheItem.getText();
+            if (pageText != null) {
+                return pageText;
             }
+        } catch (IllegalAccessException e) {
+            // not cached, fetch it below
         }
 
-        List<String> stringList = new LinkedList<>(stringCounts.keySet());
-        Collections.sort(stringList, new Comparator<String>() {
-            @Override
-            public int compare(String o1, String o2) {
-                if (stringCounts.get(o1) > stringCounts.get(o2)) {
-                    return -1;
-                }
-                else if (stringCounts.get(o1) < stringCounts.get(o2)) {
-                    return 1;
-                }
-                return 0;
+        return fetchOnce(pageFetches, pageTitle, deadline, () -> {
+            String pageText = loadPage(pageTitle);
+            if (pageText != null) {
+                cachePage(pageTitle, pageText);
+                return pageText;
             }
+
+            pageText = askSource(deadline, () -> source.getPageText(pageTitle, deadline));
+            cachePage(pageTitle, pageText);
+            storePage(pageTitle, pageText);
+            return pageText;
         });
+    }
 
-        if (stringList.size() <= limit) {
-            return stringList;
-        }
-        else {
-            List<String> limitedStringList = new LinkedList<>();
-            for (int i = 0; i < limit; i++) {
-                limitedStringList.add(stringList.get(i));
-            }
-            return limitedStringList;
-        }
+    /**
+     * Calculates the most common string in non-increasing order. The counts
+     * are kept as requests are made, so this takes time in proportion to
+     * limit, not to the number of requests made; with approximate
+     * statistics, in proportion to the number of strings kept.
+     *
+     * @param limit limit to the length of returned list
+     * @return the most common string
+     */
+    public List<String> zeitgeist(int limit){
+        peakLoad.record(System.currentTimeMillis());
 
+        return counts.top(limit);
     }
 
     /**
-     * Returns a list of Strings ranked by the number of most frequently made requests
+     * Returns a list of Strings ranked by the number of most frequently made
+     * requests in the last 30 seconds, to the second. The counts of those
+     * seconds are kept as requests are made, so this takes time in
+     * proportion to limit; with approximate statistics, the window is
+     * counted when it is asked for.
+     *
      * @param limit limit to the length of returned list
      * @return list of Strings ranked by most frequent requests
      */
     public List<String> trending(int limit){
-        peakLoadLog.add(new Timestamp(System.currentTimeMillis()));
-
-        Long currentMillis = System.currentTimeMillis();
-        Set<Timestamp> past30sRequestedTimes = new HashSet<>();
-        for (Timestamp timestamp : log.keySet()) {
-            if (currentMillis - timestamp.getTime() <= 30 * 1000) {
-                past30sRequestedTimes.add(timestamp);
-            }
-        }
-
-        List<Timestamp> past30sReqeuestedTimesList = new LinkedList<>(past30sRequestedTimes);
-        Collections.sort(past30sReqeuestedTimesList, new Comparator<Timestamp>() {
-            @Override
-            public int compare(Timestamp o1, Timestamp o2) {
-                if (o1.getTime() > o2.getTime()) {
-                    return -1;
-                }
-                if (o1.getTime() < o2.getTime()) {
-                    return 1;
-                }
-                return 0;
-            }
-        });
+        peakLoad.record(System.currentTimeMillis());
 
-        Set<String> temporaryStringSet = new HashSet<>();
-        List<String> mostFrequentStringList = new LinkedList<>();
-        for (Timestamp timestamp : past30sReqeuestedTimesList) {
-            List<String> list = log.get(timestamp);
-            for (String string : list) {
-                if (!temporaryStringSet.contains(string)) {
-                    temporaryStringSet.add(string);
-                    mostFrequentStringList.add(string);
-                }
-            }
-        }
+        return recent.top(limit, System.currentTimeMillis());
+    }
 
-        if (mostFrequentStringList.size() <= limit) {
-            return mostFrequentStringList;
-        }
-        else {
-            List<String> limitedStringList = new LinkedList<>();
-            for (int i = 0; i < limit; i++) {
-                limitedStringList.add(mostFrequentStringList.get(i));
-            }
-            return limitedStringList;
-        }
+    /**
+     * Returns a list of Strings ranked by the number of requests made for
+     * them in the last timeLimitInSeconds seconds, to the second. Windows
+     * other than 30 seconds are counted when they are asked for.
+     *
+     * @param timeLimitInSeconds how far back to count requests, in seconds;
+     *                           0 < timeLimitInSeconds <= 3600
+     * @param maxItems           limit to the length of returned list
+     * @return list of Strings ranked by most frequent requests
+     * @throws IllegalArgumentException if timeLimitInSeconds is out of range
+     */
+    public List<String> trending(int timeLimitInSeconds, int maxItems){
+        peakLoad.record(System.currentTimeMillis());
 
+        return recent.top(maxItems, timeLimitInSeconds, System.currentTimeMillis());
     }
 
     /**
-     *  Calculates the number of request count
+     * Calculates the most requests made in any 30 seconds, to within 10ms.
+     * The peak is kept as requests are made, so this takes constant time.
+     *
      * @return request count
      */
-    public synchronized int peakLoad30s() {
-        peakLoadLog.add(new Timestamp(System.currentTimeMillis()));
-
-        int maxRequests = Integer.MIN_VALUE;
+    public int peakLoad30s() {
+        peakLoad.record(System.currentTimeMillis());
 
-        Long currentMillis = System.currentTimeMillis();
-        for (int i = 0, j = 0; i < peakLoadLog.size(); i++) {
-            if (j == peakLoadLog.size()) {
-                break;
-            }
-            while (peakLoadLog.get(j).getTime() - peakLoadLog.get(i).getTime() <= 30 * 1000) {
-                j++;
-                if (j == peakLoadLog.size()) {
-                    break;
-                }
-            }
-            int requests = j - i;
-            if (requests > maxRequests) {
-                maxRequests = requests;
-            }
-        }
-
-        return maxRequests;
+        return peakLoad.peak();
     }
 
     /**
@@ -322,8 +824,135 @@ public class WikiMediator {
      * @param query is a structured query that follows the grammar described in query.g4
      * @return response for the query as a List of Strings
      */
-    public synchronized List<String> executeQuery(String query) {
-        peakLoadLog.add(new Timestamp(System.currentTimeMillis()));
+    public List<String> executeQuery(String query) {
+        peakLoad.record(System.currentTimeMillis());
         return QueryFactory.parse(query);
     }
-}
\ No newline at end of file
+
+    /**
+     * Builds a WikiMediator with non-default settings.
+     */
+    public static class Builder {
+        private long offHeapPageBytes;
+        private int compressionThreshold = -1;
+        private File diskCacheDirectory;
+        private WikiSource source;
+        private File logFile;
+        private File peakLoadFile;
+        private double statisticsError;
+        private int maxSourceRequests = DEFAULT_MAX_SOURCE_REQUESTS;
+
+        /**
+         * Keep the text of cached pages UTF-8 encoded in off-heap memory
+         * instead of as Strings on the heap; it is decoded when getPage
+         * returns it.
+         *
+         * @param maxBytes the most off-heap memory the page cache may use,
+         *                 or 0 to keep pages on the heap (the default)
+         * @return this builder
+         */
+        public Builder offHeapPages(long maxBytes) {
+            this.offHeapPageBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Store the text of cached pages Deflate-compressed, trading CPU time
+         * on every cache miss and hit for room for more pages. Pages shorter
+         * than the threshold, or that do not shrink, are stored as they are.
+         *
+         * @param thresholdBytes the smallest UTF-8 size, in bytes, of a page
+         *                       that is compressed, >= 0
+         * @return this builder
+         */
+        public Builder compressPages(int thresholdBytes) {
+            this.compressionThreshold = thresholdBytes;
+            return this;
+        }
+
+        /**
+         * Keep a second tier of the page and search caches on disk, so that
+         * cached results survive restarts and first-tier misses are served
+         * without asking Wikipedia.
+         *
+         * @param directory where the cache files are kept; created if missing
+         * @return this builder
+         */
+        public Builder diskCache(File directory) {
+            this.diskCacheDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Get pages and search results from somewhere other than Wikipedia.
+         *
+         * @param source where uncached pages and search results come from;
+         *               must be thread safe
+         * @return this builder
+         */
+        public Builder source(WikiSource source) {
+            this.source = source;
+            return this;
+        }
+
+        /**
+         * Limit how many requests for pages and search results are made to
+         * the source at once. A fetch for a request with a deadline waits
+         * for its turn only until the deadline, and is then not made at all.
+         *
+         * @param max the most requests to the source at once, > 0; 64 by
+         *            default
+         * @return this builder
+         */
+        public Builder maxSourceRequests(int max) {
+            if (max <= 0) {
+                throw new IllegalArgumentException("max " + max);
+            }
+            this.maxSourceRequests = max;
+            return this;
+        }
+
+        /**
+         * Start with the statistics saved by saveLogs, if both files exist.
+         *
+         * @param logFile      the file the request log was saved to
+         * @param peakLoadFile the file the request times were saved to
+         * @return this builder
+         */
+        public Builder logs(File logFile, File peakLoadFile) {
+            this.logFile = logFile;
+            this.peakLoadFile = peakLoadFile;
+            return this;
+        }
+
+        /**
+         * Count requests for zeitgeist and trending approximately, in memory
+         * that does not grow with the number of distinct strings requested:
+         * each count may be off by epsilon of the requests counted, and a
+         * string may be ranked above one requested up to that many more
+         * times. zeitgeist keeps about 1 / epsilon strings, and trending
+         * that many per second of the last hour. No log of requests is
+         * kept either, so saveLogs saves an empty one, and zeitgeist and
+         * trending start afresh when a mediator is built from the saved logs.
+         *
+         * @param epsilon the error allowed, as a fraction of the requests
+         *                counted, 0 < epsilon < 1; 0 to count exactly (the
+         *                default)
+         * @return this builder
+         */
+        public Builder approximateStatistics(double epsilon) {
+            if (!(epsilon >= 0 && epsilon < 1)) {
+                throw new IllegalArgumentException("error " + epsilon);
+            }
+            this.statisticsError = epsilon;
+            return this;
+        }
+
+        /**
+         * @return a new WikiMediator with this builder's settings
+         */
+        public WikiMediator build() {
+            return new WikiMediator(this);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.List;
+
+/**
+ * Where a WikiMediator gets the pages and search results it does not have
+ * cached. The default source is Wikipedia, through jwiki; others can be
+ * given to WikiMediator.Builder.source, e.g. to test without a network.
+ *
+ * Implementations must be thread safe: a WikiMediator calls them from many
+ * threads at once, and holds no lock while doing so.
+ */
+public interface WikiSource {
+
+    /**
+     * @param pageTitle the title of a page
+     * @return the text of the page, or an empty string if there is no such page
+     */
+    String getPageText(String pageTitle);
+
+    /**
+     * @param query the text to search for
+     * @param limit the most titles to return
+     * @return the titles of at most limit pages that match query, best match first
+     */
+    List<String> search(String query, int limit);
+
+    /**
+     * Like getPageText, for a fetch started by a request with a deadline.
+     * The page is cached whenever it arrives, and other requests, with
+     * later deadlines or none, may be waiting for it too, so a source should
+     * only use the deadline to give up on work that no one needs, such as
+     * a retry. By default it is ignored.
+     */
+    default String getPageText(String pageTitle, Deadline deadline) {
+        return getPageText(pageTitle);
+    }
+
+    /**
+     * Like search, for a fetch started by a request with a deadline; see
+     * getPageText(String, Deadline).
+     */
+    default List<String> search(String query, int limit, Deadline deadline) {
+        return search(query, limit);
+    }
+}
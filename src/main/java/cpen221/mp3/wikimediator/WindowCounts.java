@@ -0,0 +1,39 @@
+package cpen221.mp3.wikimediator;
+
+import java.util.List;
+
+/**
+ * Counts how often each string was requested in the last few seconds, to
+ * answer trending: exactly, as SlidingWindowCounts does, or approximately
+ * in fixed memory, as ApproximateWindowCounts does.
+ *
+ * Implementations are thread safe.
+ */
+interface WindowCounts {
+
+    /**
+     * Count a request of a string
+     *
+     * @param millis when it was made, in milli-seconds since the epoch
+     */
+    void record(String string, long millis);
+
+    /**
+     * @param limit  the most strings to list
+     * @param millis the time now, in milli-seconds since the epoch
+     * @return the limit most requested strings of the default window, in
+     * non-increasing order of (estimated) count
+     */
+    List<String> top(int limit, long millis);
+
+    /**
+     * @param limit         the most strings to list
+     * @param windowSeconds how many seconds back to count
+     * @param millis        the time now, in milli-seconds since the epoch
+     * @return the limit most requested strings of the last windowSeconds
+     * seconds, in non-increasing order of (estimated) count
+     * @throws IllegalArgumentException if windowSeconds is not positive, or
+     *                                  reaches back further than is kept
+     */
+    List<String> top(int limit, int windowSeconds, long millis);
+}
@@ -1,17 +1,35 @@
 package cpen221.mp3;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import cpen221.mp3.fsftbuffer.*;
+import cpen221.mp3.server.BinaryProtocol;
 import cpen221.mp3.server.WikiMediatorClient;
 import cpen221.mp3.server.WikiMediatorServer;
+import cpen221.mp3.wikimediator.CompressionStats;
+import cpen221.mp3.wikimediator.Deadline;
 import cpen221.mp3.wikimediator.WikiMediator;
+import cpen221.mp3.wikimediator.WikiSource;
 
 import org.fastily.jwiki.core.Wiki;
 import org.fastily.jwiki.dwrap.Contrib;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -489,6 +507,436 @@ public class Tests {
 
     }
 
+    @Test
+    public void testSegmentedPutGet() {
+        SegmentedFSFTBuffer<Entry> buffer = new SegmentedFSFTBuffer<>(64, 2, 4);
+
+        assertEquals(4, buffer.segmentCount());
+        assertTrue(buffer.put(one));
+        assertTrue(buffer.put(two));
+        assertFalse(buffer.put(one));
+
+        Entry updatedTwo = new Entry(22, "2");
+        assertTrue(buffer.update(updatedTwo));
+        assertTrue(buffer.touch(one.id()));
+
+        try {
+            assertSame(one, buffer.get(one.id()));
+            assertSame(updatedTwo, buffer.get(two.id()));
+        } catch (IllegalAccessException e) {
+            fail();
+        }
+
+        sleep(2.1);
+        assertFalse(buffer.touch(one.id()));
+    }
+
+    @Test
+    public void testSegmentedManyThreads() throws InterruptedException {
+        SegmentedFSFTBuffer<Entry> buffer = new SegmentedFSFTBuffer<>(8000, 10, 8);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 8; t++) {
+            int offset = t * 1000;
+            Thread thread = new Thread(() -> {
+                for (int i = offset; i < offset + 1000; i++) {
+                    buffer.put(new Entry(i));
+                    buffer.touch(Integer.toString(i));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int found = 0;
+        for (int i = 0; i < 8000; i++) {
+            if (buffer.touch(Integer.toString(i))) {
+                found++;
+            }
+        }
+        /* segments can fill unevenly, but most entries must still be there */
+        assertTrue(found > 6000);
+    }
+
+    @Test
+    public void testSegmentedCapacityIsExact() {
+        SegmentedFSFTBuffer<Entry> buffer = new SegmentedFSFTBuffer<>(100, 1000, 32);
+        for (int i = 0; i < 10000; i++) {
+            buffer.put(new Entry(i));
+        }
+        int found = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (buffer.touch(Integer.toString(i))) {
+                found++;
+            }
+        }
+        assertEquals(100, found);
+
+        SegmentedFSFTBuffer<Entry> small = new SegmentedFSFTBuffer<>(3, 1000, 32);
+        assertEquals(2, small.segmentCount());
+        for (int i = 0; i < 100; i++) {
+            small.put(new Entry(i));
+        }
+        found = 0;
+        for (int i = 0; i < 100; i++) {
+            if (small.touch(Integer.toString(i))) {
+                found++;
+            }
+        }
+        assertEquals(3, found);
+    }
+
+    @Test
+    public void testSegmentedMaxEntryFractionIsOfTheWholeWeight() {
+        SegmentedFSFTBuffer<Entry> buffer = new FSFTBuffer.Builder<Entry>()
+            .capacity(100)
+            .timeout(1000)
+            .maximumWeight(400, entry -> entry.content)
+            .maxEntryFraction(0.125)
+            .buildSegmented(4);
+
+        /* 50 is an eighth of the whole weight, though half a segment's */
+        assertTrue(buffer.put(new Entry(50, "fits")));
+        assertFalse(buffer.put(new Entry(51, "too big")));
+        assertEquals(50, buffer.weight());
+
+        SegmentedFSFTBuffer<Entry> small = new FSFTBuffer.Builder<Entry>()
+            .capacity(100)
+            .timeout(1000)
+            .maximumWeight(100, entry -> entry.content)
+            .maxEntryFraction(0.5)
+            .buildSegmented(4);
+
+        /* no more than a segment holds */
+        assertTrue(small.put(new Entry(25, "fits")));
+        assertFalse(small.put(new Entry(26, "too big")));
+    }
+
+    @Test
+    public void testCleanUpDropsExpired() {
+        List<Entry> removed = new CopyOnWriteArrayList<>();
+        FSFTBuffer<Entry> buffer = new FSFTBuffer.Builder<Entry>()
+            .capacity(10)
+            .timeout(1)
+            .maximumWeight(100, entry -> entry.content)
+            .removalListener(removed::add)
+            .build();
+        buffer.put(one);
+        buffer.put(three);
+        assertEquals(4, buffer.weight());
+
+        buffer.cleanUp();
+        assertTrue(removed.isEmpty());
+
+        sleep(1.1);
+        buffer.cleanUp();
+        assertEquals(0, buffer.weight());
+        assertEquals(2, removed.size());
+        assertTrue(removed.contains(one));
+        assertTrue(removed.contains(three));
+    }
+
+    @Test
+    public void testSweeperDropsExpired() {
+        List<Entry> removed = new CopyOnWriteArrayList<>();
+        FSFTBuffer<Entry> buffer = new FSFTBuffer.Builder<Entry>()
+            .capacity(10)
+            .timeout(1)
+            .removalListener(removed::add)
+            .build();
+        buffer.put(one);
+        buffer.startSweeper(50);
+        try {
+            sleep(1.5);
+            assertEquals(Collections.singletonList(one), removed);
+        } finally {
+            buffer.stopSweeper();
+        }
+    }
+
+    @Test
+    public void testStopSweeper() {
+        List<Entry> removed = new CopyOnWriteArrayList<>();
+        FSFTBuffer<Entry> buffer = new FSFTBuffer.Builder<Entry>()
+            .capacity(10)
+            .timeout(1)
+            .removalListener(removed::add)
+            .build();
+        buffer.startSweeper(50);
+        buffer.stopSweeper();
+        buffer.put(one);
+
+        sleep(1.5);
+        /* nothing touched the buffer after the timeout, so only a sweeper
+           could have removed one */
+        assertTrue(removed.isEmpty());
+        buffer.cleanUp();
+        assertEquals(Collections.singletonList(one), removed);
+    }
+
+    @Test
+    public void testFifoEviction() {
+        FSFTBuffer<Entry> buffer = new FSFTBuffer<>(3, 10, FifoPolicy::new);
+        buffer.put(one);
+        buffer.put(two);
+        buffer.put(three);
+
+        buffer.touch(one.id());
+        buffer.put(four);
+
+        assertTrue( testInAndNotInBuffer(buffer, Arrays.asList(two, three, four), Collections.singletonList(one)) );
+    }
+
+    @Test
+    public void testLfuEviction() {
+        FSFTBuffer<Entry> buffer = new FSFTBuffer<>(3, 10, LfuPolicy::new);
+        buffer.put(one);
+        buffer.put(two);
+        buffer.put(three);
+
+        buffer.touch(one.id());
+        buffer.touch(one.id());
+        buffer.touch(three.id());
+        buffer.put(four);
+
+        assertTrue( testInAndNotInBuffer(buffer, Arrays.asList(one, three, four), Collections.singletonList(two)) );
+    }
+
+    @Test
+    public void testWTinyLfuScanResistance() {
+        FSFTBuffer<Entry> lru = new FSFTBuffer<>(100, 10);
+        FSFTBuffer<Entry> tinyLfu = new FSFTBuffer<>(100, 10, WTinyLfuPolicy::new);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                Entry hot = new Entry(i);
+                if (!lru.touch(hot.id())) {
+                    lru.put(hot);
+                }
+                if (!tinyLfu.touch(hot.id())) {
+                    tinyLfu.put(hot);
+                }
+            }
+        }
+
+        /* a scan of one-off ids, three times the size of the buffer */
+        for (int i = 1000; i < 1300; i++) {
+            lru.put(new Entry(i));
+            tinyLfu.put(new Entry(i));
+        }
+
+        int lruHits = 0;
+        int tinyLfuHits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (lru.touch(Integer.toString(i))) {
+                lruHits++;
+            }
+            if (tinyLfu.touch(Integer.toString(i))) {
+                tinyLfuHits++;
+            }
+        }
+
+        assertEquals(0, lruHits);
+        assertTrue(tinyLfuHits >= 45);
+    }
+
+    @Test
+    public void testCountMinSketchRowsAreIndependent() {
+        /* a key, and another whose hash differs from it only in the top bit */
+        String key = "Barack Obama";
+        long target = (key.hashCode() ^ Integer.MIN_VALUE) & 0xffffffffL;
+        char[] chars = new char[7];
+        for (int i = 0; i < chars.length; i++) {
+            long power = (long) Math.pow(31, chars.length - 1 - i);
+            chars[i] = (char) (target / power);
+            target %= power;
+        }
+        String other = new String(chars);
+        assertEquals(key.hashCode() ^ Integer.MIN_VALUE, other.hashCode());
+
+        CountMinSketch sketch = new CountMinSketch(16, Integer.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(key);
+        }
+        assertEquals(100, sketch.estimate(key));
+        assertEquals(0, sketch.estimate(other));
+    }
+
+    @Test
+    public void testWeightEviction() {
+        FSFTBuffer<Entry> buffer = new FSFTBuffer.Builder<Entry>()
+            .capacity(10)
+            .timeout(10)
+            .maximumWeight(100, entry -> entry.content)
+            .build();
+
+        Entry heavy = new Entry(60, "heavy");
+        Entry light = new Entry(30, "light");
+        Entry medium = new Entry(50, "medium");
+
+        assertTrue(buffer.put(heavy));
+        assertTrue(buffer.put(light));
+        assertEquals(90, buffer.weight());
+
+        assertTrue(buffer.put(medium));
+        assertEquals(80, buffer.weight());
+        assertTrue( testInAndNotInBuffer(buffer, Arrays.asList(light, medium), Collections.singletonList(heavy)) );
+    }
+
+    @Test
+    public void testWeightRejectsOversizedEntry() {
+        FSFTBuffer<Entry> buffer = new FSFTBuffer.Builder<Entry>()
+            .maximumWeight(100, entry -> entry.content)
+            .maxEntryFraction(0.5)
+            .build();
+
+        assertTrue(buffer.put(new Entry(50, "fits")));
+        assertFalse(buffer.put(new Entry(51, "too big")));
+
+        /* growing an entry past the limit drops it */
+        assertFalse(buffer.update(new Entry(80, "fits")));
+        assertFalse(buffer.touch("fits"));
+        assertEquals(0, buffer.weight());
+    }
+
+    @Test
+    public void testDiskStoreSurvivesReopen() throws IOException {
+        File directory = Files.createTempDirectory("diskstore").toFile();
+
+        DiskStore store = new DiskStore(directory, 100, 4096);
+        for (int i = 0; i < 500; i++) {
+            store.put("key" + (i % 20), ("value" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        store.remove("key3");
+        store.close();
+
+        DiskStore reopened = new DiskStore(directory, 100, 4096);
+        assertEquals(19, reopened.size());
+        assertEquals("value487", new String(reopened.get("key7"), StandardCharsets.UTF_8));
+        assertNull(reopened.get("key3"));
+        reopened.close();
+    }
+
+    @Test
+    public void testDiskStoreDropsTornRecord() throws IOException {
+        File directory = Files.createTempDirectory("diskstore").toFile();
+
+        DiskStore store = new DiskStore(directory, 100);
+        store.put("intact", "kept".getBytes(StandardCharsets.UTF_8));
+        store.close();
+
+        File[] segments = directory.listFiles();
+        assertNotNull(segments);
+        try (FileOutputStream out = new FileOutputStream(segments[0], true)) {
+            out.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 4, 0, 0, 0, 9, 1, 2, 3});
+        }
+
+        DiskStore reopened = new DiskStore(directory, 100);
+        assertEquals(1, reopened.size());
+        assertEquals("kept", new String(reopened.get("intact"), StandardCharsets.UTF_8));
+        reopened.put("after", "ok".getBytes(StandardCharsets.UTF_8));
+        assertEquals("ok", new String(reopened.get("after"), StandardCharsets.UTF_8));
+        reopened.close();
+    }
+
+    @Test
+    public void testDiskStoreShrinksAfterUnreadRecordsExpire() throws IOException {
+        File directory = Files.createTempDirectory("diskstore").toFile();
+
+        DiskStore store = new DiskStore(directory, 1, 4096);
+        byte[] value = new byte[100];
+        for (int i = 0; i < 500; i++) {
+            store.put("key" + i, value);
+        }
+        long written = store.diskBytes();
+        assertTrue(written > 10 * 4096);
+
+        /* nothing is read again; the background compaction notices on its own */
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.diskBytes() > 4096 && System.currentTimeMillis() < deadline) {
+            sleep(0.1);
+        }
+        assertTrue("still " + store.diskBytes() + " bytes", store.diskBytes() <= 4096);
+        assertEquals(0, store.size());
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        assertTrue(files.length <= 2);
+
+        store.put("after", "ok".getBytes(StandardCharsets.UTF_8));
+        assertEquals("ok", new String(store.get("after"), StandardCharsets.UTF_8));
+        store.close();
+    }
+
+    @Test
+    public void testDiskStoreCompactsOverwrittenRecords() throws IOException {
+        File directory = Files.createTempDirectory("diskstore").toFile();
+
+        DiskStore store = new DiskStore(directory, 100, 4096);
+        byte[] value = new byte[100];
+        for (int i = 0; i < 2000; i++) {
+            store.put("key" + (i % 10), value);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.diskBytes() > 4 * 4096 && System.currentTimeMillis() < deadline) {
+            sleep(0.1);
+        }
+        assertTrue("still " + store.diskBytes() + " bytes", store.diskBytes() <= 4 * 4096);
+        assertEquals(10, store.size());
+        store.close();
+
+        DiskStore reopened = new DiskStore(directory, 100, 4096);
+        assertEquals(10, reopened.size());
+        assertArrayEquals(value, reopened.get("key3"));
+        reopened.close();
+    }
+
+    @Test
+    public void testDiskStoreCompactsWhileWritten() throws Exception {
+        File directory = Files.createTempDirectory("diskstore").toFile();
+
+        DiskStore store = new DiskStore(directory, 100, 4096);
+        int[] latest = new int[50];
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 20_000; i++) {
+                    int key = i % latest.length;
+                    if (i % 7 == 0) {
+                        store.remove("key" + key);
+                        latest[key] = -1;
+                    } else {
+                        store.put("key" + key, ("value" + i).getBytes(StandardCharsets.UTF_8));
+                        latest[key] = i;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            store.compact();
+        }
+        writer.join();
+        store.compact();
+
+        for (int pass = 0; pass < 2; pass++) {
+            DiskStore checked = pass == 0 ? store : new DiskStore(directory, 100, 4096);
+            for (int key = 0; key < latest.length; key++) {
+                byte[] value = checked.get("key" + key);
+                if (latest[key] < 0) {
+                    assertNull("key" + key, value);
+                } else {
+                    assertEquals("value" + latest[key], new String(value, StandardCharsets.UTF_8));
+                }
+            }
+            checked.close();
+        }
+    }
+
     /* Task 3 Tests */
 
     @Test
@@ -919,6 +1367,431 @@ public class Tests {
         assertEquals(expectedList, actualList);
     }
 
+    /* answers after a delay, like a slow Wikipedia, and counts the requests it gets */
+    private class SlowSource implements WikiSource {
+        final int delay;
+        final AtomicInteger requests = new AtomicInteger();
+
+        SlowSource(int delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public String getPageText(String pageTitle) {
+            requests.incrementAndGet();
+            sleep((double) delay / 1000);
+            return "text of " + pageTitle;
+        }
+
+        @Override
+        public List<String> search(String query, int limit) {
+            requests.incrementAndGet();
+            sleep((double) delay / 1000);
+            return Collections.singletonList(query);
+        }
+    }
+
+    @Test
+    public void testMediatorRequestsRunInParallel() throws Exception {
+        SlowSource source = new SlowSource(100);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        List<Future<String>> pages = new ArrayList<>();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 32; i++) {
+            String title = "Page " + i;
+            pages.add(workers.submit(() -> wikiMediator.getPage(title)));
+        }
+        for (int i = 0; i < 32; i++) {
+            assertEquals("text of Page " + i, pages.get(i).get());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        workers.shutdown();
+
+        assertEquals(32, source.requests.get());
+        /* one at a time, 32 requests take 3.2s; 8 at a time, 0.4s */
+        assertTrue("took " + elapsed + "ms", elapsed < 1600);
+    }
+
+    @Test
+    public void testOffHeapPagesFitTheStore() {
+        char[] text = new char[40000];
+        Arrays.fill(text, 'x');
+        AtomicInteger fetches = new AtomicInteger();
+        WikiSource source = new WikiSource() {
+            @Override
+            public String getPageText(String pageTitle) {
+                fetches.incrementAndGet();
+                return new String(text);
+            }
+
+            @Override
+            public List<String> search(String query, int limit) {
+                return Collections.singletonList(query);
+            }
+        };
+        /* two 1MB slabs hold 32 of these pages, each in a 64KB chunk */
+        WikiMediator wikiMediator = new WikiMediator.Builder()
+            .source(source)
+            .offHeapPages(2 * 1024 * 1024)
+            .build();
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 40; i++) {
+                assertEquals(40000, wikiMediator.getPage("Page " + i).length());
+            }
+        }
+        /* no more are cached than the store holds, rather than the rest on the heap */
+        assertTrue("fetched " + fetches.get(), fetches.get() >= 48);
+    }
+
+    @Test
+    public void testCompressionStats() {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longText.append("[[Category:Page ").append(i).append("]] is in the list of the pages.\n");
+        }
+        String shortText = "a short page";
+        WikiSource source = new WikiSource() {
+            @Override
+            public String getPageText(String pageTitle) {
+                return pageTitle.equals("Long") ? longText.toString() : shortText;
+            }
+
+            @Override
+            public List<String> search(String query, int limit) {
+                return Collections.emptyList();
+            }
+        };
+
+        WikiMediator plain = new WikiMediator.Builder().source(source).build();
+        plain.getPage("Long");
+        assertEquals(0, plain.compressionStats().getRawBytes());
+
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).compressPages(100).build();
+        assertEquals(longText.toString(), wikiMediator.getPage("Long"));
+        assertEquals(shortText, wikiMediator.getPage("Short"));
+        assertEquals(0, wikiMediator.compressionStats().getDecompressNanos());
+        /* a hit decompresses the cached page */
+        assertEquals(longText.toString(), wikiMediator.getPage("Long"));
+
+        CompressionStats stats = wikiMediator.compressionStats();
+        assertEquals(longText.length() + shortText.length(), stats.getRawBytes());
+        assertTrue(stats.getStoredBytes() < stats.getRawBytes() / 4);
+        assertTrue(stats.getStoredBytes() > shortText.length());
+        assertTrue(stats.getDecompressNanos() > 0);
+    }
+
+    @Test
+    public void testMediatorCoalescesConcurrentMisses() throws Exception {
+        SlowSource source = new SlowSource(200);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        ExecutorService workers = Executors.newFixedThreadPool(16);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<String>> pages = new ArrayList<>();
+
+        for (int i = 0; i < 16; i++) {
+            pages.add(workers.submit(() -> {
+                go.await();
+                return wikiMediator.getPage("Barack Obama");
+            }));
+        }
+        go.countDown();
+        for (Future<String> page : pages) {
+            assertEquals("text of Barack Obama", page.get());
+        }
+        workers.shutdown();
+
+        assertEquals(1, source.requests.get());
+    }
+
+    @Test
+    public void testMediatorLogsSurviveReload() throws Exception {
+        File directory = Files.createTempDirectory("logs").toFile();
+        File logFile = new File(directory, "logs.txt");
+        File peakLoadFile = new File(directory, "logs_peak.txt");
+        WikiMediator before = new WikiMediator.Builder().source(new SlowSource(0)).build();
+        before.getPage("Barack Obama");
+        before.getPage("Barack Obama");
+        before.search("Canada", 3);
+        before.saveLogs(logFile, peakLoadFile);
+
+        WikiMediator after = new WikiMediator.Builder()
+            .source(new SlowSource(0))
+            .logs(logFile, peakLoadFile)
+            .build();
+        assertEquals(Arrays.asList("Barack Obama", "Canada"), after.zeitgeist(5));
+    }
+
+    @Test
+    public void testZeitgeistOrder() {
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(0)).build();
+        wikiMediator.search("Hello", 10);
+        wikiMediator.getPage("User:Vijeethvp");
+        wikiMediator.search("Blue", 4);
+        wikiMediator.search("Hello", 3);
+        wikiMediator.getPage("User:Vijeethvp");
+        wikiMediator.getPage("User:AllyD");
+        wikiMediator.search("Hello", 4);
+        wikiMediator.search("Blue", 3);
+
+        /* ties rank in the order the strings reached their count */
+        assertEquals(Arrays.asList("Hello", "User:Vijeethvp", "Blue", "User:AllyD"), wikiMediator.zeitgeist(5));
+        assertEquals(Arrays.asList("Hello", "User:Vijeethvp"), wikiMediator.zeitgeist(2));
+        assertEquals(Collections.emptyList(), wikiMediator.zeitgeist(0));
+
+        wikiMediator.getPage("User:AllyD");
+        wikiMediator.getPage("User:AllyD");
+        wikiMediator.getPage("User:AllyD");
+        assertEquals(Arrays.asList("User:AllyD", "Hello", "User:Vijeethvp"), wikiMediator.zeitgeist(3));
+    }
+
+    @Test
+    public void testTrendingWindow() {
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(0)).build();
+        wikiMediator.search("Hello", 10);
+        wikiMediator.getPage("User:AllyD");
+        wikiMediator.search("Blue", 4);
+        wikiMediator.getPage("User:AllyD");
+        wikiMediator.search("Blue", 3);
+        wikiMediator.getPage("User:AllyD");
+
+        /* ranked by count, not by how recent; how the window slides is in SlidingWindowCountsTest */
+        assertEquals(Arrays.asList("User:AllyD", "Blue", "Hello"), wikiMediator.trending(5));
+        assertEquals(Arrays.asList("User:AllyD", "Blue"), wikiMediator.trending(60, 2));
+        assertEquals(Collections.emptyList(), wikiMediator.trending(0));
+        try {
+            wikiMediator.trending(0, 5);
+            fail("a window of 0s");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPeakLoadSurvivesReload() throws Exception {
+        File directory = Files.createTempDirectory("logs").toFile();
+        File logFile = new File(directory, "logs.txt");
+        File peakLoadFile = new File(directory, "logs_peak.txt");
+        WikiMediator before = new WikiMediator.Builder().source(new SlowSource(0)).build();
+        for (int i = 0; i < 10; i++) {
+            before.getPage("Page " + i);
+        }
+        before.zeitgeist(3);
+        assertEquals(12, before.peakLoad30s());
+        before.saveLogs(logFile, peakLoadFile);
+
+        WikiMediator after = new WikiMediator.Builder()
+            .source(new SlowSource(0))
+            .logs(logFile, peakLoadFile)
+            .build();
+        assertEquals(12, after.peakLoad30s());
+
+        /* the times of every request, as they used to be saved */
+        try (FileWriter writer = new FileWriter(peakLoadFile)) {
+            writer.write("[1000, 2000, 31000, 31001, 40000]");
+        }
+        WikiMediator legacy = new WikiMediator.Builder()
+            .source(new SlowSource(0))
+            .logs(logFile, peakLoadFile)
+            .build();
+        assertEquals(3, legacy.peakLoad30s());
+    }
+
+    /**
+     * @return n titles drawn from distinct ones, the title of rank r with
+     * probability in proportion to 1 / r^exponent
+     */
+    private static List<String> zipfTrace(int distinct, double exponent, int n, long seed) {
+        double[] cumulative = new double[distinct];
+        double sum = 0;
+        for (int r = 0; r < distinct; r++) {
+            sum += 1 / Math.pow(r + 1, exponent);
+            cumulative[r] = sum;
+        }
+        Random random = new Random(seed);
+        List<String> trace = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int r = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace.add("Title " + (r < 0 ? -r - 1 : r));
+        }
+        return trace;
+    }
+
+    /**
+     * Check that the i-th string of approximate was requested at most
+     * error times less often than the i-th most requested string
+     */
+    private static void assertRankedWithin(List<String> trace, List<String> approximate, int limit, double error) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String title : trace) {
+            counts.merge(title, 1, Integer::sum);
+        }
+        List<Integer> exact = new ArrayList<>(counts.values());
+        exact.sort(Collections.reverseOrder());
+
+        assertEquals(limit, approximate.size());
+        assertEquals(limit, new HashSet<>(approximate).size());
+        for (int i = 0; i < limit; i++) {
+            int count = counts.getOrDefault(approximate.get(i), 0);
+            assertTrue(approximate.get(i) + " at " + i + " requested " + count + " times, not "
+                + exact.get(i), count >= exact.get(i) - error);
+        }
+    }
+
+    @Test
+    public void testApproximateZeitgeistOnZipfTrace() {
+        double epsilon = 0.01;
+        WikiMediator wikiMediator = new WikiMediator.Builder()
+            .source(new SlowSource(0))
+            .approximateStatistics(epsilon)
+            .build();
+        List<String> trace = zipfTrace(5000, 1.1, 20000, 221);
+        for (String title : trace) {
+            wikiMediator.getPage(title);
+        }
+
+        List<String> zeitgeist = wikiMediator.zeitgeist(10);
+        assertEquals("Title 0", zeitgeist.get(0));
+        assertRankedWithin(trace, zeitgeist, 10, epsilon * trace.size());
+    }
+
+    @Test
+    public void testApproximateTrendingOnZipfTrace() {
+        double epsilon = 0.01;
+        WikiMediator wikiMediator = new WikiMediator.Builder()
+            .source(new SlowSource(0))
+            .approximateStatistics(epsilon)
+            .build();
+        List<String> trace = zipfTrace(5000, 0.9, 20000, 222);
+        for (String title : trace) {
+            wikiMediator.search(title, 1);
+        }
+
+        /* each second's counts may be too high or too low */
+        assertRankedWithin(trace, wikiMediator.trending(10), 10, 2 * epsilon * trace.size());
+        assertRankedWithin(trace, wikiMediator.trending(60, 10), 10, 2 * epsilon * trace.size());
+    }
+
+    /* the heap in use once what is unreachable has been collected, as near as can be told */
+    private long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            sleep(0.05);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void testApproximateStatisticsMemoryIsBounded() throws IOException {
+        WikiMediator wikiMediator = new WikiMediator.Builder()
+            .source(new SlowSource(0))
+            .approximateStatistics(0.01)
+            .build();
+        for (int i = 0; i < 20_000; i++) {
+            wikiMediator.search("Distinct title number " + i, 1);
+        }
+        long before = usedHeap();
+
+        /* a log of these would take tens of megabytes */
+        for (int i = 20_000; i < 320_000; i++) {
+            wikiMediator.search("Distinct title number " + i, 1);
+        }
+        long grown = usedHeap() - before;
+        assertTrue("grew by " + grown + " bytes", grown < 16 * 1024 * 1024);
+        assertEquals(320_000, wikiMediator.requestCount());
+
+        File directory = Files.createTempDirectory("logs").toFile();
+        File logFile = new File(directory, "logs.txt");
+        wikiMediator.saveLogs(logFile, new File(directory, "logs_peak.txt"));
+        assertEquals("{}", new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMediatorDeadlineLateResultIsCached() throws Exception {
+        SlowSource source = new SlowSource(500);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        long start = System.currentTimeMillis();
+        Deadline deadline = Deadline.after(Duration.ofMillis(100), scheduler);
+        try {
+            wikiMediator.getPage("Late", deadline);
+            fail("the page took longer than its deadline");
+        } catch (TimeoutException e) {
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("gave up after " + elapsed + "ms", elapsed < 400);
+        }
+        assertTrue(deadline.isExpired());
+
+        /* a second request joins the fetch that is still running */
+        assertEquals("text of Late", wikiMediator.getPage("Late"));
+        assertEquals(1, source.requests.get());
+
+        start = System.currentTimeMillis();
+        assertEquals("text of Late", wikiMediator.getPage("Late",
+            Deadline.after(Duration.ofMillis(100), scheduler)));
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertEquals(1, source.requests.get());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testMediatorSourceRequestsAreLimited() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger most = new AtomicInteger();
+        SlowSource source = new SlowSource(300) {
+            @Override
+            public String getPageText(String pageTitle) {
+                most.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    return super.getPageText(pageTitle);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).maxSourceRequests(2).build();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService workers = Executors.newFixedThreadPool(10);
+        List<Future<?>> requests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String title = "Page " + i;
+            requests.add(workers.submit(() -> {
+                try {
+                    wikiMediator.getPage(title, Deadline.after(Duration.ofMillis(100), scheduler));
+                    fail("the page took longer than its deadline");
+                } catch (TimeoutException e) {
+                    // expected
+                }
+                return null;
+            }));
+        }
+        for (Future<?> request : requests) {
+            request.get();
+        }
+
+        /* two fetches got to ask the source; the rest gave up waiting for their turn */
+        sleep(0.5);
+        assertEquals(0, running.get());
+        assertEquals(2, most.get());
+        assertEquals(2, source.requests.get());
+
+        /* and left nothing behind that a later request would wait for */
+        List<String> titles = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            titles.add(wikiMediator.getPage("Page " + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("text of Page " + i, titles.get(i));
+        }
+        assertEquals(10, source.requests.get());
+        workers.shutdown();
+        scheduler.shutdown();
+    }
+
     /* Task 4 Tests */
     public static final int WIKI_PORT = 4949;
 
@@ -959,6 +1832,654 @@ public class Tests {
 
     }
 
+    @Test
+    public void testServerSharesOneMediator() throws Exception {
+        SlowSource source = new SlowSource(0);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 1, 4, wikiMediator);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        for (int i = 0; i < 3; i++) {
+            WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 1);
+            client.sendRequest("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Barack Obama\"}");
+            assertTrue(client.getReply().contains("text of Barack Obama"));
+            client.close();
+        }
+
+        /* the later connections were answered from the first one's cache */
+        assertEquals(1, source.requests.get());
+        assertEquals(Collections.singletonList("Barack Obama"), wikiMediator.zeitgeist(5));
+    }
+
+    @Test
+    public void testNioServerHoldsManyConnections() throws Exception {
+        SlowSource source = new SlowSource(0);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 2, 2, wikiMediator,
+            WikiMediatorServer.Mode.NIO);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        /* far more open connections than the server has threads */
+        List<WikiMediatorClient> clients = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            clients.add(new WikiMediatorClient("localhost", WIKI_PORT + 2));
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).sendRequest("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Page " + i + "\"}");
+            clients.get(i).sendRequest("{\"id\": \"again\", \"type\": \"getPage\", \"pageTitle\": \"Page " + i + "\"}");
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            String first = clients.get(i).getReply();
+            assertTrue(first.contains("\"id\":\"" + i + "\""));
+            assertTrue(first.contains("text of Page " + i));
+            assertTrue(clients.get(i).getReply().contains("\"id\":\"again\""));
+            clients.get(i).close();
+        }
+    }
+
+    @Test
+    public void testVirtualThreadServer() throws Exception {
+        SlowSource source = new SlowSource(0);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 3, 2, wikiMediator,
+            WikiMediatorServer.Mode.VIRTUAL_THREADS);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        List<WikiMediatorClient> clients = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            clients.add(new WikiMediatorClient("localhost", WIKI_PORT + 3));
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).sendRequest("{\"id\": \"" + i + "\", \"type\": \"search\", \"query\": \"Query " + i + "\", \"limit\": 5}");
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            assertTrue(clients.get(i).getReply().contains("Query " + i));
+            clients.get(i).close();
+        }
+    }
+
+    @Test
+    public void testServerTimeoutWithSharedExecutor() throws Exception {
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(3000)).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 4, 2, wikiMediator);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 4);
+        client.sendRequest("{\"id\": \"1\", \"type\": \"getPage\", \"pageTitle\": \"Slow\", \"timeout\": 1}");
+        String reply = client.getReply();
+        assertTrue(reply.contains("failed"));
+        assertTrue(reply.contains("Operation timed out"));
+        client.close();
+    }
+
+    @Test
+    public void testPipelinedRequestsOnOneConnection() throws Exception {
+        WikiMediatorServer.Mode[] modes = {WikiMediatorServer.Mode.THREAD_POOL, WikiMediatorServer.Mode.NIO};
+        for (int m = 0; m < modes.length; m++) {
+            WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(50)).build();
+            WikiMediatorServer server = new WikiMediatorServer.Builder()
+                .port(WIKI_PORT + 5 + m)
+                .threads(8)
+                .mediator(wikiMediator)
+                .mode(modes[m])
+                .pipelining(true)
+                .build();
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serving.setDaemon(true);
+            serving.start();
+
+            WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 5 + m);
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<String>> replies = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                replies.add(client.sendRequestAsync("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Page " + i + "\"}"));
+            }
+            CompletableFuture<String> peakLoad = client.sendRequestAsync("{\"id\": \"peak\", \"type\": \"peakLoad30s\"}");
+
+            /* the quick request overtakes the slow ones sent before it */
+            assertTrue(peakLoad.get().contains("success"));
+            assertFalse(replies.get(99).isDone());
+            for (int i = 0; i < 100; i++) {
+                assertTrue(replies.get(i).get().contains("text of Page " + i));
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            /* one at a time, the requests take 5s */
+            assertTrue(modes[m] + " took " + elapsed + "ms", elapsed < 2500);
+            client.close();
+        }
+    }
+
+    @Test
+    public void testServerSavesStatisticsOnlyWhereAsked() throws Exception {
+        File directory = Files.createTempDirectory("logs").toFile();
+        File logFile = new File(directory, "logs.txt");
+        File peakLoadFile = new File(directory, "logs_peak.txt");
+        File defaultLogFile = new File("local/logs.txt");
+        long defaultModified = defaultLogFile.lastModified();
+
+        WikiMediator saved = new WikiMediator.Builder().source(new SlowSource(0)).build();
+        WikiMediatorServer savingServer = new WikiMediatorServer.Builder()
+            .port(WIKI_PORT + 18)
+            .threads(2)
+            .mediator(saved)
+            .logs(logFile, peakLoadFile)
+            .build();
+        WikiMediator unsaved = new WikiMediator.Builder().source(new SlowSource(0)).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 19, 2, unsaved);
+
+        for (WikiMediatorServer each : Arrays.asList(savingServer, server)) {
+            Thread serving = new Thread(() -> {
+                try {
+                    each.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serving.setDaemon(true);
+            serving.start();
+        }
+
+        for (int port : new int[] {WIKI_PORT + 18, WIKI_PORT + 19}) {
+            WikiMediatorClient client = new WikiMediatorClient("localhost", port);
+            client.sendRequest("{\"id\": \"1\", \"type\": \"getPage\", \"pageTitle\": \"Barack Obama\"}");
+            assertTrue(client.getReply().contains("text of Barack Obama"));
+            client.sendRequest("{\"id\": \"2\", \"type\": \"stop\"}");
+            assertTrue(client.getReply().contains("bye"));
+            client.close();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!peakLoadFile.isFile() && System.currentTimeMillis() < deadline) {
+            sleep(0.1);
+        }
+        WikiMediator reloaded = new WikiMediator.Builder()
+            .source(new SlowSource(0))
+            .logs(logFile, peakLoadFile)
+            .build();
+        assertEquals(Collections.singletonList("Barack Obama"), reloaded.zeitgeist(5));
+        /* the server given a mediator, and no files, left the default ones alone */
+        assertEquals(defaultModified, defaultLogFile.lastModified());
+    }
+
+    @Test
+    public void testBatchRequest() throws Exception {
+        SlowSource source = new SlowSource(200);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 7, 2, wikiMediator);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            requests.add("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Page " + i + "\"}");
+        }
+        requests.add("{\"id\": \"bad\", \"type\": \"stop\"}");
+
+        WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 7);
+        long start = System.currentTimeMillis();
+        client.sendRequest(WikiMediatorClient.batch("all", requests));
+        List<String> replies = WikiMediatorClient.batchReplies(client.getReply());
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(21, replies.size());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(replies.get(i).contains("\"id\":\"" + i + "\""));
+            assertTrue(replies.get(i).contains("text of Page " + i));
+        }
+        assertTrue(replies.get(20).contains("failed"));
+        /* one after another, the pages take 4s */
+        assertTrue("took " + elapsed + "ms", elapsed < 2000);
+        client.close();
+    }
+
+    private static int callThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("WikiMediatorServer call")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testConcurrentBatchesShareBoundedThreads() throws Exception {
+        SlowSource source = new SlowSource(2);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 21, 4, wikiMediator);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        /* other tests' servers may still have idle call threads */
+        int before = callThreads();
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        List<Future<List<String>>> batches = new ArrayList<>();
+        for (int b = 0; b < 4; b++) {
+            int batch = b;
+            batches.add(clients.submit(() -> {
+                List<String> requests = new ArrayList<>();
+                for (int i = 0; i < 500; i++) {
+                    requests.add("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Page "
+                        + batch + "." + i + "\"}");
+                }
+                WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 21);
+                client.sendRequest(WikiMediatorClient.batch("batch " + batch, requests));
+                List<String> replies = WikiMediatorClient.batchReplies(client.getReply());
+                client.close();
+                return replies;
+            }));
+        }
+
+        int most = 0;
+        while (!batches.stream().allMatch(Future::isDone)) {
+            most = Math.max(most, callThreads() - before);
+            sleep(0.01);
+        }
+        clients.shutdown();
+
+        for (int b = 0; b < 4; b++) {
+            List<String> replies = batches.get(b).get();
+            assertEquals(500, replies.size());
+            assertTrue(replies.get(499).contains("text of Page " + b + ".499"));
+        }
+        /* 8 call threads per request thread, rather than one per part of every batch */
+        assertTrue("started " + most + " call threads", most <= 32);
+        assertEquals(2000, source.requests.get());
+    }
+
+    @Test
+    public void testBatchRequestsAreEachAdmitted() throws Exception {
+        SlowSource source = new SlowSource(300);
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+        WikiMediatorServer server = new WikiMediatorServer.Builder()
+            .port(WIKI_PORT + 26)
+            .threads(4)
+            .mediator(wikiMediator)
+            .maxInFlightPerClient(3)
+            .build();
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            requests.add("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Page " + i + "\"}");
+        }
+        WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 26);
+        client.sendRequest(WikiMediatorClient.batch("all", requests));
+        List<String> replies = WikiMediatorClient.batchReplies(client.getReply());
+
+        /* the batch itself takes one of the client's 3, which leaves 2 for its requests */
+        assertEquals(5, replies.size());
+        int overloaded = 0;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(replies.get(i), replies.get(i).contains("\"id\":\"" + i + "\""));
+            if (replies.get(i).contains("overloaded")) {
+                overloaded++;
+            }
+        }
+        assertEquals(3, overloaded);
+        assertEquals(2, source.requests.get());
+
+        /* a batch that is too long is turned away without running any of it */
+        List<String> tooMany = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            tooMany.add("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"More " + i + "\"}");
+        }
+        client.sendRequest(WikiMediatorClient.batch("too many", tooMany));
+        String reply = client.getReply();
+        assertTrue(reply, reply.contains("\"id\":\"too many\""));
+        assertTrue(reply, reply.contains("more than 1000 requests"));
+        assertEquals(2, source.requests.get());
+        client.close();
+    }
+
+    @Test
+    public void testLargePageStreamed() throws Exception {
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            page.append("line ").append(i).append(" has \"quotes\", \\ and \u00e9\n");
+        }
+        String text = page.toString();
+        WikiSource source = new WikiSource() {
+            @Override
+            public String getPageText(String pageTitle) {
+                return text;
+            }
+
+            @Override
+            public List<String> search(String query, int limit) {
+                return Collections.singletonList(query);
+            }
+        };
+
+        int port = WIKI_PORT + 8;
+        for (WikiMediatorServer.Mode mode : WikiMediatorServer.Mode.values()) {
+            WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+            WikiMediatorServer server = new WikiMediatorServer(port, 2, wikiMediator, mode);
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serving.setDaemon(true);
+            serving.start();
+
+            WikiMediatorClient client = new WikiMediatorClient("localhost", port);
+            client.sendRequest("{\"id\": \"plain\", \"type\": \"getPage\", \"pageTitle\": \"Big\"}");
+            JsonObject plain = JsonParser.parseString(client.getReply()).getAsJsonObject();
+            client.sendRequest("{\"id\": \"chunked\", \"type\": \"getPage\", \"pageTitle\": \"Big\", \"chunked\": true}");
+            JsonObject chunked = JsonParser.parseString(client.getReply()).getAsJsonObject();
+            client.close();
+
+            assertEquals("plain", plain.get("id").getAsString());
+            assertEquals("success", plain.get("status").getAsString());
+            assertEquals(text, plain.get("response").getAsString());
+            assertEquals("chunked", chunked.get("id").getAsString());
+            assertFalse(chunked.has("chunked"));
+            assertEquals(text, chunked.get("response").getAsString());
+            port++;
+        }
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        int port = WIKI_PORT + 11;
+        for (WikiMediatorServer.Mode mode : WikiMediatorServer.Mode.values()) {
+            WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(0)).build();
+            WikiMediatorServer server = new WikiMediatorServer(port, 2, wikiMediator, mode);
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serving.setDaemon(true);
+            serving.start();
+
+            WikiMediatorClient client = new WikiMediatorClient("localhost", port, true);
+            client.sendRequest(BinaryProtocol.Request.getPage("1", "Caf\u00e9"));
+            client.sendRequest(BinaryProtocol.Request.search("2", "Obama", 5).withTimeout(5));
+            client.sendRequest(BinaryProtocol.Request.zeitgeist("3", 5));
+            client.sendRequest(BinaryProtocol.Request.peakLoad30s("4"));
+
+            BinaryProtocol.Result page = client.getResult();
+            assertEquals("1", page.id());
+            assertTrue(page.succeeded());
+            assertEquals("text of Caf\u00e9", page.text());
+            BinaryProtocol.Result search = client.getResult();
+            assertEquals("2", search.id());
+            assertEquals(Collections.singletonList("Obama"), search.list());
+            BinaryProtocol.Result zeitgeist = client.getResult();
+            assertEquals(Arrays.asList("Caf\u00e9", "Obama"), new ArrayList<>(new TreeSet<>(zeitgeist.list())));
+            BinaryProtocol.Result peakLoad = client.getResult();
+            assertEquals(4, peakLoad.number());
+            client.close();
+
+            /* the same server still speaks JSON */
+            WikiMediatorClient jsonClient = new WikiMediatorClient("localhost", port);
+            jsonClient.sendRequest("{\"id\": \"5\", \"type\": \"getPage\", \"pageTitle\": \"Caf\u00e9\"}");
+            assertTrue(jsonClient.getReply().contains("text of Caf\u00e9"));
+            jsonClient.close();
+            port++;
+        }
+    }
+
+    @Test
+    public void testBinaryLongPage() throws Exception {
+        StringBuilder page = new StringBuilder();
+        while (page.length() < 300000) {
+            page.append("line ").append(page.length()).append(" of caf\u00e9\n");
+        }
+        /* a surrogate pair across the end of the first chunk */
+        page.replace(65535, 65537, "\ud83d\ude00");
+        String text = page.toString();
+        WikiSource source = new WikiSource() {
+            @Override
+            public String getPageText(String pageTitle) {
+                return text;
+            }
+
+            @Override
+            public List<String> search(String query, int limit) {
+                return Collections.singletonList(query);
+            }
+        };
+
+        int port = WIKI_PORT + 22;
+        for (WikiMediatorServer.Mode mode : WikiMediatorServer.Mode.values()) {
+            WikiMediator wikiMediator = new WikiMediator.Builder().source(source).build();
+            WikiMediatorServer server = new WikiMediatorServer(port, 2, wikiMediator, mode);
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serving.setDaemon(true);
+            serving.start();
+
+            WikiMediatorClient client = new WikiMediatorClient("localhost", port, true);
+            client.sendRequest(BinaryProtocol.Request.getPage("1", "Big"));
+            client.sendRequest(BinaryProtocol.Request.peakLoad30s("2"));
+            BinaryProtocol.Result result = client.getResult();
+            assertEquals("1", result.id());
+            assertTrue(result.succeeded());
+            assertEquals(text, result.text());
+            assertEquals("2", client.getResult().id());
+            client.close();
+            port++;
+        }
+    }
+
+    @Test
+    public void testBinaryClientRejectsHugeFrame() throws Exception {
+        try (ServerSocket fake = new ServerSocket(WIKI_PORT + 25)) {
+            Thread serving = new Thread(() -> {
+                try (Socket socket = fake.accept()) {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    in.readNBytes(4);
+                    out.write(new byte[]{0, 'W', 'M', 1, 0x7f, -1, -1, -1});
+                    out.flush();
+                    in.read();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serving.setDaemon(true);
+            serving.start();
+
+            WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 25, true);
+            try {
+                client.getResult();
+                fail("read a frame of 2GB");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("frame of"));
+            }
+            client.close();
+        }
+    }
+
+    @Test
+    public void testJsonRequestFields() throws Exception {
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(0)).build();
+        WikiMediatorServer server = new WikiMediatorServer(WIKI_PORT + 14, 2, wikiMediator);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 14);
+        client.sendRequest("{\"id\": 7, \"type\": \"SEARCH\", \"query\": \"Obama\", \"limit\": \"5\", \"extra\": [1, {}]}");
+        assertEquals("{\"id\":7,\"status\":\"success\",\"response\":\"[\\\"Obama\\\"]\"}", client.getReply());
+        client.sendRequest("{\"id\": {\"n\": 1}, \"type\": \"nothing\"}");
+        assertEquals("{\"id\":{\"n\":1},\"status\":\"failed\",\"response\":\"Operation type not found\"}",
+            client.getReply());
+        client.sendRequest("{\"id\": \"8\", \"type\": \"search\", \"query\": \"Obama\"}");
+        assertEquals("err", client.getReply());
+        client.sendRequest("not json {");
+        assertEquals("err", client.getReply());
+        client.close();
+    }
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        WikiMediatorServer.Mode[] modes = {WikiMediatorServer.Mode.THREAD_POOL, WikiMediatorServer.Mode.NIO};
+        for (int m = 0; m < modes.length; m++) {
+            WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(300)).build();
+            WikiMediatorServer server = new WikiMediatorServer.Builder()
+                .port(WIKI_PORT + 15 + m)
+                .threads(8)
+                .mediator(wikiMediator)
+                .mode(modes[m])
+                .pipelining(true)
+                .maxConnections(1)
+                .maxInFlightPerClient(2)
+                .build();
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serving.setDaemon(true);
+            serving.start();
+
+            WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 15 + m);
+            List<CompletableFuture<String>> replies = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                replies.add(client.sendRequestAsync("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Page " + i + "\"}"));
+            }
+            int overloaded = 0;
+            for (int i = 0; i < 5; i++) {
+                String reply = replies.get(i).get();
+                assertTrue(reply, reply.contains("\"id\":\"" + i + "\""));
+                if (reply.contains("overloaded")) {
+                    overloaded++;
+                } else {
+                    assertTrue(reply, reply.contains("text of Page " + i));
+                }
+            }
+            assertEquals(modes[m].toString(), 3, overloaded);
+
+            /* the one connection allowed is taken */
+            WikiMediatorClient second = new WikiMediatorClient("localhost", WIKI_PORT + 15 + m);
+            assertTrue(second.getReply().contains("overloaded"));
+            second.close();
+            client.close();
+        }
+    }
+
+    @Test
+    public void testAdaptiveConcurrency() throws Exception {
+        WikiMediator wikiMediator = new WikiMediator.Builder().source(new SlowSource(200)).build();
+        WikiMediatorServer server = new WikiMediatorServer.Builder()
+            .port(WIKI_PORT + 17)
+            .threads(8)
+            .mediator(wikiMediator)
+            .pipelining(true)
+            .adaptiveConcurrency(4, Duration.ofMillis(50))
+            .build();
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        /* each slow request halves the limit, from 4 to 1 */
+        WikiMediatorClient client = new WikiMediatorClient("localhost", WIKI_PORT + 17);
+        for (int i = 0; i < 2; i++) {
+            client.sendRequest("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Slow " + i + "\"}");
+            assertTrue(client.getReply().contains("text of Slow " + i));
+        }
+
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            replies.add(client.sendRequestAsync("{\"id\": \"" + i + "\", \"type\": \"getPage\", \"pageTitle\": \"Page " + i + "\"}"));
+        }
+        int overloaded = 0;
+        for (CompletableFuture<String> reply : replies) {
+            if (reply.get().contains("overloaded")) {
+                overloaded++;
+            }
+        }
+        assertEquals(2, overloaded);
+        client.close();
+    }
+
     @Test
     public void ServerTest3TimeOut() {
         new Thread(() -> {
@@ -0,0 +1,131 @@
+package cpen221.mp3.wikimediator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OffHeapTextStoreTest {
+
+    private static final int MB = 1 << 20;
+
+    private static byte[] text(int length, char c) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPutGetRoundTrip() {
+        OffHeapTextStore store = new OffHeapTextStore(8 * MB);
+        byte[] small = "Hello, w\u00f6rld".getBytes(StandardCharsets.UTF_8);
+        byte[] medium = text(5000, 'm');
+        byte[] large = text(2 * MB + 12345, 'l');
+        large[large.length - 1] = 'e';
+
+        long smallHandle = store.put(small);
+        long mediumHandle = store.put(medium);
+        long largeHandle = store.put(large);
+        assertNotEquals(OffHeapTextStore.NO_HANDLE, smallHandle);
+        assertNotEquals(OffHeapTextStore.NO_HANDLE, mediumHandle);
+        assertNotEquals(OffHeapTextStore.NO_HANDLE, largeHandle);
+
+        assertArrayEquals(small, store.get(smallHandle, store.stamp(smallHandle), small.length));
+        assertArrayEquals(medium, store.get(mediumHandle, store.stamp(mediumHandle), medium.length));
+        assertArrayEquals(large, store.get(largeHandle, store.stamp(largeHandle), large.length));
+    }
+
+    @Test
+    public void testAllocationIsTheWholeChunk() {
+        assertEquals(256, OffHeapTextStore.allocation(0));
+        assertEquals(256, OffHeapTextStore.allocation(248));
+        assertEquals(512, OffHeapTextStore.allocation(249));
+        assertEquals(64 * 1024, OffHeapTextStore.allocation(40000));
+        assertEquals(MB, OffHeapTextStore.allocation(MB - 8));
+        assertEquals(2 * MB, OffHeapTextStore.allocation(MB - 7));
+        assertEquals(3 * MB, OffHeapTextStore.allocation(2 * MB + 12345));
+    }
+
+    @Test
+    public void testFreedHandleReadsNull() {
+        OffHeapTextStore store = new OffHeapTextStore(8 * MB);
+        byte[] small = text(100, 's');
+        byte[] large = text(MB + 1, 'l');
+
+        long smallHandle = store.put(small);
+        long smallStamp = store.stamp(smallHandle);
+        long largeHandle = store.put(large);
+        long largeStamp = store.stamp(largeHandle);
+        store.free(smallHandle, small.length);
+        store.free(largeHandle, large.length);
+        assertNull(store.get(smallHandle, smallStamp, small.length));
+        assertNull(store.get(largeHandle, largeStamp, large.length));
+
+        /* the freed slabs are reused, but the old handles still read null */
+        long reused = store.put(text(100, 'r'));
+        long reusedLarge = store.put(text(MB + 1, 'q'));
+        assertEquals(3 * MB, store.reservedBytes());
+        assertNull(store.get(smallHandle, smallStamp, small.length));
+        assertNull(store.get(largeHandle, largeStamp, large.length));
+        assertNotNull(store.get(reused, store.stamp(reused), 100));
+        assertNotNull(store.get(reusedLarge, store.stamp(reusedLarge), MB + 1));
+    }
+
+    @Test
+    public void testChunkReuseAfterFree() {
+        OffHeapTextStore store = new OffHeapTextStore(MB);
+        List<Long> handles = new ArrayList<>();
+        long handle;
+        while ((handle = store.put(text(200, 'a'))) != OffHeapTextStore.NO_HANDLE) {
+            handles.add(handle);
+        }
+        assertEquals(MB / 256, handles.size());
+        assertEquals(MB, store.reservedBytes());
+
+        store.free(handles.get(7), 200);
+        assertEquals(handles.get(7).longValue(), store.put(text(150, 'b')));
+        assertEquals(OffHeapTextStore.NO_HANDLE, store.put(text(150, 'c')));
+        assertEquals(MB, store.reservedBytes());
+    }
+
+    @Test
+    public void testEmptySlabsAreSharedBetweenClasses() {
+        OffHeapTextStore store = new OffHeapTextStore(2 * MB);
+        List<Long> handles = new ArrayList<>();
+        long handle;
+        while ((handle = store.put(text(200, 'a'))) != OffHeapTextStore.NO_HANDLE) {
+            handles.add(handle);
+        }
+        byte[] large = text(MB + MB / 2, 'l');
+        assertEquals(OffHeapTextStore.NO_HANDLE, store.put(large));
+        assertEquals(OffHeapTextStore.NO_HANDLE, store.put(text(1000, 'k')));
+
+        for (long h : handles) {
+            store.free(h, 200);
+        }
+        assertEquals(2 * MB, store.freeBytes());
+
+        long largeHandle = store.put(large);
+        assertNotEquals(OffHeapTextStore.NO_HANDLE, largeHandle);
+        assertArrayEquals(large, store.get(largeHandle, store.stamp(largeHandle), large.length));
+        assertEquals(0, store.freeBytes());
+    }
+
+    @Test
+    public void testLargeRecordChurnStaysWithinBudget() {
+        OffHeapTextStore store = new OffHeapTextStore(4 * MB);
+        for (int i = 0; i < 200; i++) {
+            byte[] large = text(MB + i * 1000, (char) ('a' + i % 26));
+            long handle = store.put(large);
+            assertNotEquals(OffHeapTextStore.NO_HANDLE, handle);
+            assertArrayEquals(large, store.get(handle, store.stamp(handle), large.length));
+            store.free(handle, large.length);
+            assertTrue(store.reservedBytes() <= 4 * MB);
+        }
+        assertEquals(2 * MB, store.reservedBytes());
+    }
+}
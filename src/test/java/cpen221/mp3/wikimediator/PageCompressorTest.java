@@ -0,0 +1,73 @@
+package cpen221.mp3.wikimediator;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PageCompressorTest {
+
+    private static final String PAGE = "{{Short description|Swiss mathematician}}\n"
+        + "'''Leonhard Euler''' (15 April 1707 \u2013 18 September 1783) was a Swiss "
+        + "mathematician, physicist and engineer, born in [[Basel]]. "
+        + "Z\u00fcrich, \u041c\u043e\u0441\u043a\u0432\u0430 and \u6771\u4eac are named "
+        + "in the references.<ref>{{cite book |last=Euler |first=Leonhard |year=1748 "
+        + "|title=Introductio in analysin infinitorum}}</ref>\n"
+        + "== References ==\n{{Reflist}}\n[[Category:1707 births]]\n[[Category:1783 deaths]]\n";
+
+    @Test
+    public void testRoundTrip() {
+        PageCompressor compressor = new PageCompressor(64);
+        byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = compressor.compress(body);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < body.length);
+
+        byte[] decompressed = compressor.decompress(compressed, body.length);
+        assertEquals(PAGE, new String(decompressed, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testBelowThresholdStaysRaw() {
+        PageCompressor compressor = new PageCompressor(1024);
+        byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+        assertTrue(body.length < 1024);
+
+        assertNull(compressor.compress(body));
+        CompressionStats stats = compressor.stats();
+        assertEquals(body.length, stats.getRawBytes());
+        assertEquals(body.length, stats.getStoredBytes());
+        assertEquals(0, stats.getCompressNanos());
+    }
+
+    @Test
+    public void testIncompressibleStaysRaw() {
+        PageCompressor compressor = new PageCompressor(0);
+        byte[] body = new byte[4096];
+        new Random(221).nextBytes(body);
+
+        assertNull(compressor.compress(body));
+        assertEquals(1.0, compressor.stats().getCompressionRatio(), 0.0);
+    }
+
+    @Test
+    public void testStatsAddUp() {
+        PageCompressor compressor = new PageCompressor(64);
+        byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+        byte[] small = "short page".getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = compressor.compress(body);
+        compressor.compress(small);
+        compressor.decompress(compressed, body.length);
+
+        CompressionStats stats = compressor.stats();
+        assertEquals(body.length + small.length, stats.getRawBytes());
+        assertEquals(compressed.length + small.length, stats.getStoredBytes());
+        assertTrue(stats.getCompressionRatio() > 1.0);
+        assertTrue(stats.getCompressNanos() > 0);
+        assertTrue(stats.getDecompressNanos() > 0);
+    }
+}
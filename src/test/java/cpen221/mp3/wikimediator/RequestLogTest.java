@@ -0,0 +1,128 @@
+package cpen221.mp3.wikimediator;
+
+import com.google.gson.stream.JsonWriter;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RequestLogTest {
+
+    private static List<String> visited(RequestLog log) {
+        List<String> requests = new ArrayList<>();
+        log.visit((millis, string) -> requests.add(millis + " " + string));
+        return requests;
+    }
+
+    private static String written(RequestLog log) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonWriter json = new JsonWriter(out)) {
+            log.write(json);
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testCrossesChunkBoundaries() {
+        RequestLog log = new RequestLog();
+        int n = 2 * RequestLog.CHUNK_SIZE + 5;
+        for (int i = 0; i < n; i++) {
+            log.record(i, "Page " + i % 7);
+        }
+        assertEquals(n, log.size());
+
+        List<String> requests = visited(log);
+        assertEquals(n, requests.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i + " Page " + i % 7, requests.get(i));
+        }
+    }
+
+    @Test
+    public void testEarlierTimeIsClampedToTheLast() {
+        RequestLog log = new RequestLog();
+        log.record(1000, "a");
+        log.record(500, "b");
+        log.record(2000, "c");
+        log.record(1999, "d");
+
+        assertEquals(Arrays.asList("1000 a", "1000 b", "2000 c", "2000 d"), visited(log));
+    }
+
+    @Test
+    public void testVisitSeesTheLogAsItWas() {
+        RequestLog log = new RequestLog();
+        log.record(1000, "a");
+        log.record(2000, "b");
+
+        List<String> requests = new ArrayList<>();
+        log.visit((millis, string) -> {
+            requests.add(millis + " " + string);
+            log.record(millis + 5000, string);
+        });
+        assertEquals(Arrays.asList("1000 a", "2000 b"), requests);
+        assertEquals(Arrays.asList("1000 a", "2000 b", "6000 a", "7000 b"), visited(log));
+    }
+
+    @Test
+    public void testWriteGroupsEqualTimes() throws IOException {
+        assertEquals("{}", written(new RequestLog()));
+
+        RequestLog log = new RequestLog();
+        log.record(1000, "a");
+        log.record(1000, "b");
+        log.record(1000, "a");
+        log.record(900, "c");
+        log.record(2000, "c");
+        assertEquals("{\"1000\":[\"a\",\"b\",\"a\",\"c\"],\"2000\":[\"c\"]}", written(log));
+    }
+
+    @Test
+    public void testWrittenLogLoadsBack() throws IOException {
+        RequestLog log = new RequestLog();
+        for (int i = 0; i < RequestLog.CHUNK_SIZE + 10; i++) {
+            log.record(1000 + i / 3, i % 5 == 0 ? "Often" : "Page " + i);
+        }
+        String saved = written(log);
+
+        File directory = Files.createTempDirectory("logs").toFile();
+        File logFile = new File(directory, "logs.txt");
+        File peakLoadFile = new File(directory, "logs_peak.txt");
+        try (FileWriter writer = new FileWriter(logFile)) {
+            writer.write(saved);
+        }
+        try (FileWriter writer = new FileWriter(peakLoadFile)) {
+            writer.write("{\"peak\": 3}");
+        }
+
+        WikiSource source = new WikiSource() {
+            @Override
+            public String getPageText(String pageTitle) {
+                return "text of " + pageTitle;
+            }
+
+            @Override
+            public List<String> search(String query, int limit) {
+                return Collections.singletonList(query);
+            }
+        };
+        WikiMediator loaded = new WikiMediator.Builder().source(source).logs(logFile, peakLoadFile).build();
+        assertEquals(log.size(), loaded.requestCount());
+        assertEquals(Collections.singletonList("Often"), loaded.zeitgeist(1));
+
+        /* the same requests, at the same times, in the same order */
+        File again = new File(directory, "again.txt");
+        loaded.saveLogs(again, new File(directory, "again_peak.txt"));
+        assertEquals(saved, new String(Files.readAllBytes(again.toPath()), StandardCharsets.UTF_8));
+    }
+}
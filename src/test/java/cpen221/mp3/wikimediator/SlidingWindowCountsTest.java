@@ -0,0 +1,95 @@
+package cpen221.mp3.wikimediator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SlidingWindowCountsTest {
+
+    /* the start of second 1000 since the epoch */
+    private static final long T = 1_000_000;
+
+    @Test
+    public void testRankedByCount() {
+        SlidingWindowCounts counts = new SlidingWindowCounts(2, 10);
+        counts.record("Hello", T);
+        counts.record("User:AllyD", T + 100);
+        counts.record("Blue", T + 200);
+        counts.record("User:AllyD", T + 300);
+        counts.record("Blue", T + 400);
+        counts.record("User:AllyD", T + 500);
+
+        assertEquals(Arrays.asList("User:AllyD", "Blue", "Hello"), counts.top(5, T + 600));
+        assertEquals(Arrays.asList("User:AllyD", "Blue"), counts.top(2, T + 600));
+        assertEquals(Collections.emptyList(), counts.top(0, T + 600));
+    }
+
+    @Test
+    public void testSecondsLeaveTheWindow() {
+        SlidingWindowCounts counts = new SlidingWindowCounts(2, 10);
+        counts.record("Old", T);
+        counts.record("Old", T + 999);
+
+        /* seconds 999 and 1000, then 1000 and 1001, then 1001 and 1002 */
+        assertEquals(Collections.singletonList("Old"), counts.top(5, T + 999));
+        counts.record("New", T + 1000);
+        assertEquals(Arrays.asList("Old", "New"), counts.top(5, T + 1999));
+        assertEquals(Collections.singletonList("New"), counts.top(5, 1, T + 1999));
+        assertEquals(Collections.singletonList("New"), counts.top(5, T + 2000));
+
+        /* what left the window is still in the history */
+        assertEquals(Arrays.asList("Old", "New"), counts.top(5, 5, T + 2000));
+        assertEquals(Collections.emptyList(), counts.top(5, 1, T + 2000));
+    }
+
+    @Test
+    public void testHistoryIsForgotten() {
+        SlidingWindowCounts counts = new SlidingWindowCounts(2, 10);
+        counts.record("Hello", T);
+        assertEquals(Collections.singletonList("Hello"), counts.top(5, 10, T + 9999));
+        assertEquals(Collections.emptyList(), counts.top(5, 10, T + 10_000));
+        assertEquals(Collections.emptyList(), counts.top(5, T + 60_000));
+
+        counts.record("Again", T + 60_000);
+        assertEquals(Collections.singletonList("Again"), counts.top(5, 10, T + 60_000));
+    }
+
+    @Test
+    public void testLateSightingCountsNow() {
+        SlidingWindowCounts counts = new SlidingWindowCounts(1, 10);
+        counts.record("Now", T + 3000);
+        counts.record("Late", T);
+        counts.record("Late", T + 1000);
+
+        assertEquals(Arrays.asList("Late", "Now"), counts.top(5, T + 3000));
+        assertEquals(Arrays.asList("Late", "Now"), counts.top(5, 3, T + 3000));
+    }
+
+    @Test
+    public void testOtherWindowKeepsFirstSeenOrderForTies() {
+        SlidingWindowCounts counts = new SlidingWindowCounts(2, 10);
+        counts.record("First", T);
+        counts.record("Second", T + 1000);
+        counts.record("Third", T + 4000);
+        counts.record("Third", T + 4000);
+
+        assertEquals(Arrays.asList("Third", "First", "Second"), counts.top(5, 5, T + 4000));
+    }
+
+    @Test
+    public void testWindowOutOfRange() {
+        SlidingWindowCounts counts = new SlidingWindowCounts(2, 10);
+        counts.record("Hello", T);
+        for (int windowSeconds : new int[]{0, -1, 11}) {
+            try {
+                counts.top(5, windowSeconds, T);
+                fail("a window of " + windowSeconds + "s");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}